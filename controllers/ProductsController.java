@@ -1,9 +1,7 @@
 package com.wp.web.controllers;
 
-import com.wp.crypto.Hash;
 import com.wp.model.PageCity;
 import com.wp.model.Product;
-import com.wp.model.ProductGroupProperties;
 import com.wp.model.composite.Crumb;
 import com.wp.model.enums.TypesEnum;
 import com.wp.model.objects.Nodes;
@@ -15,6 +13,7 @@ import com.wp.web.annotation.aspect.*;
 import com.wp.web.enums.CompanyNavigationEnum;
 import com.wp.web.enums.PageCityNavigationEnum;
 import com.wp.web.exceptions.BadRequestException;
+import com.wp.web.exceptions.InternalServerErrorException;
 import com.wp.web.exceptions.NotFoundException;
 import com.wp.web.forms.ProductForm;
 import com.wp.web.utils.CookieUtils;
@@ -23,6 +22,7 @@ import com.wp.web.views.*;
 import com.wp.web.views.company.CompanyView;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.validation.BindingResult;
@@ -30,7 +30,9 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -58,6 +60,34 @@ public class ProductsController extends AController {
     // Сервис для работы с пользователем
     @Autowired
     IUserService _userService;
+
+    // Сервис для отложенного пересчета групп товаров
+    @Autowired
+    IProductsGroupsService _groupsService;
+
+    // Сервис для подсчета количества товаров по значениям фильтров
+    @Autowired
+    IProductsFacetsService _facetsService;
+
+    // Сервис для подсчета просмотров товаров
+    @Autowired
+    IProductsStatsService _statsService;
+
+    // Сервис для прогрева кэшей товаров по частым запросам
+    @Autowired
+    IProductsWarmupService _warmupService;
+
+    // Сервис для замера памяти, выделенной запросами товаров
+    @Autowired
+    IProductsAllocationService _allocationService;
+
+    // Сервис для работы с городами доставки магазинов
+    @Autowired
+    IDeliveryLocationsService _deliveryLocationsService;
+
+    // Сервис для разбора фильтров раздела
+    @Autowired
+    IFilterQueryService _filterQueryService;
     // </editor-fold>
 
     // Главный раздел для товаров (товары хранятся в виде дерева и для того, чтобы получить разделы верхнего
@@ -65,6 +95,14 @@ public class ProductsController extends AController {
     @Value("${products_section}")
     protected long MAIN_PRODUCT_SECTION_ID = 0;
 
+    // Сжимать ли JSON списки товаров (отключается, если ответы сжимает прокси)
+    @Value("${products_api_gzip:true}")
+    protected boolean API_GZIP = true;
+
+    // Сколько товаров можно получить за одно обращение
+    @Value("${products_batch_max:100}")
+    protected int BATCH_MAX = 100;
+
     // <editor-fold defaultstate="collapsed" desc="Список опубликованных товаров">
     /**
      * Получаем список всех опубликованных товаров
@@ -170,11 +208,21 @@ public class ProductsController extends AController {
         // Помечаем товары, которые уже есть в корзине у пользователя (не важно владелец он или нет)
         _productsService.setInCartForProductViews(products, user.getFirstNode());
 
+        if (!is_owner) {
+            // Запоминаем запрос для прогрева кэшей при следующем запуске (списки владельца не прогреваются)
+            _warmupService.recordShopListing(node.getId(), sectionId, page, filters_from_url);
+        }
+
         // Записываем в модель данные, которые нужно для html страницы
         model.put("products", products);
         model.put("page", pc);
         model.put("sections", getSectionsForShop(node, sectionId, is_owner));
-        model.put("filters", getFiltersForShop(sectionId, filters_from_url));
+
+        List<FilterView> filters = getFiltersForShop(sectionId, filters_from_url);
+        model.put("filters", filters);
+
+        // Количество товаров магазина по значениям фильтров
+        model.put("facets", _facetsService.getFacets(sectionId, null, node.getId(), filters));
 
         // Возвращаем нужный шаблон для данного url
         return R.COMPANY_PRODUCTS_HOLDER;
@@ -197,56 +245,28 @@ public class ProductsController extends AController {
 
         long group_id = Cast.toLong(groupId);
 
-        // Получаем все конфигурации товара (например, все телефоны одной марки и модели, у которых тактовая частота
-        // процессора отличается => соответственно и отличается цена)
-        List<ProductViewForEdit> product_configurations = _productsService.getProductsByGroupIdForEdit(group_id);
-
-        if (product_configurations.isEmpty()) {
-            throw new NotFoundException("Конфигурации не найдены");
-        }
-
-        // Получаем первый товар в конфигурации
-        ProductViewForEdit fp = product_configurations.get(0);
-
-        // Узнаем раздел, в котором лежат все товары одной группы
-        Long section_id = fp.getSection_id();
-
         // Получаем фильтры из параметров запроса
         Map<String, String[]> filters_from_url = getFiltersFromRequest(request);
 
-        // Получаем все характеристики группы товаров
-        ProductGroupProperties group_properties = _productsService.getGroupPropertiesModel(group_id);
+        // Получаем все данные группы за одну выборку конфигураций: все конфигурации товара (например, все телефоны
+        // одной марки и модели, у которых тактовая частота процессора отличается => соответственно и отличается
+        // цена), конфигурации, найденные согласно выбранным фильтрам, и усредненный товар
+        ProductGroupSnapshot snapshot = _productsService.getGroupSnapshot(group_id, filters_from_url);
 
-        // Формируем параметры запроса для постраничной навигации
-        PageContext pc = new PageContext().setPageSize(30).setCurrentPage(1);
-
-        // Если мы работаем с разделом одежды, получаем систему измерения размеров для группы товаров
-        String dimension_system =   Is.Empty(request.getParameter("dimension_system")) ?
-                                        group_properties.getDimension_system() :
-                                        request.getParameter("dimension_system");
+        model.put("product_configurations", snapshot.getFiltered());
 
-        // Получаем выбранные фильтры на странице поиска товаров по параметрам (аналог Яндекс Маркета)
+        // Выбранные фильтры на странице поиска товаров по параметрам (аналог Яндекс Маркета)
         // http://market.yandex.ru/guru.xml?CMD=-RR%3D9%2C0%2C0%2C0-VIS%3D8070-CAT_ID%3D160043-EXC%3D1-PG%3D10&hid=91491
-        List<FilterView> filters = _sectionsService.getOnlySelectedFilters( section_id,
-                                                                            group_properties.getFilters(),
-                                                                            filters_from_url,
-                                                                            dimension_system);
-
-        // Если фильтры не были переданы или их воообще нет, то присваиваем переменной null для того, чтобы
-        // не учитывать фильтры при выборе конфигураций
-        if ((Is.Empty(filters) || filters.isEmpty()) && !product_configurations.isEmpty()) {
-            filters_from_url = null;
-        }
-
-        // Получаем найденные конфигурации согласно выбранным фильтрам
-        model.put("product_configurations",
-                _productsService.getProductsByGroupIdForList(group_id, fp.getSection_id(), pc, filters_from_url));
+        model.put("filters", snapshot.getFilters());
 
-        model.put("filters", filters);
+        if (snapshot.getSelection() != null) {
+            // Доступные для выбора значения и интервал цен для текущего выбора
+            model.put("variant_selection", snapshot.getSelection());
+        }
 
-        // Получаем информацию об усредненных данных о товаре, аналог Яндекс Маркета
+        // Информация об усредненных данных о товаре, аналог Яндекс Маркета
         // http://market.yandex.ru/model.xml?modelid=11002813&hid=91491
-        model.put("view", getProductAverage(product_configurations, filters));
+        model.put("view", snapshot.getAverage());
 
         // Возвращаем нужный шаблон для данного url
         return R.PRODUCT_VIEW_HOLDER;
@@ -257,26 +277,206 @@ public class ProductsController extends AController {
     /**
      * Получаем описание товара с его характеристиками
      * @param model модель данных для шаблона
+     * @param request данные о запросе (нужны для определения города посетителя)
      * @param productId идентификатор товара
      * @return возвращаем страницу с подробным описанием и характеристиками товара
      */
     @CompanyNavigation(sections = {CompanyNavigationEnum.PRODUCTS, CompanyNavigationEnum.SHOP})
     @RequestMapping(value = "/product/{productId}", method = RequestMethod.GET)
-    public String getProductDetails(ModelMap model, @PathVariable @ObjectId String productId) {
+    public String getProductDetails(ModelMap model, HttpServletRequest request, @PathVariable @ObjectId String productId) {
 
         long product_id = Cast.toLong(productId);
 
         // Получаем данные о товаре
         ProductViewForView product = _productsService.getProductView(product_id);
 
+        // Учитываем просмотр товара (счетчики записываются в БД пачками)
+        _statsService.registerView(product_id);
+        _warmupService.recordProduct(product_id);
+
         // Записываем их в модель для html-страницы
         model.put("view", product);
 
+        // Доставляет ли магазин товар в город посетителя (магазин берется из уже выбранного товара)
+        Long location_id = getLocationId(getCurentDomainLocation(), request);
+        model.put("delivers_to_location", location_id > 0 &&
+                _deliveryLocationsService.isDeliveringTo(product.getNode_id(), location_id));
+
         // Возвращаем нужный шаблон для данного url
         return R.PRODUCT_VIEW_HOLDER;
     }
     // </editor-fold>
 
+    // <editor-fold defaultstate="collapsed" desc="Учитываем переход на товар из списка">
+    /**
+     * Учитываем переход на товар из списка товаров (запрос отправляется со страницы списка при клике по товару)
+     *
+     * @param productId идентификатор товара
+     */
+    @RequestMapping(value = "/product/{productId}/click", method = RequestMethod.POST)
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void registerProductClick(@PathVariable @ObjectId String productId) {
+        _statsService.registerClick(Cast.toLong(productId));
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Списки товаров в формате JSON">
+    /**
+     * Получаем опубликованные товары в формате JSON (те же товары, что и на странице /products). Раздел
+     * передается параметром section, поля товаров - параметром fields
+     *
+     * @param model модель данных (нужна для определения раздела)
+     * @param request данные о запросе
+     * @param response ответ, в который пишутся товары по мере получения
+     */
+    @RequestMapping(value = "/api/products", method = RequestMethod.GET)
+    public void getProductsJson(ModelMap model, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+
+        long sectionId = _sectionsService.getSectionFromRequest(model, request.getParameter("section"),
+                                                                MAIN_PRODUCT_SECTION_ID);
+
+        Map<String, String[]> filters_from_url = getFiltersFromRequest(request);
+
+        Long location_id = getLocationId(getCurentDomainLocation(), request);
+
+        Long location_to_id = Cast.toLong(request.getParameter("location_to"));
+        if (location_to_id == null || location_to_id <= 0) {
+            location_to_id = null;
+        }
+
+        PageContext pc = new PageContext().setPageSize(30).setCurrentPage(getPage(request));
+
+        ProductsJsonWriter writer = openJsonWriter(request, response);
+        writer.start(pc);
+        _productsService.streamProductsForPublic(sectionId, location_id, location_to_id, pc, filters_from_url, writer);
+        writer.finish();
+    }
+
+    /**
+     * Получаем опубликованные товары узла компании в формате JSON (те же товары, что и гость видит на странице
+     * /{alias}/products)
+     *
+     * @param model модель данных (нужна для определения раздела)
+     * @param request данные о запросе
+     * @param response ответ, в который пишутся товары по мере получения
+     * @param alias название узла для компании
+     */
+    @RequestMapping(value = "/api/{alias}/products", method = RequestMethod.GET)
+    public void getProductsByNodeJson(ModelMap model, HttpServletRequest request, HttpServletResponse response,
+                                      @PathVariable @NodeName String alias) throws IOException {
+
+        Nodes node = getNodeByAlias(alias);
+
+        if (!node.getType().equals(TypesEnum.COMPANY.getType())) {
+            throw new NotFoundException("Страница не найдена.");
+        }
+
+        long sectionId = _sectionsService.getSectionFromRequest(model, request.getParameter("section"),
+                                                                MAIN_PRODUCT_SECTION_ID);
+
+        Map<String, String[]> filters_from_url = getFiltersFromRequest(request);
+
+        PageContext pc = new PageContext().setPageSize(30).setCurrentPage(getPage(request));
+
+        // Списки для владельца (с неопубликованными товарами) отдаются только страницей магазина
+        ProductsJsonWriter writer = openJsonWriter(request, response);
+        writer.start(pc);
+        _productsService.streamProductsByNodeId(node.getId(), 1l, sectionId, pc, filters_from_url, writer);
+        writer.finish();
+    }
+
+    /**
+     * Получаем конфигурации группы товаров в формате JSON
+     *
+     * @param request данные о запросе
+     * @param response ответ, в который пишутся товары по мере получения
+     * @param groupId идентификатор группы товаров
+     */
+    @RequestMapping(value = "/api/group/{groupId}", method = RequestMethod.GET)
+    public void getProductsConfigurationsJson(HttpServletRequest request, HttpServletResponse response,
+                                              @PathVariable @ObjectId String groupId) throws IOException {
+
+        long group_id = Cast.toLong(groupId);
+
+        // Для несуществующей группы - 404, а не пустой список (метод выбросит исключение, если группы нет)
+        _productsService.getGroupPropertiesModel(group_id);
+
+        Map<String, String[]> filters_from_url = getFiltersFromRequest(request);
+
+        PageContext pc = new PageContext().setPageSize(30).setCurrentPage(getPage(request));
+
+        ProductsJsonWriter writer = openJsonWriter(request, response);
+        writer.start(pc);
+        _productsService.streamProductsByGroupId(group_id, 0l, pc, filters_from_url, writer);
+        writer.finish();
+    }
+
+    /**
+     * Получаем несколько товаров за одно обращение в формате JSON (корзина, сравнение, просмотренные товары).
+     * Идентификаторы передаются параметром ids через запятую, набор данных - параметром projection (list,
+     * configuration или view). Отсутствующие и удаленные товары пропускаются
+     *
+     * @param request данные о запросе
+     * @param response ответ, в который пишутся товары
+     */
+    @RequestMapping(value = "/api/products/batch", method = RequestMethod.GET)
+    public void getProductsByIdsJson(HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+        List<Long> products_ids = new ArrayList<Long>();
+
+        String ids = request.getParameter("ids");
+        if (!Is.Empty(ids)) {
+            for (String id : ids.split(",")) {
+                Long product_id = Cast.toLong(id.trim());
+                if (product_id != null && product_id > 0) {
+                    products_ids.add(product_id);
+                }
+            }
+        }
+
+        if (products_ids.isEmpty() || products_ids.size() > BATCH_MAX) {
+            throw new BadRequestException(String.format("Нужно передать от 1 до %s товаров.", BATCH_MAX));
+        }
+
+        IProductsService.Projection projection = IProductsService.Projection.LIST;
+
+        String projection_name = request.getParameter("projection");
+        if (!Is.Empty(projection_name)) {
+            try {
+                projection = IProductsService.Projection.valueOf(projection_name.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException ex) {
+                throw new BadRequestException("Неизвестный набор данных о товаре.");
+            }
+        }
+
+        List<Object> products = _productsService.getProductsByIds(products_ids, projection);
+
+        ProductsJsonWriter writer = openJsonWriter(request, response);
+        writer.start();
+        for (Object product : products) {
+            if (product instanceof ProductViewForList) {
+                // помечаем товары, которые уже лежат в корзине
+                writer.accept((ProductViewForList) product);
+            }
+            else {
+                writer.write(product);
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * Создает писателя списка товаров. Ответ открывается только при записи первого товара, поэтому ошибки выборки
+     * товаров (раздел или группа не найдены) отдаются обычными страницами ошибок
+     */
+    private ProductsJsonWriter openJsonWriter(HttpServletRequest request, HttpServletResponse response) {
+
+        return new ProductsJsonWriter(request, response, API_GZIP, _productsService, user.getFirstNode());
+    }
+    // </editor-fold>
+
     // <editor-fold defaultstate="collapsed" desc="Получаем форму создания товара">
     /**
      * Получаем страницу с формой добавления товара
@@ -324,10 +524,13 @@ public class ProductsController extends AController {
         // запись в БД недостоверных данных)
         _messageResolver.resolveBindingResult(result);
 
+        // Фильтры формы разбираются по описанию фильтров раздела до подсчета отпечатка конфигурации
+        form.applySchema(_filterQueryService.getSchema(form.getSection_id()));
+
         if (form.getGroup_id() != null && form.getGroup_id() > 0) {
             // Проверяем уникальность конфигурации
             if ((Is.Empty(form.getCopy_this()) || form.getCopy_this() == 0) &&
-                !_productsService.checkConfigurationForUnique(form.getGroup_id(), 0l, form.getFilters(), node)) {
+                !_productsService.checkConfigurationForUnique(form.getGroup_id(), 0l, form.getFingerprint(), node)) {
                 model.put("warning_type", "duplicate_configuration");
 
                 // Возвращаем пользователю предупреждение о том, что данная конфигурация уже существует
@@ -341,7 +544,7 @@ public class ProductsController extends AController {
 
             // Проверяем уникальность конфигурации
             if ((   Is.Empty(form.getCopy_this()) || form.getCopy_this() == 0) &&
-                    product.getHash().equals(Hash.getHex(form.getFilters()))) {
+                    product.getFingerprint() == form.getFingerprint()) {
 
                 model.put("warning_type", "duplicate_configuration");
 
@@ -366,6 +569,28 @@ public class ProductsController extends AController {
     }
     // </editor-fold>
 
+    // <editor-fold defaultstate="collapsed" desc="Сохраняем города доставки магазина">
+    /**
+     * Сохраняем города, в которые доставляет магазин (товары магазина переиндексируются после сохранения)
+     * @param model модель данных
+     * @param alias название узла
+     * @param locations идентификаторы городов доставки (пустой список - магазин никуда не доставляет)
+     */
+    @RequestMapping(value = "/{alias}/delivery_locations", method = RequestMethod.POST)
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void saveDeliveryLocations(ModelMap model, @PathVariable @NodeName String alias,
+                                      @RequestParam(value = "locations", required = false) List<Long> locations) {
+
+        // Получаем имя узла по его имени (alias - англоязычное имя)
+        Nodes node = getNodeByAlias(alias);
+
+        // Проверяем права доступа пользователя к данной странице
+        _userService.checkUser(user, node, model);
+
+        _deliveryLocationsService.saveDeliveryLocations(node.getId(), locations);
+    }
+    // </editor-fold>
+
     // <editor-fold defaultstate="collapsed" desc="Обновляем товар">
     /**
      * Обновляем товар на узле компании
@@ -391,6 +616,9 @@ public class ProductsController extends AController {
         // запись в БД недостоверных данных)
         _messageResolver.resolveBindingResult(result);
 
+        // Фильтры формы разбираются по описанию фильтров раздела до подсчета отпечатка конфигурации
+        form.applySchema(_filterQueryService.getSchema(form.getSection_id()));
+
         if (form.getGroup_id() != null && form.getGroup_id() > 0) {
             // Проверяем если ли вообше такой товар заодно и унаем раздел товара, который мы обновляем
             Product product = _productsService.getProductModel(product_id);
@@ -401,7 +629,7 @@ public class ProductsController extends AController {
 
             // Проверяем уникальность конфигурации
             if ((Is.Empty(form.getCopy_this()) || form.getCopy_this() == 0) &&
-                !_productsService.checkConfigurationForUnique(form.getGroup_id(), product_id, form.getFilters(), node)) {
+                !_productsService.checkConfigurationForUnique(form.getGroup_id(), product_id, form.getFingerprint(), node)) {
 
                 model.put("warning_type", "duplicate_configuration");
 
@@ -418,25 +646,60 @@ public class ProductsController extends AController {
     // <editor-fold defaultstate="collapsed" desc="Вспомогательные методы">
     private String processingProductForSave(Nodes node, Long product_id, ProductForm form, ModelMap model){
 
-        // Сохранеяем товар
-        product_id = _productsService.saveProduct(node.getId(), product_id, form.getGroup_id(), form);
+        // Сохранеяем товар, в ответ получаем данные об обновленном/добавленном товаре, для того, чтобы
+        // на странице заменить/добавить его на странице
+        ProductSaveResult saved = _productsService.saveProduct(node.getId(), product_id, form.getGroup_id(), form);
 
-        // Получаем данные об обновленном/добавленном товаре, для того, чтобы на странице заменить/добавить
-        // его на странице
-        ProductConfigurationsViewForList product = _productsService.getProductConfigurationForListItem(product_id);
+        if (saved == null) {
+            throw new InternalServerErrorException();
+        }
+
+        // Формы, которые возвращаются на клиент, показывают свойства группы, поэтому пересчитываем её сразу
+        if (!Is.Empty(form.getReturn_forms()) && form.getGroup_id() != null && form.getGroup_id() > 0) {
+            _groupsService.flush(form.getGroup_id());
+        }
 
         // Неинтересные обработки для того, чтобы узнать какой шаблон отдать на клиент
-        processingReturnForms(product_id, model, form.getReturn_forms(), form.getGroup_id());
+        processingReturnForms(saved.getModel(), model, form.getReturn_forms());
 
-        model.put("configuration_item", product);
+        model.put("configuration_item", saved.getConfiguration_item());
 
         // Возвращаем шаблон обновленного товара
         return R.SAVED_PRODUCT_RESULT;
 
     }
 
+    /**
+     * Возвращает номер страницы из параметров запроса (первая, если номер не передан)
+     */
+    private int getPage(HttpServletRequest request) {
+
+        int page = Cast.toInt(request.getParameter("page"));
+
+        return page == 0 ? 1 : page;
+    }
+
+    /**
+     * Возвращает город, товары которого показываются: город поддомена или город, выбранный посетителем
+     */
+    private Long getLocationId(PageCity pageCity, HttpServletRequest request) {
+
+        if (!Is.Empty(pageCity)) {
+            return pageCity.getLocation_id();
+        }
+
+        Cookie cookie = CookieUtils.getCookie(request, CookieUtils.CURRENT_LOCATION_ID);
+        if (cookie != null && request.getCookies() != null) {
+            return Long.parseLong(cookie.getValue());
+        }
+
+        return 0l;
+    }
+
     private Map<String, String[]> getFiltersFromRequest(HttpServletRequest request) {
 
+        long mark = _allocationService.mark();
+
         Map<String, String[]> params = request.getParameterMap();
         Map<String, String[]> filters = new HashMap<String, String[]>();
 
@@ -444,6 +707,8 @@ public class ProductsController extends AController {
             filters.put(key, params.get(key));
         }
 
+        _allocationService.record("ProductsController.getFiltersFromRequest", mark);
+
         return filters;
     }
 
@@ -500,39 +765,19 @@ public class ProductsController extends AController {
 
     }
 
-    private void processingReturnForms(Long product_id, ModelMap model, String return_forms_string, Long group_id) {
+    private void processingReturnForms(Product product, ModelMap model, String return_forms_string) {
 
         if (!Is.Empty(return_forms_string) && !return_forms_string.trim().equals("")) {
             List<String> return_forms = Arrays.asList(return_forms_string.split(","));
 
+            // Формы строятся по модели сохраненного товара (без повторной выборки из БД) после пересчета группы,
+            // поэтому свойства группы уже новые
             for (String f : return_forms) {
-                long productId = product_id == null ? 0 : product_id;
-
-                if (productId == 0) {
-                    //Если productId не передан, то возвращаем последний товар
-                    if (group_id == null || group_id == 0) {
-                        continue;
-                    }
-
-                    List<ProductConfigurationsViewForList> products_groups =
-                            _productsService.getProductsByGroupIdForList(group_id, 0l, null, null);
-
-                    if (products_groups.isEmpty()){
-                        continue;
-                    }
-
-                    productId = products_groups.get(products_groups.size() - 1).getId();
-                }
-
-                if (productId == 0) {
-                    continue;
-                }
-
                 if (f.equals("product_list_item")) {
-                    model.put("item", _productsService.getProductForList(productId));
+                    model.put("item", _productsService.getProductForList(product));
                 }
                 else if (f.equals("product_view")) {
-                    model.put("view", _productsService.getProductView(productId));
+                    model.put("view", _productsService.getProductView(product));
                 }
             }
 
@@ -541,83 +786,6 @@ public class ProductsController extends AController {
 
     }
 
-    private ProductAverageView getProductAverage(List<ProductViewForEdit> products_configurations, List<FilterView> filters) {
-
-        // Получаем первый товар в конфигурации
-        ProductViewForEdit fp = products_configurations.get(0);
-
-        List<FilterAverageView> filters_average = new ArrayList<FilterAverageView>();
-        HashMap<Long, Integer> filters_keys_by_ids = new HashMap<Long, Integer>();
-        Long price = 0l;
-
-        // Заполняем фильтрами, которые указаны во всех конфигурациях (дублирующие пропускаем)
-        for (ProductViewForEdit p : products_configurations) {
-            price = _sectionsService.getFiltersForConfigurationView(p.getFilters(), filters_average, filters_keys_by_ids);
-        }
-
-        // Формируем данные для усредненного товара
-        ProductAverageView product_average = new ProductAverageView(fp.getTitle(), fp.getDescription(), filters_average, price);
-
-        String dimension = null;
-
-        // Записываем все изображения конфигураций
-        HashMap<Long, Boolean> hm = new HashMap<Long, Boolean>();
-        for (ProductViewForEdit p : products_configurations) {
-            if (Is.Empty(dimension) && !Is.Empty(p.getDimension())) {
-                dimension = p.getDimension();
-            }
-            //Добавляем изображениея без дубликатов
-            for (ImageView imageView : p.getImages()) {
-                if (hm.containsKey(imageView.getId())) {
-                    continue;
-                }
-                hm.put(imageView.getId(), true);
-                product_average.getImages().add(imageView);
-            }
-        }
-
-        if (!Is.Empty(dimension)) {
-            product_average.setSearch_dimension(dimension);
-        }
-
-        // Добавляем значения, которые используются только в конфигурациях
-        for (FilterView f : filters) {
-            if (f.getAlias().equals("dimension") && !Is.Empty(f.get_dimension_system())) {
-                dimension = f.get_dimension_system();
-                product_average.setSearch_dimension(dimension);
-            }
-
-            if (f.getAlias().equals("price")) {
-                product_average.setPrice(f.getMinValue());
-                product_average.setPrice_to(f.getMaxValue());
-                continue;
-            }
-
-            if (!filters_keys_by_ids.containsKey(f.getId()))
-                continue;
-
-            Integer key = filters_keys_by_ids.get(f.getId());
-
-            if (f.getType().equals("number") || f.getType().equals("interval")) {
-                product_average.getFilters().get(key).setValue(f.getMinValue());
-                product_average.getFilters().get(key).setValue_to(f.getMaxValue());
-            } else if (f.getType().equals("select")) {
-                List<String> values = new ArrayList<String>();
-
-                for (ListValue v : f.getValues()) {
-                    values.add(v.getValue());
-                }
-
-                product_average.getFilters().get(key).setValues(values);
-            }
-        }
-
-        // Устанавливаем интервал в фильтрах для конфигураций
-        product_average.setFilters(filters_average);
-
-        return product_average;
-    }
-
     private String getProductsForPublic(PageCity pageCity, ModelMap model, HttpServletRequest request, String pathSection) {
 
         // Получаем идентификатор раздела из параметров запроса
@@ -626,38 +794,40 @@ public class ProductsController extends AController {
         // Получаем фильтры из параметров запроса
         Map<String, String[]> filters_from_url = getFiltersFromRequest(request);
 
-        Long location_id = 0l;
-        int page = Cast.toInt(request.getParameter("page"));
-        if (page == 0) {
-            page = 1;
-        }
+        int page = getPage(request);
 
         // Формируем параметры запроса для постраничной навигации
         PageContext pc = new PageContext().setPageSize(30).setCurrentPage(page);
 
+        Long location_id = getLocationId(pageCity, request);
 
-        if (!Is.Empty(pageCity)) {
-            location_id = pageCity.getLocation_id();
-        }
-        else {
-            Cookie cookie = CookieUtils.getCookie(request, CookieUtils.CURRENT_LOCATION_ID);
-            if (cookie != null && request.getCookies() != null) {
-                location_id = Long.parseLong(cookie.getValue());
-            }
+        // Город, в который покупатель хочет получить товар (доставка из других городов)
+        Long location_to_id = Cast.toLong(request.getParameter("location_to"));
+        if (location_to_id == null || location_to_id <= 0) {
+            location_to_id = null;
         }
 
         // Получаем опубликованные товары, которые видны всем пользователям и посетителям сайта
-        List<ProductViewForList> products = _productsService.getProductsForPublic(sectionId, location_id, null, pc, filters_from_url);
+        List<ProductViewForList> products = _productsService.getProductsForPublic(sectionId, location_id, location_to_id,
+                                                                                  pc, filters_from_url);
 
         // Устанавливаем значения для товаров, которые у пользователя в корзине
         _productsService.setInCartForProductViews(products, user.getFirstNode());
 
+        // Запоминаем запрос для прогрева кэшей при следующем запуске
+        _warmupService.recordPublicListing(sectionId, location_id, location_to_id, page, filters_from_url);
+
         // Записываем все разделы для товаров, для того, чтобы их показать в интерфейсе
         model.putAll(_sectionsService.sectionsAsModel(MAIN_PRODUCT_SECTION_ID, pathSection));
 
         model.put("products", products);
         model.put("page", pc.setCurrentPage(page));
-        model.put("filters", getFiltersForShop(sectionId, filters_from_url));
+
+        List<FilterView> filters = getFiltersForShop(sectionId, filters_from_url);
+        model.put("filters", filters);
+
+        // Количество товаров по значениям фильтров, чтобы пользователь не выбирал значения без товаров
+        model.put("facets", _facetsService.getFacets(sectionId, location_id, null, filters));
 
         // Если имеем дело со страницей города, то возвращаем шаблон для страницы города с товарами
         if (!Is.Empty(pageCity)) {
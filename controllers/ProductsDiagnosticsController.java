@@ -0,0 +1,138 @@
+package com.wp.web.controllers;
+
+import com.wp.servicies.interfaces.IProductsAllocationService;
+import com.wp.servicies.interfaces.IProductsConsistencyService;
+import com.wp.servicies.interfaces.IProductsRankingService;
+import com.wp.utils.Cast;
+import com.wp.web.annotation.aspect.ObjectId;
+import com.wp.web.exceptions.BadRequestException;
+import com.wp.web.exceptions.NotFoundException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Данный класс представляет из себя контроллер со служебными отчетами о работе с товарами. Отчеты отдаются
+ * в формате JSON и доступны, только если включена настройка products_diagnostics
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Controller
+public class ProductsDiagnosticsController extends AController {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Сервис для расчета веса товаров в выдаче
+    @Autowired
+    IProductsRankingService _rankingService;
+
+    // Сервис сверки товаров в БД и в индексе
+    @Autowired
+    IProductsConsistencyService _consistencyService;
+
+    // Сервис для замера памяти, выделенной запросами товаров
+    @Autowired
+    IProductsAllocationService _allocationService;
+    // </editor-fold>
+
+    // Доступны ли служебные отчеты
+    @Value("${products_diagnostics:false}")
+    protected boolean ENABLED = false;
+
+    // Наибольшее количество сверок в отчете
+    private static final int MAX_CONSISTENCY_RUNS = 100;
+
+    // <editor-fold defaultstate="collapsed" desc="Пробный пересчет веса товаров">
+    /**
+     * Показывает, как изменится вес опубликованных товаров раздела, ничего не записывая
+     *
+     * @param response ответ, в который пишется отчет
+     * @param sectionId идентификатор раздела
+     */
+    @RequestMapping(value = "/diagnostics/products/ranking/{sectionId}", method = RequestMethod.GET)
+    public void getRankingPreview(HttpServletResponse response, @PathVariable @ObjectId String sectionId)
+            throws IOException {
+
+        checkEnabled();
+
+        long section_id = Cast.toLong(sectionId);
+
+        // Пересчет всего каталога за один запрос слишком долгий
+        if (section_id <= 0) {
+            throw new BadRequestException("Не указан раздел.");
+        }
+
+        writeJson(response, _rankingService.preview(section_id));
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Результаты сверки БД и индекса">
+    /**
+     * Показывает результаты последних сверок товаров в БД и в индексе
+     *
+     * @param response ответ, в который пишется отчет
+     * @param limit количество сверок
+     */
+    @RequestMapping(value = "/diagnostics/products/consistency", method = RequestMethod.GET)
+    public void getConsistencyHistory(HttpServletResponse response,
+                                      @RequestParam(value = "limit", defaultValue = "20") int limit)
+            throws IOException {
+
+        checkEnabled();
+
+        if (limit <= 0 || limit > MAX_CONSISTENCY_RUNS) {
+            throw new BadRequestException("Неверное количество сверок.");
+        }
+
+        writeJson(response, _consistencyService.getHistory(limit));
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Замер выделенной памяти">
+    /**
+     * Показывает память, выделенную запросами товаров с последнего сброса счетчиков
+     *
+     * @param response ответ, в который пишется отчет
+     * @param reset сбросить ли счетчики после отчета (следующий отчет начнется с нуля)
+     */
+    @RequestMapping(value = "/diagnostics/products/allocation", method = RequestMethod.GET)
+    public void getAllocationReport(HttpServletResponse response,
+                                    @RequestParam(value = "reset", defaultValue = "false") boolean reset)
+            throws IOException {
+
+        checkEnabled();
+
+        // Замер включается отдельной настройкой, без нее отчет был бы пустым
+        if (!_allocationService.isEnabled()) {
+            throw new NotFoundException("Страница не найдена.");
+        }
+
+        writeJson(response, _allocationService.getReport());
+
+        if (reset) {
+            _allocationService.reset();
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Вспомогательные методы">
+    private void checkEnabled() {
+        if (!ENABLED) {
+            throw new NotFoundException("Страница не найдена.");
+        }
+    }
+
+    private static void writeJson(HttpServletResponse response, Object report) throws IOException {
+        response.setContentType("application/json;charset=UTF-8");
+        new ObjectMapper().writeValue(response.getOutputStream(), report);
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,284 @@
+package com.wp.web.controllers;
+
+import com.wp.model.objects.Nodes;
+import com.wp.servicies.interfaces.IProductsService;
+import com.wp.utils.mybatis.plugins.paging.page.PageContext;
+import com.wp.web.exceptions.BadRequestException;
+import com.wp.web.views.ProductViewForList;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.MappingJsonFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Данный класс записывает список товаров в ответ в формате JSON по мере получения товаров.
+ *
+ * Ответ имеет вид {"page":1,"page_size":30,"items":[...]} (без page и page_size, если товары выбраны по
+ * идентификаторам). Параметр fields (через запятую) ограничивает поля товаров: допускаются только свойства
+ * верхнего уровня ProductViewForList, любое другое поле (вложенные пути, индексы, class) отклоняется с ошибкой
+ * 400, а поля, которых нет у товара другого набора данных, пропускаются. Ответ пишется без отступов через буфер
+ * генератора и сжимается, если клиент принимает gzip (сжатие можно отключить, если ответы сжимает прокси).
+ *
+ * Поток ответа открывается при записи первого товара (или конца пустого списка): пока товары выбираются, ответ
+ * не тронут, и ошибка выборки (например, 404) отдается обычной страницей ошибки без заголовков JSON и gzip
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+class ProductsJsonWriter implements IProductsService.ProductsConsumer {
+
+    private static final JsonFactory JSON_FACTORY = new MappingJsonFactory();
+
+    // поля, которые можно выбрать параметром fields: свойства верхнего уровня списка товаров
+    private static final Set<String> ALLOWED_FIELDS = allowedFields();
+
+    // сколько товаров списка помечается одним обращением к корзине (товары пишутся в ответ пачками)
+    private static final int CART_BATCH = 10;
+
+    private final HttpServletRequest request;
+
+    private final HttpServletResponse response;
+
+    // сжимать ли ответ, если клиент принимает gzip
+    private final boolean gzip;
+
+    // генератор (создается при записи первого товара)
+    private JsonGenerator generator;
+
+    // данные постраничной навигации для начала ответа (null - ответ без постраничной навигации)
+    private PageContext pc;
+
+    // выбранные поля товаров (null - все поля)
+    private final List<String> fields;
+
+    // сервис товаров для пометки товаров, которые уже лежат в корзине (так же, как на страницах списков)
+    private final IProductsService products_service;
+
+    // узел пользователя (null для гостя)
+    private final Nodes user_node;
+
+    // товары списка, которые еще не помечены и не записаны (помечаются пачкой)
+    private final List<ProductViewForList> pending = new ArrayList<ProductViewForList>();
+
+    ProductsJsonWriter(HttpServletRequest request, HttpServletResponse response, boolean gzip,
+                       IProductsService products_service, Nodes user_node) {
+
+        this.request = request;
+        this.response = response;
+        this.gzip = gzip;
+        this.products_service = products_service;
+        this.user_node = user_node;
+        this.fields = parseFields(request.getParameter("fields"));
+    }
+
+    /**
+     * Запоминает данные постраничной навигации для начала ответа (ответ начнется при записи первого товара)
+     */
+    void start(PageContext pc) {
+        this.pc = pc;
+    }
+
+    /**
+     * Ответ без постраничной навигации (выборка товаров по идентификаторам)
+     */
+    void start() {
+        this.pc = null;
+    }
+
+    @Override
+    public void accept(ProductViewForList product) throws IOException {
+
+        // Гостю помечать нечего
+        if (user_node == null) {
+            write(product);
+            return;
+        }
+
+        pending.add(product);
+
+        if (pending.size() >= CART_BATCH) {
+            flushPending();
+        }
+    }
+
+    /**
+     * Записывает очередной товар (выбранные поля или весь объект)
+     */
+    void write(Object product) throws IOException {
+        flushPending();
+        writeObject(product);
+    }
+
+    /**
+     * Помечает накопленные товары, которые лежат в корзине, одним обращением к сервису товаров и записывает их
+     */
+    private void flushPending() throws IOException {
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        products_service.setInCartForProductViews(pending, user_node);
+
+        for (ProductViewForList product : pending) {
+            writeObject(product);
+        }
+
+        pending.clear();
+    }
+
+    private void writeObject(Object product) throws IOException {
+
+        open();
+
+        if (fields == null) {
+            generator.writeObject(product);
+            return;
+        }
+
+        BeanWrapper wrapper = new BeanWrapperImpl(product);
+
+        generator.writeStartObject();
+        for (String field : fields) {
+            if (wrapper.isReadableProperty(field)) {
+                generator.writeFieldName(field);
+                generator.writeObject(wrapper.getPropertyValue(field));
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Записывает конец ответа и закрывает поток (при сжатии дописывается конец gzip)
+     */
+    void finish() throws IOException {
+        flushPending();
+        open();
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.close();
+    }
+
+    /**
+     * Открывает поток ответа и записывает начало ответа: данные постраничной навигации и начало списка товаров
+     */
+    private void open() throws IOException {
+
+        if (generator != null) {
+            return;
+        }
+
+        response.setContentType("application/json;charset=UTF-8");
+        response.setHeader("Vary", "Accept-Encoding");
+
+        OutputStream out = response.getOutputStream();
+
+        if (gzip && acceptsGzip(request.getHeader("Accept-Encoding"))) {
+            response.setHeader("Content-Encoding", "gzip");
+            out = new GZIPOutputStream(out, 8192);
+        }
+
+        generator = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+
+        generator.writeStartObject();
+        if (pc != null) {
+            generator.writeNumberField("page", pc.getCurrentPage());
+            generator.writeNumberField("page_size", pc.getPageSize());
+        }
+        generator.writeArrayFieldStart("items");
+    }
+
+    /**
+     * Проверяет, принимает ли клиент gzip по заголовку Accept-Encoding (gzip;q=0 и *;q=0 запрещают сжатие)
+     */
+    static boolean acceptsGzip(String header) {
+
+        if (header == null) {
+            return false;
+        }
+
+        Double gzip_q = null;
+        Double any_q = null;
+
+        for (String coding : header.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+
+            double q = 1d;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    }
+                    catch (NumberFormatException ex) {
+                        q = 0d;
+                    }
+                }
+            }
+
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzip_q = q;
+            }
+            else if (name.equals("*")) {
+                any_q = q;
+            }
+        }
+
+        // gzip, указанный явно, важнее звездочки
+        if (gzip_q != null) {
+            return gzip_q > 0;
+        }
+
+        return any_q != null && any_q > 0;
+    }
+
+    private static List<String> parseFields(String value) {
+
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+
+        List<String> fields = new ArrayList<String>();
+        for (String field : value.split(",")) {
+            field = field.trim();
+
+            if (field.isEmpty() || fields.contains(field)) {
+                continue;
+            }
+
+            // Поле читается через BeanWrapper, поэтому вложенные пути и class позволили бы обойти граф объектов
+            if (field.indexOf('.') >= 0 || field.indexOf('[') >= 0 || !ALLOWED_FIELDS.contains(field)) {
+                throw new BadRequestException(String.format("Неизвестное поле товара: %s.", field));
+            }
+
+            fields.add(field);
+        }
+
+        return fields;
+    }
+
+    private static Set<String> allowedFields() {
+
+        Set<String> fields = new HashSet<String>();
+
+        for (PropertyDescriptor property : BeanUtils.getPropertyDescriptors(ProductViewForList.class)) {
+            if (property.getReadMethod() != null && !property.getName().equals("class")) {
+                fields.add(property.getName());
+            }
+        }
+
+        return Collections.unmodifiableSet(fields);
+    }
+}
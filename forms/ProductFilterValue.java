@@ -0,0 +1,57 @@
+package com.wp.web.forms;
+
+import com.wp.model.enums.TypesEnum;
+
+/**
+ * Данный класс представляет из себя значение фильтра товара, один раз разобранное из json формы
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public final class ProductFilterValue {
+
+    // псевдоним фильтра
+    private final String alias;
+
+    // тип фильтра
+    private final TypesEnum type;
+
+    // значение (для интервала - начало интервала) в том виде, в котором оно пришло
+    private final String value;
+
+    // значение, приведенное к числу (-1, если значение не число)
+    private final long number;
+
+    // конец интервала, приведенный к числу (-1, если значение не число или не передано)
+    private final long number_to;
+
+    public ProductFilterValue(String alias, TypesEnum type, String value, long number, long number_to) {
+        this.alias = alias;
+        this.type = type;
+        this.value = value;
+        this.number = number;
+        this.number_to = number_to;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры">
+    public String getAlias() {
+        return alias;
+    }
+
+    public TypesEnum getType() {
+        return type;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public long getNumber_to() {
+        return number_to;
+    }
+    // </editor-fold>
+}
@@ -1,7 +1,9 @@
 package com.wp.web.forms;
 
 import com.wp.crypto.Hash;
+import com.wp.model.ConfigurationFingerprint;
 import com.wp.model.PropertyName;
+import com.wp.model.SectionFiltersSchema;
 import com.wp.model.composite.PropertySimple;
 import com.wp.model.enums.TypesEnum;
 import static com.wp.model.enums.TypesEnum.INTERVAL;
@@ -57,6 +59,21 @@ public class ProductForm extends SaveFiltersForm {
     // индентификатор первого товара, к которому добавляется конфигурация
     private Long first_object_id;
 
+    // описание фильтров раздела, в который сохраняется товар
+    private transient SectionFiltersSchema schema;
+
+    // разобранные значения фильтров и json, из которого они разобраны
+    private transient List<ProductFilterValue> bound_values;
+    private transient List<?> bound_source;
+
+    // хэш от json с фильтрами и json, от которого он посчитан
+    private transient String filters_hash;
+    private transient String hashed_source;
+
+    // отпечаток конфигурации и разобранные значения фильтров, по которым он посчитан
+    private transient Long fingerprint;
+    private transient List<ProductFilterValue> fingerprint_source;
+
     // <editor-fold defaultstate="collapsed" desc="Подготавливаем данные для сохранения">
     /**
      * Данный метод формируется свойства для товара перед их сохранением
@@ -70,7 +87,7 @@ public class ProductForm extends SaveFiltersForm {
         list.add(new PropertySimple(PropertyName.IS_PUBLISH, is_publish));
 
         if (!Is.Empty(filters)) {
-            list.add(new PropertySimple(PropertyName.HASH, Hash.getHex(filters)));
+            list.add(new PropertySimple(PropertyName.HASH, getFiltersHash()));
         }
 
         if (dimension != null && !dimension.trim().equals("")) {
@@ -92,61 +109,147 @@ public class ProductForm extends SaveFiltersForm {
             }
             list.add(new PropertySimple(PropertyName.IMAGES, imagesList));
         }
-        if (filters_parse != null) {
-            for (LinkedHashMap<?, ?> f : filters_parse) {
-                long value;
-                long valueTo;
-                String valueType = null;
-                LinkedHashMap valuesMap = null;
-                String valueString = null;
-                String rightName = FILTER_PREFIX + MB.escape(f.get(ALIAS) + "", MB.escapeModes.html_sql_js);//убираем все лишнее из имени
-                switch (TypesEnum.findTE(f.get(TYPE) + "")) {
-                    case NUMBER:
-                        valuesMap = (LinkedHashMap) f.get(VALUES);
-                        valueString = valuesMap.get(VALUE)+"";
-                        value = Cast.toLong(valueString);
-                        if (value == -1) {
-                            list.add(new PropertySimple(PropertyName.PRICE, valueString));
-                        } else {
-                            list.add(new PropertySimple(PropertyName.PRICE, value));
-                            list.add(new PropertySimple(PropertyName.PRICE_TO, value));
-                        }
+        for (ProductFilterValue f : bindFilterValues()) {
+            switch (f.getType()) {
+                case NUMBER:
+                    if (f.getNumber() == -1) {
+                        list.add(new PropertySimple(PropertyName.PRICE, f.getValue()));
+                    } else {
+                        list.add(new PropertySimple(PropertyName.PRICE, f.getNumber()));
+                        list.add(new PropertySimple(PropertyName.PRICE_TO, f.getNumber()));
+                    }
+                    break;
+                case INTERVAL:
+                    if (!f.getAlias().equals(price_alias)) {
                         break;
-                    case INTERVAL:
-                        valuesMap = (LinkedHashMap) f.get(VALUES);
-                        if (rightName.replace(FILTER_PREFIX, "").equals(price_alias)) {
-                            if (f.get(VALUES) instanceof Map) {
-                                valuesMap = (LinkedHashMap) f.get(VALUES);
-                                valueString = valuesMap.get(VALUE)+"";
-                                if (Is.Empty(valueString)) {
-                                    valueString = "0";
-                                }
-                                value = Cast.toLong(valueString);
-                                valueTo = Cast.toLong(valuesMap.get(VALUE_TO)+"");
-                                if (value == -1) {
-                                    list.add(new PropertySimple(PropertyName.PRICE, valueString));
-                                    continue;
-                                }
-                                if (valueTo == -1) {
-                                    valueTo = 0l;
-                                }
-                                if (valueTo > 0l && valueTo < value) {
-                                    throw new BadRequestException("Неправильно передан интервал фильтра.");
-                                }
-                                if (rightName.replace(FILTER_PREFIX, "").equals(price_alias)) {
-                                    list.add(new PropertySimple(PropertyName.PRICE, value));
-                                    list.add(new PropertySimple(PropertyName.PRICE_TO, valueTo));
-                                }
-                            }
-
-                        }
+                    }
+                    if (f.getNumber() == -1) {
+                        list.add(new PropertySimple(PropertyName.PRICE, f.getValue()));
                         break;
-                }
+                    }
+                    long valueTo = f.getNumber_to() == -1 ? 0l : f.getNumber_to();
+                    if (valueTo > 0l && valueTo < f.getNumber()) {
+                        throw new BadRequestException("Неправильно передан интервал фильтра.");
+                    }
+                    list.add(new PropertySimple(PropertyName.PRICE, f.getNumber()));
+                    list.add(new PropertySimple(PropertyName.PRICE_TO, valueTo));
+                    break;
             }
         }
 
         return list;
     }
+
+    /**
+     * Данный метод устанавливает описание фильтров раздела, по которому разбираются фильтры товара
+     * @param schema описание фильтров раздела
+     */
+    public void applySchema(SectionFiltersSchema schema) {
+
+        // описания разделов кэшируются, поэтому повторная установка того же описания ничего не меняет
+        if (this.schema == schema) {
+            return;
+        }
+
+        this.schema = schema;
+        this.price_alias = schema.getPrice_alias();
+        this.bound_values = null;
+    }
+
+    /**
+     * Данный метод разбирает json с фильтрами товара в значения фильтров. Разбор делается один раз,
+     * повторные вызовы возвращают уже разобранные значения
+     * @return
+     */
+    public List<ProductFilterValue> bindFilterValues() {
+
+        if (bound_values != null && bound_source == filters_parse) {
+            return bound_values;
+        }
+
+        List<ProductFilterValue> values = new ArrayList<ProductFilterValue>();
+
+        if (filters_parse != null) {
+            for (LinkedHashMap<?, ?> f : filters_parse) {
+                ProductFilterValue value = bindFilterValue(f);
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+        }
+
+        bound_source = filters_parse;
+        bound_values = values;
+
+        return values;
+    }
+
+    /**
+     * Данный метод возвращает хэш от конфигурации товара. Хэш считается один раз для одного json с фильтрами
+     * @return
+     */
+    public String getFiltersHash() {
+
+        if (filters_hash == null || hashed_source != filters) {
+            hashed_source = filters;
+            filters_hash = Hash.getHex(filters);
+        }
+
+        return filters_hash;
+    }
+
+    /**
+     * Данный метод возвращает отпечаток конфигурации товара, не зависящий от порядка фильтров и их значений.
+     * Отпечаток зависит от описания фильтров раздела, поэтому считать его нужно после applySchema. Отпечаток
+     * считается один раз для одних разобранных значений фильтров
+     * @return
+     */
+    public long getFingerprint() {
+
+        List<ProductFilterValue> values = bindFilterValues();
+
+        if (fingerprint == null || fingerprint_source != values) {
+            fingerprint_source = values;
+            fingerprint = ConfigurationFingerprint.of(toProps());
+        }
+
+        return fingerprint;
+    }
+
+    private ProductFilterValue bindFilterValue(Map<?, ?> f) {
+
+        String alias = f.get(ALIAS) + "";
+
+        // Тип фильтра берем из описания раздела, для неизвестных фильтров - из формы
+        TypesEnum type = schema != null ? schema.getType(alias) : null;
+        if (type == null) {
+            alias = MB.escape(alias, MB.escapeModes.html_sql_js);//убираем все лишнее из имени
+            type = TypesEnum.findTE(f.get(TYPE) + "");
+        }
+
+        // Для товара значимы только значения числовых фильтров и интервалов
+        if (type != NUMBER && type != INTERVAL) {
+            return null;
+        }
+
+        if (!(f.get(VALUES) instanceof Map)) {
+            if (type == NUMBER) {
+                throw new BadRequestException("Неправильно передано значение фильтра.");
+            }
+            return null;
+        }
+
+        Map<?, ?> valuesMap = (Map<?, ?>) f.get(VALUES);
+
+        String value = valuesMap.get(VALUE) + "";
+        if (type == INTERVAL && Is.Empty(value)) {
+            value = "0";
+        }
+
+        long valueTo = type == INTERVAL ? Cast.toLong(valuesMap.get(VALUE_TO) + "") : -1;
+
+        return new ProductFilterValue(alias, type, value, Cast.toLong(value), valueTo);
+    }
     // </editor-fold>
 
     // <editor-fold defaultstate="collapsed" desc="Геттеры и сетторы">
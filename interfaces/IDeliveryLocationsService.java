@@ -0,0 +1,37 @@
+package com.wp.servicies.interfaces;
+
+import java.util.List;
+
+/**
+ * Данный класс представляет из себя интерфейс для работы с городами, в которые магазины осуществляют доставку
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IDeliveryLocationsService {
+
+    /**
+     * Получает города доставки магазина
+     *
+     * @param node_id идентификатор узла магазина
+     * @return идентификаторы городов по возрастанию
+     */
+    List<Long> getDeliveryLocations(Long node_id);
+
+    /**
+     * Проверяет, доставляет ли магазин товары в город
+     *
+     * @param node_id идентификатор узла магазина
+     * @param location_id идентификатор города
+     * @return
+     */
+    boolean isDeliveringTo(Long node_id, Long location_id);
+
+    /**
+     * Сохраняет города доставки магазина и переиндексирует товары магазина в сфинксе
+     *
+     * @param node_id идентификатор узла магазина
+     * @param locations_ids идентификаторы городов
+     */
+    void saveDeliveryLocations(Long node_id, List<Long> locations_ids);
+}
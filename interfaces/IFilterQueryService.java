@@ -0,0 +1,34 @@
+package com.wp.servicies.interfaces;
+
+import com.wp.model.FilterQueryPlan;
+import com.wp.model.SectionFiltersSchema;
+
+import java.util.Map;
+
+/**
+ * Данный класс представляет из себя интерфейс для разбора параметров запроса в запрос по фильтрам раздела
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IFilterQueryService {
+
+    /**
+     * Разбирает параметры запроса: оставляет только фильтры раздела и нормализует их значения. Для главного раздела
+     * и разделов без фильтров (описание фильтров пустое) параметры передаются как есть. Одинаковые запросы
+     * возвращают один и тот же объект
+     *
+     * @param section_id идентификатор раздела
+     * @param params параметры запроса
+     * @return разобранный запрос
+     */
+    FilterQueryPlan compile(Long section_id, Map<String, String[]> params);
+
+    /**
+     * Возвращает описание фильтров раздела (псевдонимы, типы и псевдоним фильтра с ценой)
+     *
+     * @param section_id идентификатор раздела
+     * @return описание фильтров раздела
+     */
+    SectionFiltersSchema getSchema(Long section_id);
+}
@@ -0,0 +1,26 @@
+package com.wp.servicies.interfaces;
+
+import com.wp.model.ProductEvent;
+
+/**
+ * Данный класс представляет из себя интерфейс подписчика на события изменения товаров. Все бины, реализующие
+ * этот интерфейс, получают события по порядку. Событие может прийти повторно (например, после перезапуска),
+ * поэтому обработка должна быть идемпотентной
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductEventSubscriber {
+
+    /**
+     * Возвращает имя подписчика (по нему хранится номер последнего обработанного события)
+     */
+    String getName();
+
+    /**
+     * Обрабатывает событие. Если метод выбросил исключение, то событие будет доставлено повторно
+     *
+     * @param event событие изменения товара
+     */
+    void onEvent(ProductEvent event) throws Exception;
+}
@@ -0,0 +1,24 @@
+package com.wp.servicies.interfaces;
+
+import com.wp.model.ProductEvent;
+
+/**
+ * Данный класс представляет из себя интерфейс для очереди событий изменения товаров
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductEventsService {
+
+    /**
+     * Добавляет событие в очередь в текущей транзакции. Подписчики получат событие только после ее коммита
+     *
+     * @param event событие изменения товара
+     */
+    void publish(ProductEvent event);
+
+    /**
+     * Синхронно доставляет подписчикам все накопившиеся события
+     */
+    void dispatch();
+}
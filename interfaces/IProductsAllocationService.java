@@ -0,0 +1,50 @@
+package com.wp.servicies.interfaces;
+
+import com.wp.web.views.AllocationReport;
+
+/**
+ * Данный класс представляет из себя интерфейс для замера памяти, которую выделяют запросы товаров.
+ *
+ * Замер включается настройкой и считает байты, выделенные потоком запроса, по счетчику выделенной памяти потока.
+ * Обработчики контроллера товаров и методы сервиса товаров замеряются целиком, отдельные участки (разбор
+ * параметров, построение моделей и представлений) замеряются явно через {@link #mark()} и {@link #record}
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductsAllocationService {
+
+    /**
+     * Проверяет, включен ли замер
+     *
+     * @return true, если замер включен и счетчик выделенной памяти потока поддерживается
+     */
+    boolean isEnabled();
+
+    /**
+     * Получает отметку для замера участка кода
+     *
+     * @return количество байт, выделенных текущим потоком (-1, если замер выключен)
+     */
+    long mark();
+
+    /**
+     * Учитывает память, выделенную текущим потоком после отметки
+     *
+     * @param name название замеряемого участка
+     * @param mark отметка, полученная {@link #mark()} в начале участка
+     */
+    void record(String name, long mark);
+
+    /**
+     * Получает отчет о выделенной памяти и сборках мусора с момента последнего сброса
+     *
+     * @return отчет (участки по убыванию выделенной памяти)
+     */
+    AllocationReport getReport();
+
+    /**
+     * Сбрасывает накопленные счетчики
+     */
+    void reset();
+}
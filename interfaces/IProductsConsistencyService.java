@@ -0,0 +1,34 @@
+package com.wp.servicies.interfaces;
+
+import com.wp.web.views.ConsistencyReport;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Данный класс представляет из себя интерфейс для сверки индекса сфинкса с БД.
+ *
+ * Запись товара в сфинкс не входит в транзакцию БД, поэтому индекс со временем расходится с БД: в нем остаются
+ * удаленные товары и не хватает сохраненных
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductsConsistencyService {
+
+    /**
+     * Сверяет индекс с БД
+     *
+     * @param repair исправить найденные расхождения
+     * @return отчет о сверке
+     */
+    ConsistencyReport check(boolean repair);
+
+    /**
+     * Получает результаты последних сверок
+     *
+     * @param limit количество сверок
+     * @return
+     */
+    List<Map<String, Object>> getHistory(int limit);
+}
@@ -0,0 +1,57 @@
+package com.wp.servicies.interfaces;
+
+/**
+ * Данный класс представляет из себя интерфейс для быстрой проверки, что товара или группы товаров нет в БД.
+ *
+ * Проверка нужна, чтобы запросы несуществующих товаров (удаленные товары, перебор идентификаторов) не доходили
+ * до БД. Проверка может ошибиться только в одну сторону: отсутствующий товар может быть принят за существующий
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductsExistenceService {
+
+    /**
+     * Проверяет, что товара точно нет в БД
+     *
+     * @param product_id идентификатор товара
+     * @return
+     */
+    boolean isMissingProduct(Long product_id);
+
+    /**
+     * Проверяет, что группы товаров точно нет в БД
+     *
+     * @param group_id идентификатор группы товаров
+     * @return
+     */
+    boolean isMissingGroup(Long group_id);
+
+    /**
+     * Запоминает ненадолго, что товара нет в БД
+     *
+     * @param product_id идентификатор товара
+     */
+    void markMissingProduct(Long product_id);
+
+    /**
+     * Запоминает ненадолго, что группы товаров нет в БД
+     *
+     * @param group_id идентификатор группы товаров
+     */
+    void markMissingGroup(Long group_id);
+
+    /**
+     * Учитывает созданный или измененный товар (сбрасывает отметку о том, что товара нет в БД)
+     *
+     * @param product_id идентификатор товара
+     */
+    void registerProduct(Long product_id);
+
+    /**
+     * Учитывает созданную группу товаров
+     *
+     * @param group_id идентификатор группы товаров
+     */
+    void registerGroup(Long group_id);
+}
@@ -0,0 +1,33 @@
+package com.wp.servicies.interfaces;
+
+import com.wp.web.views.FilterView;
+import com.wp.web.views.ProductFacets;
+
+import java.util.List;
+
+/**
+ * Данный класс представляет из себя интерфейс для подсчета количества товаров по значениям фильтров раздела
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductsFacetsService {
+
+    /**
+     * Получает количество опубликованных товаров по значениям фильтров раздела с учетом выбранных фильтров
+     *
+     * @param section_id идентификатор раздела
+     * @param location_id идентификатор города, которому "принадлежат" товары (0 или null - все города)
+     * @param node_id индентификатор узла магазина (0 или null - все магазины)
+     * @param filters фильтры раздела с установленными значениями
+     * @return количество товаров или null, если индекс раздела ещё строится
+     */
+    ProductFacets getFacets(Long section_id, Long location_id, Long node_id, List<FilterView> filters);
+
+    /**
+     * Помечает данные раздела устаревшими (после изменения товаров раздела)
+     *
+     * @param section_id идентификатор раздела
+     */
+    void invalidate(Long section_id);
+}
@@ -0,0 +1,33 @@
+package com.wp.servicies.interfaces;
+
+/**
+ * Данный класс представляет из себя интерфейс для отложенного пересчета общих свойств групп товаров
+ * (конфигураций). Группа помечается "грязной" и пересчитывается не чаще одного раза за окно ожидания
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductsGroupsService {
+
+    /**
+     * Помечает группу товаров для пересчета. Если метод вызван внутри транзакции, то группа будет помечена только
+     * после её успешного завершения
+     *
+     * @param node_id индентификатор узла (магазина), на котором лежат товары группы
+     * @param group_id идентификатор группы товаров
+     */
+    void markDirty(Long node_id, Long group_id);
+
+    /**
+     * Синхронно пересчитывает группу товаров, если она ожидает пересчета или пересчитывается в данный момент
+     * (для случаев, когда после сохранения необходимо сразу прочитать актуальные данные группы)
+     *
+     * @param group_id идентификатор группы товаров
+     */
+    void flush(Long group_id);
+
+    /**
+     * Синхронно пересчитывает все группы товаров, ожидающие пересчета
+     */
+    void flushAll();
+}
@@ -0,0 +1,29 @@
+package com.wp.servicies.interfaces;
+
+import java.util.List;
+
+/**
+ * Данный класс представляет из себя интерфейс для выборки идентификаторов товаров из сфинкса с ограничением
+ * времени ожидания. Если сфинкс медленно отвечает или недоступен, то запрос отвечается последним удачным
+ * результатом такого же запроса
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductsIndexGuardService {
+
+    /**
+     * Выбирает идентификаторы товаров из сфинкса
+     *
+     * @param settings данные для выборки
+     * @param key ключ запроса (одинаковые запросы имеют одинаковый ключ)
+     * @param allow_stale можно ли ответить последним удачным результатом запроса, если сфинкс недоступен
+     * @return идентификаторы товаров или null, если сфинкс недоступен и ответить нечем
+     */
+    List<Long> select(SphinxSelectSettings settings, String key, boolean allow_stale);
+
+    /**
+     * Проверяет, что обращения к сфинксу приостановлены из-за сбоев
+     */
+    boolean isUnavailable();
+}
@@ -0,0 +1,59 @@
+package com.wp.servicies.interfaces;
+
+import com.wp.model.ProductRankingInput;
+import com.wp.web.views.RankingReport;
+
+import java.util.Collection;
+
+/**
+ * Данный класс представляет из себя интерфейс для расчета веса товаров в выдаче (атрибут product_weight сфинкса).
+ *
+ * Вес - сумма составляющих (IRankingSignal), умноженных на настраиваемые множители
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductsRankingService {
+
+    /**
+     * Считает вес товара
+     *
+     * @param product данные о товаре
+     * @return вес товара
+     */
+    long computeWeight(ProductRankingInput product);
+
+    /**
+     * Записывает вес товара, который был записан в сфинкс (по нему пересчет определяет, изменился ли вес)
+     *
+     * @param product_id идентификатор товара
+     * @param weight вес товара
+     */
+    void storeWeight(long product_id, long weight);
+
+    /**
+     * Пересчитывает вес товаров и записывает в сфинкс только изменившийся вес
+     *
+     * @param products_ids идентификаторы товаров
+     * @param dry_run только посчитать изменения, ничего не записывая
+     * @return отчет о пересчете
+     */
+    RankingReport refresh(Collection<Long> products_ids, boolean dry_run);
+
+    /**
+     * Пересчитывает вес товаров с учетом настройки products_ranking_dry_run (при включенной настройке только
+     * считает изменения)
+     *
+     * @param products_ids идентификаторы товаров
+     * @return отчет о пересчете
+     */
+    RankingReport refresh(Collection<Long> products_ids);
+
+    /**
+     * Показывает, как изменится вес опубликованных товаров раздела, ничего не записывая
+     *
+     * @param section_id идентификатор раздела (0 - все товары)
+     * @return отчет о пересчете
+     */
+    RankingReport preview(Long section_id);
+}
@@ -2,13 +2,18 @@ package com.wp.servicies.interfaces;
 
 import com.wp.model.Product;
 import com.wp.model.ProductGroupProperties;
+import com.wp.model.CompactProduct;
+import com.wp.model.ProductVariantMatrix;
 import com.wp.model.objects.Nodes;
 import com.wp.utils.mybatis.plugins.paging.page.PageContext;
 import com.wp.web.forms.ProductForm;
 import com.wp.web.views.*;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Данный класс представляет из себя интерфейс, для работы с товарами
@@ -18,6 +23,36 @@ import java.util.Map;
  */
 public interface IProductsService {
 
+    /**
+     * Набор данных о товаре, который возвращается при выборке нескольких товаров
+     */
+    enum Projection {
+
+        // данные для списка ({@link ProductViewForList}), например для полосы просмотренных товаров
+        LIST,
+
+        // характеристики конфигурации ({@link ProductConfigurationsViewForList}), например для сравнения
+        CONFIGURATION,
+
+        // полное описание товара ({@link ProductViewForView})
+        VIEW
+    }
+
+    /**
+     * Получатель товаров списка: товары передаются по одному сразу после получения, поэтому весь список не
+     * хранится в памяти
+     */
+    interface ProductsConsumer {
+
+        /**
+         * Принимает очередной товар списка
+         *
+         * @param product товар для списка
+         * @throws IOException если товар не удалось передать дальше (например, клиент закрыл соединение)
+         */
+        void accept(ProductViewForList product) throws IOException;
+    }
+
     /**
      * Удаляет товар
      *
@@ -58,6 +93,22 @@ public interface IProductsService {
      */
     Product getProductModel(Long product_id);
 
+    /**
+     * Получает модель товара для списков: описание и фильтры выбираются из БД только при обращении к ним
+     *
+     * @param product_id индентификатор товара
+     * @return
+     */
+    Product getProductModelForList(Long product_id);
+
+    /**
+     * Получает компактную модель товара (без описания) для обработки большого количества товаров
+     *
+     * @param product_id индентификатор товара
+     * @return
+     */
+    CompactProduct getCompactProductModel(Long product_id);
+
     /**
      * Получает данные о товаре, которые необходимы для просмотра пользователю
      *
@@ -66,6 +117,14 @@ public interface IProductsService {
      */
     ProductViewForView getProductView(Long product_id);
 
+    /**
+     * Получает данные для просмотра по уже собранной модели товара (товар повторно из БД не выбирается)
+     *
+     * @param product модель товара (например, модель сохраненного товара)
+     * @return
+     */
+    ProductViewForView getProductView(Product product);
+
     /**
      * Получает данные о товаре, которые необходимы для формы редактирования
      *
@@ -74,6 +133,13 @@ public interface IProductsService {
      */
     ProductViewForEdit getProductForEdit(Long product_id);
 
+    /**
+     * Обновляет в сфинксе города доставки у всех товаров магазина (после смены городов доставки магазина)
+     *
+     * @param node_id индентификатор узла магазина
+     */
+    void reindexDeliveryLocations(Long node_id);
+
     /**
      * Получает данные о товаре, которые необходимы для списка товаров
      *
@@ -82,6 +148,14 @@ public interface IProductsService {
      */
     ProductViewForList getProductForList(Long product_id);
 
+    /**
+     * Получает данные для списка по уже собранной модели товара (товар повторно из БД не выбирается)
+     *
+     * @param product модель товара (например, модель сохраненного товара)
+     * @return
+     */
+    ProductViewForList getProductForList(Product product);
+
     /**
      * Получает данные о товаре, которые необходимы для списка конфигураций одного товара
      *
@@ -97,9 +171,9 @@ public interface IProductsService {
      * @param product_id индентификатор товара
      * @param group_id идентификатор группы товаров
      * @param form форма с данными о товаре
-     * @return
+     * @return модель сохраненного товара и его конфигурация для списка
      */
-    Long saveProduct(Long node_id, Long product_id, Long group_id, ProductForm form);
+    ProductSaveResult saveProduct(Long node_id, Long product_id, Long group_id, ProductForm form);
 
     /**
      * Получает список товаров для публичного просмотра
@@ -128,6 +202,83 @@ public interface IProductsService {
     List<ProductViewForList> getProductsByNodeId(Long node_id, Long is_active, Long section_id, PageContext pc,
                                                  Map<String, String[]> filters);
 
+    /**
+     * Передает получателю товары для публичного просмотра по мере их получения (то же, что
+     * {@link #getProductsForPublic}, но без списка в памяти)
+     *
+     * @param section_id идентификатор раздела, в котором находятся товары
+     * @param location_id идентификатор города, которому "принадлежат" товары
+     * @param location_to_id идентификатор города, по которому разрешена доставка
+     * @param pc контекст для постраничной навигации
+     * @param filters заполненные фильтры
+     * @param consumer получатель товаров
+     * @throws IOException если получатель не смог принять товар
+     */
+    void streamProductsForPublic(Long section_id, Long location_id, Long location_to_id, PageContext pc,
+                                 Map<String, String[]> filters, ProductsConsumer consumer) throws IOException;
+
+    /**
+     * Передает получателю товары конкретного узла по мере их получения (то же, что {@link #getProductsByNodeId},
+     * но без списка в памяти)
+     *
+     * @param node_id индентификатор узла, на котором лежит товар
+     * @param is_active получить опубликованные/неопубликованные товары (null - все)
+     * @param section_id идентификатор раздела, в котором находятся товары
+     * @param pc контекст для постраничной навигации
+     * @param filters заполненные фильтры
+     * @param consumer получатель товаров
+     * @throws IOException если получатель не смог принять товар
+     */
+    void streamProductsByNodeId(Long node_id, Long is_active, Long section_id, PageContext pc,
+                                Map<String, String[]> filters, ProductsConsumer consumer) throws IOException;
+
+    /**
+     * Передает получателю товары конкретной конфигурации по мере их получения (то же, что
+     * {@link #getProductsByGroupId}, но без списка в памяти)
+     *
+     * @param group_id идентификатор группы товаров
+     * @param section_id идентификатор раздела, в котором находятся товары
+     * @param pc контекст для постраничной навигации
+     * @param filters заполненные фильтры
+     * @param consumer получатель товаров
+     * @throws IOException если получатель не смог принять товар
+     */
+    void streamProductsByGroupId(Long group_id, Long section_id, PageContext pc, Map<String, String[]> filters,
+                                 ProductsConsumer consumer) throws IOException;
+
+    /**
+     * Получает несколько товаров за одно обращение. Товары выбираются из БД одним запросом (он же проверяет
+     * наличие товаров), отсутствующие и удаленные товары пропускаются
+     *
+     * @param products_ids идентификаторы товаров (повторы не учитываются)
+     * @param projection набор данных о товаре
+     * @return товары в порядке переданных идентификаторов (объекты класса, соответствующего набору данных)
+     */
+    List<Object> getProductsByIds(List<Long> products_ids, Projection projection);
+
+    /**
+     * Получает идентификаторы опубликованных товаров раздела (без выборки данных о товарах)
+     *
+     * @param section_id идентификатор раздела, в котором находятся товары
+     * @param pc контекст для постраничной навигации
+     * @return
+     */
+    List<Long> getPublishedProductsIds(Long section_id, PageContext pc);
+
+    /**
+     * Получает идентификаторы товаров из индекса сфинкса по всему каталогу, опубликованных или нет (без выборки
+     * данных о товарах). Товары выбираются по возрастанию идентификатора после указанного, поэтому обход индекса
+     * не пропускает и не повторяет товары при изменении выдачи и не упирается в max_matches сфинкса.
+     * Используется для сверки индекса с БД
+     *
+     * @param group_id идентификатор группы (0 - товары всего каталога, конфигурации группы схлопываются в одну)
+     * @param is_active 1 - опубликованные товары, 0 - неопубликованные, null - все
+     * @param after_id идентификатор последнего выбранного товара (0 - с начала)
+     * @param limit сколько товаров выбрать
+     * @return
+     */
+    List<Long> getIndexedProductsIds(Long group_id, Long is_active, long after_id, int limit);
+
     /**
      * Получает список товаров для конкретной конфигурации
      *
@@ -152,6 +303,23 @@ public interface IProductsService {
     List<ProductConfigurationsViewForList> getProductsByGroupIdForList(Long group_id, Long section_id, PageContext pc,
                                                                        Map<String, String[]> filters);
 
+    /**
+     * Получает конфигурации товаров для списка по их идентификаторам (порядок сохраняется, ненайденные товары
+     * пропускаются)
+     *
+     * @param products_ids идентификаторы товаров
+     * @return
+     */
+    List<ProductConfigurationsViewForList> getProductsConfigurationsForList(List<Long> products_ids);
+
+    /**
+     * Получает матрицу вариантов группы товаров, по которой конфигурации выбираются в памяти
+     *
+     * @param group_id идентификатор группы товаров
+     * @return матрица или null, если она ещё не построена
+     */
+    ProductVariantMatrix getVariantMatrix(Long group_id);
+
     /**
      * Получает список товаров для редактирования по конкретной группе
      *
@@ -160,6 +328,16 @@ public interface IProductsService {
      */
     List<ProductViewForEdit> getProductsByGroupIdForEdit(Long group_id);
 
+    /**
+     * Получает все данные для страницы группы товаров: конфигурации для редактирования, конфигурации, подходящие под
+     * фильтры, свойства группы и усредненный товар. Конфигурации группы выбираются один раз
+     *
+     * @param group_id идентификатор группы товаров
+     * @param filters параметры запроса с выбранными фильтрами
+     * @return
+     */
+    ProductGroupSnapshot getGroupSnapshot(Long group_id, Map<String, String[]> filters);
+
     /**
      * Получает все свойства конфигурации товаров
      *
@@ -168,13 +346,64 @@ public interface IProductsService {
      */
     ProductGroupProperties getGroupPropertiesModel(Long group_id);
 
+    /**
+     * Данный метод записывает в сфинкс новый вес порции товаров (см. IProductsRankingService). Разделы товаров
+     * выбираются одним запросом к БД, модели товаров не собираются
+     *
+     * @param weights идентификатор товара -> вес товара
+     * @return идентификаторы товаров, вес которых записан в сфинкс
+     */
+    Set<Long> updateProductsWeights(Map<Long, Long> weights);
+
+    /**
+     * Данный метод сбрасывает данные товара, которые хранятся в памяти сервера (вызывается подписчиком на события
+     * изменения товаров)
+     *
+     * @param product_id идентификатор товара
+     */
+    void evictProductCaches(Long product_id);
+
+    /**
+     * Данный метод помечает матрицу вариантов группы устаревшей: до пересчета группы выбор конфигураций строится
+     * по самим конфигурациям (вызывается при изменении конфигураций и подписчиком на события)
+     *
+     * @param group_id идентификатор группы товаров
+     */
+    void evictGroupCaches(Long group_id);
+
+    /**
+     * Данный метод получает группу и публикацию действующих товаров одним запросом к БД (модели товаров не
+     * собираются и в кэши не попадают). Используется для сверки индекса с БД
+     *
+     * @param products_ids идентификаторы товаров
+     * @return идентификатор товара -> {группа (0 - товар не в группе), публикация (1 или 0)}
+     */
+    Map<Long, long[]> getIndexAttributes(Collection<Long> products_ids);
+
+    /**
+     * Данный метод удаляет из индекса сфинкса товар, которого нет среди действующих товаров в БД
+     *
+     * @param product_id идентификатор товара
+     * @return true, если товар удален из индекса (false - товар действующий или не найден в БД)
+     */
+    boolean removeFromIndex(Long product_id);
+
+    /**
+     * Данный метод записывает в сфинкс атрибуты товара (магазин, публикация, группа, отпечаток конфигурации)
+     * по сохраненным в БД данным
+     *
+     * @param product_id идентификатор товара
+     */
+    void reindexProductAttributes(Long product_id);
+
     /**
      * Данный метод проверяет уникальность конфигурации товара
      *
      * @param group_id идентификатор группы товаров
-     * @param filters фильтры для текущего товара
+     * @param product_id идентификатор текущего товара (0 для нового товара)
+     * @param fingerprint отпечаток конфигурации текущего товара
      * @param node узел владельца товаров
      * @return уникален или неуникален товар в своей группе
      */
-    boolean checkConfigurationForUnique(Long group_id, Long product_id, String filters, Nodes node);
+    boolean checkConfigurationForUnique(Long group_id, Long product_id, long fingerprint, Nodes node);
 }
@@ -0,0 +1,48 @@
+package com.wp.servicies.interfaces;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Данный класс представляет из себя интерфейс для подсчета просмотров товаров и их популярности
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductsStatsService {
+
+    /**
+     * Учитывает просмотр страницы товара
+     *
+     * @param product_id идентификатор товара
+     */
+    void registerView(long product_id);
+
+    /**
+     * Учитывает переход на товар из списка товаров
+     *
+     * @param product_id идентификатор товара
+     */
+    void registerClick(long product_id);
+
+    /**
+     * Получает составляющую популярности товара, которая учитывается в весе товара
+     *
+     * @param product_id идентификатор товара
+     * @return популярность (0, если у товара нет просмотров)
+     */
+    long getPopularity(long product_id);
+
+    /**
+     * Получает составляющую популярности для нескольких товаров
+     *
+     * @param products_ids идентификаторы товаров
+     * @return популярность товаров (товаров без просмотров в результате нет)
+     */
+    Map<Long, Long> getPopularity(Collection<Long> products_ids);
+
+    /**
+     * Записывает накопленные счетчики в БД и пересчитывает вес товаров, популярность которых изменилась
+     */
+    void flush();
+}
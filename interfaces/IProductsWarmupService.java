@@ -0,0 +1,57 @@
+package com.wp.servicies.interfaces;
+
+import com.wp.web.views.WarmupReport;
+
+import java.util.Map;
+
+/**
+ * Данный класс представляет из себя интерфейс для прогрева кэшей товаров при запуске сервера.
+ *
+ * Сервер запоминает самые частые запросы списков и страниц товаров, при остановке записывает их в БД, а при
+ * запуске выполняет их до того, как начнет принимать запросы
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductsWarmupService {
+
+    /**
+     * Учитывает запрос списка опубликованных товаров
+     *
+     * @param section_id идентификатор раздела
+     * @param location_id идентификатор города, в котором продается товар
+     * @param location_to_id идентификатор города доставки
+     * @param page номер страницы
+     * @param filters фильтры из параметров запроса
+     */
+    void recordPublicListing(Long section_id, Long location_id, Long location_to_id, int page,
+                             Map<String, String[]> filters);
+
+    /**
+     * Учитывает запрос опубликованных товаров магазина
+     *
+     * @param node_id идентификатор магазина
+     * @param section_id идентификатор раздела
+     * @param page номер страницы
+     * @param filters фильтры из параметров запроса
+     */
+    void recordShopListing(Long node_id, Long section_id, int page, Map<String, String[]> filters);
+
+    /**
+     * Учитывает просмотр страницы товара
+     *
+     * @param product_id идентификатор товара
+     */
+    void recordProduct(Long product_id);
+
+    /**
+     * Записывает самые частые запросы сервера вместо записанных раньше (одной транзакцией) и удаляет устаревшие
+     * запросы всех серверов. Вызывается при остановке сервера
+     */
+    void saveTopQueries();
+
+    /**
+     * Возвращает отчет о последнем прогреве (null, если прогрева не было)
+     */
+    WarmupReport getLastReport();
+}
@@ -0,0 +1,26 @@
+package com.wp.servicies.interfaces;
+
+import com.wp.model.ProductRankingInput;
+
+/**
+ * Данный класс представляет из себя интерфейс составляющей веса товара в выдаче. Все бины, реализующие этот
+ * интерфейс, автоматически участвуют в расчете веса (см. IProductsRankingService)
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IRankingSignal {
+
+    /**
+     * Возвращает название составляющей (используется в настройке множителей и в отчетах)
+     */
+    String getName();
+
+    /**
+     * Считает составляющую веса товара
+     *
+     * @param product данные о товаре
+     * @return неотрицательное значение составляющей
+     */
+    long score(ProductRankingInput product);
+}
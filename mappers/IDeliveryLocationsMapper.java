@@ -0,0 +1,47 @@
+package com.wp.mappers.ibatis.postgres;
+
+import org.apache.ibatis.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Данный класс представляет из себя маппер для работы с городами доставки магазинов
+ * (таблица shop_delivery_locations, см. shop_delivery_locations.sql)
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IDeliveryLocationsMapper {
+
+    /**
+     * Получает города доставки всех магазинов
+     *
+     * @return список строк с ключами node_id и locations (идентификаторы городов через запятую)
+     */
+    @Select("SELECT node_id, locations FROM shop_delivery_locations")
+    List<Map<String, Object>> selectAll();
+
+    /**
+     * Получает города доставки магазина
+     *
+     * @param node_id идентификатор узла магазина
+     * @return идентификаторы городов через запятую или null
+     */
+    @Select("SELECT locations FROM shop_delivery_locations WHERE node_id = #{node_id}")
+    String selectByNodeId(@Param("node_id") long node_id);
+
+    /**
+     * Обновляет города доставки магазина
+     *
+     * @return количество обновленных строк
+     */
+    @Update("UPDATE shop_delivery_locations SET locations = #{locations} WHERE node_id = #{node_id}")
+    int update(@Param("node_id") long node_id, @Param("locations") String locations);
+
+    /**
+     * Добавляет города доставки магазина
+     */
+    @Insert("INSERT INTO shop_delivery_locations (node_id, locations) VALUES (#{node_id}, #{locations})")
+    void insert(@Param("node_id") long node_id, @Param("locations") String locations);
+}
@@ -0,0 +1,103 @@
+package com.wp.mappers.ibatis.postgres;
+
+import com.wp.model.ProductEvent;
+import org.apache.ibatis.annotations.*;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Данный класс представляет из себя маппер для работы с очередью событий изменения товаров
+ * (таблицы product_events и product_events_offsets, см. product_events.sql)
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductEventsMapper {
+
+    /**
+     * Добавляет событие в очередь
+     */
+    @Insert("INSERT INTO product_events (type, product_id, node_id, section_id, old_section_id, group_id) " +
+            "VALUES (#{type}, #{product_id}, #{node_id}, #{section_id}, #{old_section_id}, #{group_id})")
+    void insert(ProductEvent event);
+
+    /**
+     * Получает события после указанного, по порядку
+     *
+     * @param last_id номер последнего обработанного события
+     * @param limit максимальное количество событий
+     * @return
+     */
+    @Select("SELECT id, type, product_id, node_id, section_id, old_section_id, group_id, created " +
+            "FROM product_events WHERE id > #{last_id} ORDER BY id LIMIT #{limit}")
+    List<ProductEvent> selectAfter(@Param("last_id") long last_id, @Param("limit") int limit);
+
+    /**
+     * Получает события по номерам (пропущенные ранее события, транзакции которых закоммитились позже)
+     *
+     * @param ids номера событий
+     * @return найденные события по порядку
+     */
+    @Select("<script>SELECT id, type, product_id, node_id, section_id, old_section_id, group_id, created " +
+            "FROM product_events WHERE id IN " +
+            "<foreach item='id' collection='ids' open='(' separator=',' close=')'>#{id}</foreach> ORDER BY id</script>")
+    List<ProductEvent> selectByIds(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Получает номер последнего события в очереди
+     */
+    @Select("SELECT COALESCE(MAX(id), 0) FROM product_events")
+    long selectMaxId();
+
+    /**
+     * Получает номер последнего обработанного подписчиком события
+     *
+     * @return номер события или null, если подписчик еще ничего не обрабатывал
+     */
+    @Select("SELECT last_id FROM product_events_offsets WHERE subscriber = #{subscriber}")
+    Long selectOffset(@Param("subscriber") String subscriber);
+
+    /**
+     * Обновляет номер последнего обработанного подписчиком события
+     *
+     * @return количество обновленных строк
+     */
+    @Update("UPDATE product_events_offsets SET last_id = #{last_id}, updated = now() WHERE subscriber = #{subscriber}")
+    int updateOffset(@Param("subscriber") String subscriber, @Param("last_id") long last_id);
+
+    /**
+     * Добавляет подписчика
+     */
+    @Insert("INSERT INTO product_events_offsets (subscriber, last_id) VALUES (#{subscriber}, #{last_id})")
+    void insertOffset(@Param("subscriber") String subscriber, @Param("last_id") long last_id);
+
+    /**
+     * Отмечает, что подписчики работающего сервера живы (даже если их номера не сдвигались)
+     *
+     * @param subscribers подписчики сервера
+     */
+    @Update("<script>UPDATE product_events_offsets SET updated = now() WHERE subscriber IN " +
+            "<foreach item='s' collection='subscribers' open='(' separator=',' close=')'>#{s}</foreach></script>")
+    void touchOffsets(@Param("subscribers") Collection<String> subscribers);
+
+    /**
+     * Удаляет номера подписчиков, которые давно не обновлялись (сервер остановлен или сменил имя)
+     *
+     * @param before время, раньше которого номера считаются брошенными
+     * @return количество удаленных подписчиков
+     */
+    @Delete("DELETE FROM product_events_offsets WHERE updated < #{before}")
+    int deleteExpiredOffsets(@Param("before") Date before);
+
+    /**
+     * Удаляет старые события, которые обработаны всеми подписчиками
+     *
+     * @param before время, раньше которого события удаляются
+     * @return количество удаленных событий
+     */
+    @Delete("DELETE FROM product_events WHERE created < #{before} " +
+            "AND id <= (SELECT COALESCE(MIN(last_id), 0) FROM product_events_offsets)")
+    int deleteProcessed(@Param("before") Date before);
+}
@@ -0,0 +1,41 @@
+package com.wp.mappers.ibatis.postgres;
+
+import org.apache.ibatis.annotations.*;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Данный класс представляет из себя маппер для работы с весом товаров, записанным в сфинкс
+ * (таблица product_weights, см. product_weights.sql)
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductWeightsMapper {
+
+    /**
+     * Получает вес товаров
+     *
+     * @param ids идентификаторы товаров
+     * @return список строк с ключами product_id и weight
+     */
+    @Select("<script>SELECT product_id, weight FROM product_weights WHERE product_id IN " +
+            "<foreach item='id' collection='ids' open='(' separator=',' close=')'>#{id}</foreach></script>")
+    List<Map<String, Object>> selectByIds(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Обновляет вес товара
+     *
+     * @return количество обновленных строк
+     */
+    @Update("UPDATE product_weights SET weight = #{weight} WHERE product_id = #{product_id}")
+    int update(@Param("product_id") long product_id, @Param("weight") long weight);
+
+    /**
+     * Добавляет вес товара
+     */
+    @Insert("INSERT INTO product_weights (product_id, weight) VALUES (#{product_id}, #{weight})")
+    void insert(@Param("product_id") long product_id, @Param("weight") long weight);
+}
@@ -0,0 +1,80 @@
+package com.wp.mappers.ibatis.postgres;
+
+import com.wp.web.views.ConsistencyReport;
+import org.apache.ibatis.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Данный класс представляет из себя маппер для выборки идентификаторов объектов из БД в обход сфинкса (сверка
+ * индекса с БД, фильтры существующих товаров и групп, товары магазина при недоступном сфинксе) и истории сверок
+ * (таблица products_consistency_runs, см. products_consistency.sql)
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductsConsistencyMapper {
+
+    /**
+     * Получает идентификаторы действующих товаров после указанного, по порядку (постраничный обход без OFFSET)
+     *
+     * @param type_id тип объекта товара
+     * @param states_ids состояния действующих товаров
+     * @param after_id последний полученный идентификатор
+     * @param limit максимальное количество идентификаторов
+     * @return
+     */
+    @Select("<script>SELECT id FROM items WHERE type_id = #{type_id} AND id &gt; #{after_id} AND state_id IN " +
+            "<foreach item='state_id' collection='states_ids' open='(' separator=',' close=')'>#{state_id}</foreach>" +
+            " ORDER BY id LIMIT #{limit}</script>")
+    List<Long> selectProductsIds(@Param("type_id") long type_id, @Param("states_ids") List<Long> states_ids,
+                                 @Param("after_id") long after_id, @Param("limit") int limit);
+
+    /**
+     * Получает идентификаторы объектов типа в любом состоянии после указанного, по порядку
+     *
+     * @param type_id тип объекта
+     * @param after_id последний полученный идентификатор
+     * @param limit максимальное количество идентификаторов
+     * @return
+     */
+    @Select("SELECT id FROM items WHERE type_id = #{type_id} AND id > #{after_id} ORDER BY id LIMIT #{limit}")
+    List<Long> selectItemsIds(@Param("type_id") long type_id, @Param("after_id") long after_id,
+                              @Param("limit") int limit);
+
+    /**
+     * Получает идентификаторы действующих товаров магазина, новые первыми
+     *
+     * @param node_id идентификатор магазина
+     * @param type_id тип объекта товара
+     * @param states_ids состояния действующих товаров
+     * @param offset сколько товаров пропустить
+     * @param limit максимальное количество идентификаторов
+     * @return
+     */
+    @Select("<script>SELECT id FROM items WHERE node_id = #{node_id} AND type_id = #{type_id} AND state_id IN " +
+            "<foreach item='state_id' collection='states_ids' open='(' separator=',' close=')'>#{state_id}</foreach>" +
+            " ORDER BY id DESC LIMIT #{limit} OFFSET #{offset}</script>")
+    List<Long> selectNodeProductsIds(@Param("node_id") long node_id, @Param("type_id") long type_id,
+                                     @Param("states_ids") List<Long> states_ids, @Param("offset") int offset,
+                                     @Param("limit") int limit);
+
+    /**
+     * Сохраняет результат сверки
+     */
+    @Insert("INSERT INTO products_consistency_runs (started, duration_ms, db_count, index_count, missing, ghosts, " +
+            "mismatched, repaired, drift_rate) VALUES (#{started}, #{duration_ms}, #{db_count}, #{index_count}, " +
+            "#{missing}, #{ghosts}, #{mismatched}, #{repaired}, #{drift_rate})")
+    void insertRun(ConsistencyReport report);
+
+    /**
+     * Получает последние результаты сверки
+     *
+     * @param limit количество сверок
+     * @return список строк таблицы products_consistency_runs, последние сверки первыми
+     */
+    @Select("SELECT started, duration_ms, db_count, index_count, missing, ghosts, mismatched, repaired, drift_rate " +
+            "FROM products_consistency_runs ORDER BY id DESC LIMIT #{limit}")
+    List<Map<String, Object>> selectRuns(@Param("limit") int limit);
+}
@@ -0,0 +1,70 @@
+package com.wp.mappers.ibatis.postgres;
+
+import org.apache.ibatis.annotations.*;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Данный класс представляет из себя маппер для работы со счетчиками просмотров товаров
+ * (таблица product_stats, см. product_stats.sql)
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductsStatsMapper {
+
+    /**
+     * Добавляет нулевые счетчики товаров, у которых их еще нет (одним запросом)
+     *
+     * @param ids идентификаторы товаров
+     * @return количество добавленных строк
+     */
+    @Insert("<script>INSERT INTO product_stats (product_id) SELECT d.product_id FROM (VALUES " +
+            "<foreach item='id' collection='ids' separator=','>(#{id}::bigint)</foreach>) AS d (product_id) " +
+            "WHERE NOT EXISTS (SELECT 1 FROM product_stats s WHERE s.product_id = d.product_id)</script>")
+    int insertMissing(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Увеличивает счетчики товаров (одним запросом)
+     *
+     * @param rows строки с ключами product_id, views, clicks (приросты счетчиков)
+     * @return количество обновленных строк
+     */
+    @Update("<script>UPDATE product_stats s SET views = s.views + d.views, clicks = s.clicks + d.clicks FROM (VALUES " +
+            "<foreach item='row' collection='rows' separator=','>" +
+            "(#{row.product_id}::bigint, #{row.views}::bigint, #{row.clicks}::bigint)</foreach>" +
+            ") AS d (product_id, views, clicks) WHERE s.product_id = d.product_id</script>")
+    int incrementAll(@Param("rows") List<Map<String, Long>> rows);
+
+    /**
+     * Получает счетчики товаров
+     *
+     * @param ids идентификаторы товаров
+     * @return список строк с ключами product_id, views, clicks, popularity
+     */
+    @Select("<script>SELECT product_id, views, clicks, popularity FROM product_stats WHERE product_id IN " +
+            "<foreach item='id' collection='ids' open='(' separator=',' close=')'>#{id}</foreach></script>")
+    List<Map<String, Object>> selectByIds(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Получает составляющую популярности, записанную в вес товара
+     *
+     * @param product_id идентификатор товара
+     * @return популярность или null, если счетчиков у товара нет
+     */
+    @Select("SELECT popularity FROM product_stats WHERE product_id = #{product_id}")
+    Long selectPopularity(@Param("product_id") long product_id);
+
+    /**
+     * Записывает составляющую популярности товаров (одним запросом)
+     *
+     * @param rows строки с ключами product_id, popularity
+     */
+    @Update("<script>UPDATE product_stats s SET popularity = d.popularity FROM (VALUES " +
+            "<foreach item='row' collection='rows' separator=','>" +
+            "(#{row.product_id}::bigint, #{row.popularity}::bigint)</foreach>" +
+            ") AS d (product_id, popularity) WHERE s.product_id = d.product_id</script>")
+    void updatePopularityAll(@Param("rows") List<Map<String, Long>> rows);
+}
@@ -0,0 +1,53 @@
+package com.wp.mappers.ibatis.postgres;
+
+import org.apache.ibatis.annotations.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Данный класс представляет из себя маппер для работы с самыми частыми запросами товаров, по которым
+ * прогреваются кэши при запуске сервера (таблица products_warmup, см. products_warmup.sql)
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public interface IProductsWarmupMapper {
+
+    /**
+     * Получает самые частые запросы вида по всем серверам, записанные не раньше указанного времени
+     *
+     * @param kind вид запроса
+     * @param since время, раньше которого записанные запросы не учитываются
+     * @param limit количество запросов
+     * @return список строк с ключами query и hits, частые запросы первыми
+     */
+    @Select("SELECT query, SUM(hits) AS hits FROM products_warmup WHERE kind = #{kind} AND saved >= #{since} " +
+            "GROUP BY query ORDER BY SUM(hits) DESC LIMIT #{limit}")
+    List<Map<String, Object>> selectTop(@Param("kind") String kind, @Param("since") Date since,
+                                        @Param("limit") int limit);
+
+    /**
+     * Удаляет запросы, записанные сервером
+     */
+    @Delete("DELETE FROM products_warmup WHERE server = #{server}")
+    void deleteByServer(@Param("server") String server);
+
+    /**
+     * Удаляет запросы всех серверов, записанные раньше указанного времени (серверы давно остановлены или сменили
+     * имя)
+     *
+     * @param before время, раньше которого запросы считаются устаревшими
+     * @return количество удаленных запросов
+     */
+    @Delete("DELETE FROM products_warmup WHERE saved < #{before}")
+    int deleteExpired(@Param("before") Date before);
+
+    /**
+     * Добавляет запрос
+     */
+    @Insert("INSERT INTO products_warmup (server, kind, query, hits) VALUES (#{server}, #{kind}, #{query}, #{hits})")
+    void insert(@Param("server") String server, @Param("kind") String kind, @Param("query") String query,
+                @Param("hits") long hits);
+}
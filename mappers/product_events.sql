@@ -0,0 +1,21 @@
+-- Очередь событий изменения товаров (пишется в той же транзакции, что и сам товар)
+-- type - CREATED, UPDATED, DELETED, REGROUPED, PUBLISHED
+CREATE TABLE product_events (
+    id             BIGSERIAL PRIMARY KEY,
+    type           VARCHAR(16) NOT NULL,
+    product_id     BIGINT      NOT NULL,
+    node_id        BIGINT      NOT NULL DEFAULT 0,
+    section_id     BIGINT      NOT NULL DEFAULT 0,
+    old_section_id BIGINT      NOT NULL DEFAULT 0,
+    group_id       BIGINT      NOT NULL DEFAULT 0,
+    created        TIMESTAMP   NOT NULL DEFAULT now()
+);
+
+-- Последнее обработанное событие для каждого подписчика (подписчик - имя обработчика и сервера)
+-- updated - когда сервер последний раз отмечал подписчика (номера, не обновлявшиеся дольше срока хранения
+-- событий, удаляются и не задерживают удаление событий)
+CREATE TABLE product_events_offsets (
+    subscriber VARCHAR(128) PRIMARY KEY,
+    last_id    BIGINT       NOT NULL,
+    updated    TIMESTAMP    NOT NULL DEFAULT now()
+);
@@ -0,0 +1,9 @@
+-- Счетчики просмотров товаров
+-- views - просмотры страницы товара, clicks - переходы на товар из списков
+-- popularity - составляющая популярности, которая последней была записана в вес товара в сфинксе
+CREATE TABLE product_stats (
+    product_id BIGINT PRIMARY KEY,
+    views      BIGINT NOT NULL DEFAULT 0,
+    clicks     BIGINT NOT NULL DEFAULT 0,
+    popularity BIGINT NOT NULL DEFAULT 0
+);
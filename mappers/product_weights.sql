@@ -0,0 +1,5 @@
+-- Вес товаров, последним записанный в сфинкс (чтобы при пересчете записывать только изменившийся вес)
+CREATE TABLE product_weights (
+    product_id BIGINT PRIMARY KEY,
+    weight     BIGINT NOT NULL
+);
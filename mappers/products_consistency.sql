@@ -0,0 +1,13 @@
+-- Результаты сверки индекса сфинкса с БД (по ним видно, как быстро индекс расходится с БД)
+CREATE TABLE products_consistency_runs (
+    id          BIGSERIAL PRIMARY KEY,
+    started     TIMESTAMP        NOT NULL,
+    duration_ms BIGINT           NOT NULL,
+    db_count    INTEGER          NOT NULL,
+    index_count INTEGER          NOT NULL,
+    missing     INTEGER          NOT NULL,
+    ghosts      INTEGER          NOT NULL,
+    mismatched  INTEGER          NOT NULL,
+    repaired    INTEGER          NOT NULL,
+    drift_rate  DOUBLE PRECISION NOT NULL
+);
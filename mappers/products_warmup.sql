@@ -0,0 +1,10 @@
+-- Самые частые запросы товаров, записанные сервером при остановке (по ним прогреваются кэши при запуске)
+-- kind - public (список опубликованных товаров), shop (товары магазина), product (страница товара)
+CREATE TABLE products_warmup (
+    server VARCHAR(128)  NOT NULL,
+    kind   VARCHAR(16)   NOT NULL,
+    query  VARCHAR(2048) NOT NULL,
+    hits   BIGINT        NOT NULL,
+    saved  TIMESTAMP     NOT NULL DEFAULT now(),
+    PRIMARY KEY (server, kind, query)
+);
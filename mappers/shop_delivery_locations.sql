@@ -0,0 +1,6 @@
+-- Города, в которые магазин осуществляет доставку
+-- locations - идентификаторы городов через запятую, по возрастанию
+CREATE TABLE shop_delivery_locations (
+    node_id   BIGINT PRIMARY KEY,
+    locations TEXT   NOT NULL DEFAULT ''
+);
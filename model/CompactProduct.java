@@ -0,0 +1,259 @@
+package com.wp.model;
+
+import com.wp.model.composite.PropertySimple;
+import com.wp.model.objects.Items;
+import com.wp.model.sab.States;
+import com.wp.utils.Cast;
+
+import java.util.*;
+
+/**
+ * Данный класс представляет из себя компактную модель товара для хранения большого количества товаров в памяти
+ * (индексы и кэши по всему каталогу).
+ *
+ * В отличие от {@link Product} изображения хранятся массивом long, значения фильтров - массивом по порядковым
+ * номерам фильтров раздела (объекты значений заменяются их идентификаторами), цена и группа - примитивами.
+ * Модель заполняется из объекта товара без промежуточной карты всех свойств. Описание товара не хранится
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public final class CompactProduct {
+
+    private static final long[] NO_IMAGES = new long[0];
+
+    // идентификатор товара
+    private long id;
+
+    // индентификатор узла, на котором лежит товар
+    private long node_id;
+
+    // идентификатор раздела, в котором лежит товар
+    private long section_id;
+
+    // состояние товара
+    private States state;
+
+    // дата создания товара в мс
+    private long date;
+
+    // название товара
+    private String title;
+
+    // идентификаторы изображений товара
+    private long[] images = NO_IMAGES;
+
+    // описание фильтров раздела, по которому разложены значения фильтров
+    private SectionFiltersSchema schema;
+
+    // значения фильтров по порядковым номерам фильтров раздела (null - значение не указано)
+    private Object[] filters;
+
+    // цена товара (0, если цена не указана)
+    private long price;
+
+    // система размеров, в которой был сохранен товар
+    private String dimension;
+
+    // идентификатор группы, в которой лежит товар (0, если товар не в группе)
+    private long group_id;
+
+    // опубликован или нет
+    private boolean published;
+
+    // отпечаток конфигурации товара
+    private long fingerprint;
+
+    private CompactProduct() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Заполняем модель">
+    /**
+     * Данный метод заполняет компактную модель из объекта товара. Значения фильтров, которых нет в описании
+     * фильтров раздела, не сохраняются
+     *
+     * @param obj объект товара со всеми свойствами
+     * @param schema описание фильтров раздела товара
+     * @return
+     */
+    public static CompactProduct from(Items obj, SectionFiltersSchema schema) {
+
+        CompactProduct p = new CompactProduct();
+
+        p.id = obj.getId();
+        p.node_id = obj.getNode().getId();
+        p.state = obj.getState();
+        p.date = obj.getDate_in() == null ? 0l : obj.getDate_in().getTime();
+        p.title = obj.getValue(PropertyName.TITLE, String.class);
+        p.group_id = obj.getValue(PropertyName.GROUP_ID, Long.class, 0l);
+        p.published = obj.getValue(PropertyName.IS_PUBLISH, Long.class, 1l).longValue() == 1l;
+
+        String dimension = obj.getValue(PropertyName.DIMENSION, String.class, (String) null);
+        p.dimension = dimension == null ? null : dimension.intern();
+
+        Object section = obj.getValue(PropertyName.SECTION);
+        p.section_id = section instanceof Items ? ((Items) section).getId() : (Long) section;
+
+        Object price = obj.getValue(PropertyName.PRICE);
+        if (price instanceof Long) {
+            p.price = (Long) price;
+        }
+        else if (price != null) {
+            Long tmp = Cast.toLong(price + "");
+            p.price = tmp == null || tmp <= 0 ? 0l : tmp;
+        }
+
+        List<?> imgs = obj.getValues(PropertyName.IMAGES);
+        if (imgs != null && !imgs.isEmpty()) {
+            p.images = new long[imgs.size()];
+            for (int i = 0; i < p.images.length; i++) {
+                p.images[i] = toId(imgs.get(i));
+            }
+        }
+
+        p.schema = schema;
+        p.filters = new Object[schema.size()];
+
+        for (int i = 0; i < p.filters.length; i++) {
+            p.filters[i] = compactValue(obj.getValues(FILTERS.FILTER_PREFIX + schema.getAlias(i)));
+        }
+
+        Long fingerprint = obj.getValue(ConfigurationFingerprint.PROPERTY_NAME, Long.class, (Long) null);
+        // отпечаток считается по всем фильтрам товара, как и в Product, а не только по фильтрам из описания раздела
+        p.fingerprint = fingerprint != null ? fingerprint : ConfigurationFingerprint.of(obj);
+
+        return p;
+    }
+
+    private static Object compactValue(List<?> values) {
+
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+
+        if (values.size() == 1) {
+            Object value = values.get(0);
+            return value instanceof Items ? (Object) ((Items) value).getId() : value;
+        }
+
+        long[] ids = new long[values.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = toId(values.get(i));
+        }
+
+        return ids;
+    }
+
+    private static long toId(Object value) {
+        return value instanceof Items ? ((Items) value).getId() : Cast.toLong(value + "");
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Значения фильтров">
+    /**
+     * Возвращает значение фильтра: идентификатор значения, список идентификаторов или число/строку
+     *
+     * @param alias псевдоним фильтра
+     * @return значение или null, если оно не указано
+     */
+    public Object getFilterValue(String alias) {
+
+        int index = schema.indexOf(alias);
+
+        if (index < 0) {
+            return null;
+        }
+
+        Object value = filters[index];
+
+        if (value instanceof long[]) {
+            List<Long> list = new ArrayList<Long>();
+            for (long v : (long[]) value) {
+                list.add(v);
+            }
+            return list;
+        }
+
+        return value;
+    }
+
+    /**
+     * Проверяет, указано ли у товара значение фильтра
+     */
+    public boolean hasFilter(String alias) {
+        int index = schema.indexOf(alias);
+        return index >= 0 && filters[index] != null;
+    }
+
+    /**
+     * Возвращает фильтры товара в том же виде, что и {@link Product#getFilters()}. Карта создается при каждом вызове
+     */
+    public Map<String, PropertySimple> getFilters() {
+
+        Map<String, PropertySimple> result = new HashMap<String, PropertySimple>();
+
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] != null) {
+                String name = FILTERS.FILTER_PREFIX + schema.getAlias(i);
+                result.put(name, new PropertySimple(name, getFilterValue(schema.getAlias(i))));
+            }
+        }
+
+        return result;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры">
+    public long getId() {
+        return id;
+    }
+
+    public long getNode_id() {
+        return node_id;
+    }
+
+    public long getSection_id() {
+        return section_id;
+    }
+
+    public States getState() {
+        return state;
+    }
+
+    public Date getDate() {
+        return new Date(date);
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public long[] getImages() {
+        return images;
+    }
+
+    public long getFirstImage() {
+        return images.length > 0 ? images[0] : 0l;
+    }
+
+    public long getPrice() {
+        return price;
+    }
+
+    public String getDimension() {
+        return dimension;
+    }
+
+    public long getGroup_id() {
+        return group_id;
+    }
+
+    public boolean isPublished() {
+        return published;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+    // </editor-fold>
+}
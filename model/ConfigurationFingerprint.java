@@ -0,0 +1,142 @@
+package com.wp.model;
+
+import com.wp.model.composite.PropertySimple;
+import com.wp.model.objects.Items;
+
+import java.util.*;
+
+/**
+ * Данный класс считает 64-битный отпечаток конфигурации товара по значениям его фильтров.
+ *
+ * Отпечаток не зависит от порядка фильтров и порядка значений внутри фильтра, поэтому одинаковые конфигурации,
+ * переданные с клиента в разном виде, дают одно и то же число
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public final class ConfigurationFingerprint {
+
+    // название свойства товара, в котором хранится отпечаток
+    public static final String PROPERTY_NAME = "configuration_fingerprint";
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private ConfigurationFingerprint() {
+    }
+
+    /**
+     * Считает отпечаток по свойствам товара (учитываются только фильтры)
+     *
+     * @param properties свойства товара
+     * @return отпечаток (0, если у товара нет фильтров)
+     */
+    public static long of(Collection<PropertySimple> properties) {
+
+        Map<String, Set<String>> values = new HashMap<String, Set<String>>();
+
+        if (properties != null) {
+            for (PropertySimple property : properties) {
+                if (property.getName() != null && property.getName().startsWith(FILTERS.FILTER_PREFIX)) {
+                    collect(property.getValue(), values(values, property.getName()));
+                }
+            }
+        }
+
+        return of(values);
+    }
+
+    /**
+     * Считает отпечаток по свойствам, сохраненным у товара (для товаров, сохраненных без отпечатка). Значения
+     * каждого фильтра выбираются списком, поэтому отпечаток совпадает с посчитанным по форме при сохранении
+     *
+     * @param item товар со свойствами
+     * @return отпечаток (0, если у товара нет фильтров)
+     */
+    public static long of(Items item) {
+
+        Map<String, Set<String>> values = new HashMap<String, Set<String>>();
+
+        for (String name : item.toMapProperties().keySet()) {
+            if (name != null && name.startsWith(FILTERS.FILTER_PREFIX)) {
+                collect(item.getValues(name), values(values, name));
+            }
+        }
+
+        return of(values);
+    }
+
+    private static long of(Map<String, Set<String>> values) {
+
+        long result = 0l;
+
+        for (Map.Entry<String, Set<String>> filter : values.entrySet()) {
+            // фильтр без значений на отпечаток не влияет
+            if (filter.getValue().isEmpty()) {
+                continue;
+            }
+
+            long value = 0l;
+            for (String v : filter.getValue()) {
+                value += mix(hash(v));
+            }
+
+            // сумма перемешанных хэшей не зависит от порядка слагаемых
+            result += mix(hash(filter.getKey()) * 31 + value);
+        }
+
+        return result;
+    }
+
+    private static Set<String> values(Map<String, Set<String>> values, String name) {
+
+        Set<String> result = values.get(name);
+
+        if (result == null) {
+            result = new HashSet<String>();
+            values.put(name, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Приводит значения фильтра к строкам: одиночное значение и список из одного значения, объект и его
+     * идентификатор, число и его строка дают одно и то же
+     */
+    private static void collect(Object value, Set<String> result) {
+
+        if (value instanceof Collection) {
+            for (Object v : (Collection<?>) value) {
+                collect(v, result);
+            }
+        }
+        else if (value instanceof Items) {
+            result.add(String.valueOf(((Items) value).getId()));
+        }
+        else if (value != null && !String.valueOf(value).trim().equals("")) {
+            result.add(String.valueOf(value).trim());
+        }
+    }
+
+    private static long hash(String s) {
+
+        long h = FNV_OFFSET;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= FNV_PRIME;
+        }
+
+        return h;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,115 @@
+package com.wp.model;
+
+import java.util.*;
+
+/**
+ * Данный класс представляет из себя разобранный запрос по фильтрам раздела: параметры запроса с нормализованными
+ * значениями. Два запроса с одинаковыми фильтрами (параметры в любом порядке, значения списочных фильтров в любом
+ * порядке и с повторами) дают одинаковую каноническую строку
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public final class FilterQueryPlan {
+
+    // идентификатор раздела
+    private final long section_id;
+
+    // параметры фильтров, отсортированные по имени (значения списочных фильтров отсортированы и без повторов)
+    private final Map<String, String[]> filters;
+
+    // каноническая строка запроса
+    private final String canonical;
+
+    public FilterQueryPlan(long section_id, SortedMap<String, String[]> filters) {
+
+        this.section_id = section_id;
+        this.filters = Collections.unmodifiableMap(new LinkedHashMap<String, String[]>(filters));
+
+        StringBuilder sb = new StringBuilder().append(section_id);
+        for (Map.Entry<String, String[]> e : filters.entrySet()) {
+            sb.append('&').append(e.getKey()).append('=');
+            for (int i = 0; i < e.getValue().length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(e.getValue()[i]);
+            }
+        }
+
+        this.canonical = sb.toString();
+    }
+
+    /**
+     * Нормализует значения параметра: убирает пробелы, пустые значения и повторы, сортирует
+     *
+     * @param values значения параметра из запроса
+     * @return значения или null, если значащих значений нет
+     */
+    public static String[] normalize(String[] values) {
+        return normalize(values, true);
+    }
+
+    /**
+     * Нормализует значения параметра: убирает пробелы вокруг значений
+     *
+     * @param values значения параметра из запроса
+     * @param sort убрать ли пустые значения и повторы и отсортировать значения (только для значений, порядок которых
+     *             не важен). Без сортировки значения остаются на своих местах, включая пустые
+     * @return значения или null, если значащих значений нет
+     */
+    public static String[] normalize(String[] values, boolean sort) {
+
+        if (values == null) {
+            return null;
+        }
+
+        Collection<String> result = sort ? new TreeSet<String>() : new ArrayList<String>();
+        boolean meaningful = false;
+
+        for (String value : values) {
+            if (value != null && !value.trim().equals("")) {
+                result.add(value.trim());
+                meaningful = true;
+            }
+            else if (!sort) {
+                result.add("");
+            }
+        }
+
+        return meaningful ? result.toArray(new String[result.size()]) : null;
+    }
+
+    public boolean isEmpty() {
+        return filters.isEmpty();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры">
+    public long getSection_id() {
+        return section_id;
+    }
+
+    public Map<String, String[]> getFilters() {
+        return filters;
+    }
+
+    public String getCanonical() {
+        return canonical;
+    }
+    // </editor-fold>
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FilterQueryPlan && canonical.equals(((FilterQueryPlan) o).canonical);
+    }
+
+    @Override
+    public int hashCode() {
+        return canonical.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return canonical;
+    }
+}
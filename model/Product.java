@@ -58,6 +58,15 @@ public class Product implements IView<Items> {
     
     // хэш от конфигурации товара
     private String hash;
+
+    // отпечаток конфигурации товара
+    private long fingerprint;
+
+    // загружены ли описание, фильтры и отпечаток
+    private boolean loaded = true;
+
+    // загрузчик описания и фильтров для моделей, выбранных без них
+    private transient Loader loader;
     
     public Product() {
     }
@@ -66,6 +75,35 @@ public class Product implements IView<Items> {
         apply(item);
     }
 
+    /**
+     * Данный метод создает модель товара без описания и фильтров (для списков). Описание и фильтры загружаются
+     * загрузчиком при первом обращении к ним
+     *
+     * @param obj объект товара, выбранный без описания и фильтров
+     * @param loader загрузчик описания и фильтров
+     * @return
+     */
+    public static Product light(Items obj, Loader loader) {
+
+        Product product = new Product();
+        product.applyMain(obj);
+        product.loaded = false;
+        product.loader = loader;
+
+        return product;
+    }
+
+    /**
+     * Загрузчик описания и фильтров товара
+     */
+    public interface Loader {
+
+        /**
+         * Возвращает полную модель товара (с теми же условиями выборки, что и у облегченной модели)
+         */
+        Product load(long product_id);
+    }
+
     // <editor-fold defaultstate="collapsed" desc="Обрабатываем полученные данные">
     /**
      * Данный метод обрабатыает свойства объекта и записывает их в нужную переменную класса
@@ -74,8 +112,14 @@ public class Product implements IView<Items> {
      */
     @Override
     public void apply(Items obj) {
-        Map<String, PropertySimple> map = obj.toMapProperties();
+        applyMain(obj);
+        applyHeavy(obj);
+    }
 
+    /**
+     * Данный метод записывает свойства, которые нужны в списках товаров
+     */
+    private void applyMain(Items obj) {
         id = obj.getId();
         node_id = obj.getNode().getId();
         state = obj.getState();
@@ -92,7 +136,6 @@ public class Product implements IView<Items> {
             }
         }
 
-        description = obj.getValue(PropertyName.DESCRIPTION, String.class);
         hash = obj.getValue(PropertyName.HASH, String.class, (String) null);
         dimension = obj.getValue(PropertyName.DIMENSION, String.class, (String) null);
         group_id = obj.getValue(PropertyName.GROUP_ID, Long.class, (Long) null);
@@ -120,6 +163,15 @@ public class Product implements IView<Items> {
                 }
             }
         }
+    }
+
+    /**
+     * Данный метод записывает описание, фильтры и отпечаток конфигурации
+     */
+    private void applyHeavy(Items obj) {
+        Map<String, PropertySimple> map = obj.toMapProperties();
+
+        description = obj.getValue(PropertyName.DESCRIPTION, String.class);
 
         filters = new HashMap<String, PropertySimple>();
         for (Map.Entry<String, PropertySimple> filter : map.entrySet()) {
@@ -128,6 +180,36 @@ public class Product implements IView<Items> {
             }
             filters.put(filter.getKey(), filter.getValue());
         }
+
+        // У товаров, сохраненных до появления отпечатка, считаем его по фильтрам
+        Long stored_fingerprint = obj.getValue(ConfigurationFingerprint.PROPERTY_NAME, Long.class, (Long) null);
+        fingerprint = stored_fingerprint != null ? stored_fingerprint : ConfigurationFingerprint.of(obj);
+
+        loaded = true;
+    }
+
+    /**
+     * Данный метод загружает описание и фильтры, если модель была выбрана без них
+     */
+    private synchronized void ensureLoaded() {
+
+        if (loaded) {
+            return;
+        }
+
+        // Загрузчик не сериализуется: без него описание и фильтры взять неоткуда
+        if (loader == null) {
+            throw new IllegalStateException(String.format("Описание и фильтры товара %s не загружены", id));
+        }
+
+        Product full = loader.load(id);
+
+        description = full.description;
+        filters = full.filters;
+        fingerprint = full.fingerprint;
+
+        loaded = true;
+        loader = null;
     }
     // </editor-fold>
 
@@ -173,6 +255,7 @@ public class Product implements IView<Items> {
     }
 
     public String getDescription() {
+        ensureLoaded();
         return description;
     }
 
@@ -197,6 +280,7 @@ public class Product implements IView<Items> {
     }
 
     public Map<String, PropertySimple> getFilters() {
+        ensureLoaded();
         return filters;
     }
 
@@ -243,5 +327,14 @@ public class Product implements IView<Items> {
     public void setHash(String hash) {
         this.hash = hash;
     }
+
+    public long getFingerprint() {
+        ensureLoaded();
+        return fingerprint;
+    }
+
+    public void setFingerprint(long fingerprint) {
+        this.fingerprint = fingerprint;
+    }
     // </editor-fold>
 }
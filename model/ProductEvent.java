@@ -0,0 +1,134 @@
+package com.wp.model;
+
+import java.util.Date;
+
+/**
+ * Данный класс представляет из себя событие изменения товара из очереди событий (таблица product_events)
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class ProductEvent {
+
+    /**
+     * Типы событий
+     */
+    public enum Type {
+        // товар добавлен
+        CREATED,
+        // товар изменен
+        UPDATED,
+        // товар удален
+        DELETED,
+        // товар добавлен в группу или удален из нее
+        REGROUPED,
+        // товар опубликован
+        PUBLISHED
+    }
+
+    // порядковый номер события
+    private long id;
+
+    // тип события
+    private Type type;
+
+    // идентификатор товара
+    private long product_id;
+
+    // идентификатор узла магазина
+    private long node_id;
+
+    // идентификатор раздела товара
+    private long section_id;
+
+    // идентификатор раздела, в котором товар был до изменения (0, если раздел не менялся)
+    private long old_section_id;
+
+    // идентификатор группы товара (0, если товар не в группе)
+    private long group_id;
+
+    // время события
+    private Date created;
+
+    public ProductEvent() {
+    }
+
+    public ProductEvent(Type type, long product_id, long node_id, long section_id, long group_id) {
+        this.type = type;
+        this.product_id = product_id;
+        this.node_id = node_id;
+        this.section_id = section_id;
+        this.group_id = group_id;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры и сетторы">
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public long getProduct_id() {
+        return product_id;
+    }
+
+    public void setProduct_id(long product_id) {
+        this.product_id = product_id;
+    }
+
+    public long getNode_id() {
+        return node_id;
+    }
+
+    public void setNode_id(long node_id) {
+        this.node_id = node_id;
+    }
+
+    public long getSection_id() {
+        return section_id;
+    }
+
+    public void setSection_id(long section_id) {
+        this.section_id = section_id;
+    }
+
+    public long getOld_section_id() {
+        return old_section_id;
+    }
+
+    public void setOld_section_id(long old_section_id) {
+        this.old_section_id = old_section_id;
+    }
+
+    public long getGroup_id() {
+        return group_id;
+    }
+
+    public void setGroup_id(long group_id) {
+        this.group_id = group_id;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    public void setCreated(Date created) {
+        this.created = created;
+    }
+    // </editor-fold>
+
+    @Override
+    public String toString() {
+        return String.format("%s #%s товара %s", type, id, product_id);
+    }
+}
@@ -0,0 +1,143 @@
+package com.wp.model;
+
+import java.util.Date;
+
+/**
+ * Данный класс представляет из себя данные о товаре, по которым считается его вес в выдаче
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class ProductRankingInput {
+
+    // идентификатор товара
+    private long id;
+
+    // идентификатор узла магазина
+    private long node_id;
+
+    // идентификатор раздела
+    private long section_id;
+
+    // дата создания товара
+    private Date date;
+
+    // количество фотографий
+    private int images_count;
+
+    // указана ли цена
+    private boolean has_price;
+
+    // количество заполненных фильтров
+    private int filled_filters;
+
+    // количество фильтров в разделе
+    private int total_filters;
+
+    // популярность товара (см. IProductsStatsService)
+    private long popularity;
+
+    /**
+     * Данный метод заполняет данные из компактной модели товара
+     *
+     * @param product компактная модель товара
+     * @param schema описание фильтров раздела товара
+     * @param popularity популярность товара
+     * @return
+     */
+    public static ProductRankingInput of(CompactProduct product, SectionFiltersSchema schema, long popularity) {
+
+        ProductRankingInput input = new ProductRankingInput();
+
+        input.id = product.getId();
+        input.node_id = product.getNode_id();
+        input.section_id = product.getSection_id();
+        input.date = product.getDate();
+        input.images_count = product.getImages().length;
+        input.has_price = !schema.getPrice_alias().equals("") && product.hasFilter(schema.getPrice_alias());
+        input.total_filters = schema.size();
+        input.popularity = popularity;
+
+        for (String alias : schema.getAliases()) {
+            if (product.hasFilter(alias)) {
+                input.filled_filters++;
+            }
+        }
+
+        return input;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры и сетторы">
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getNode_id() {
+        return node_id;
+    }
+
+    public void setNode_id(long node_id) {
+        this.node_id = node_id;
+    }
+
+    public long getSection_id() {
+        return section_id;
+    }
+
+    public void setSection_id(long section_id) {
+        this.section_id = section_id;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public void setDate(Date date) {
+        this.date = date;
+    }
+
+    public int getImages_count() {
+        return images_count;
+    }
+
+    public void setImages_count(int images_count) {
+        this.images_count = images_count;
+    }
+
+    public boolean isHas_price() {
+        return has_price;
+    }
+
+    public void setHas_price(boolean has_price) {
+        this.has_price = has_price;
+    }
+
+    public int getFilled_filters() {
+        return filled_filters;
+    }
+
+    public void setFilled_filters(int filled_filters) {
+        this.filled_filters = filled_filters;
+    }
+
+    public int getTotal_filters() {
+        return total_filters;
+    }
+
+    public void setTotal_filters(int total_filters) {
+        this.total_filters = total_filters;
+    }
+
+    public long getPopularity() {
+        return popularity;
+    }
+
+    public void setPopularity(long popularity) {
+        this.popularity = popularity;
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,437 @@
+package com.wp.model;
+
+import java.util.*;
+
+/**
+ * Данный класс представляет из себя компактную матрицу вариантов для группы товаров (конфигураций).
+ *
+ * Для каждого значения фильтра хранится битовая маска конфигураций, у которых это значение выбрано. Выбор
+ * варианта, недоступные для выбора значения и интервал цен для выбора считаются в памяти, без запроса в сфинкс.
+ * Матрица строится при пересчете свойств группы и сохраняется в папке группы
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class ProductVariantMatrix {
+
+    // название свойства папки группы, в котором хранится матрица
+    public static final String PROPERTY_NAME = "variant_matrix";
+
+    // значение цены, если цена у конфигурации не указана
+    public static final long NO_PRICE = -1l;
+
+    // идентификаторы конфигураций (номер конфигурации в матрице == номер бита в масках)
+    private long[] ids = new long[0];
+
+    // цены конфигураций
+    private long[] prices = new long[0];
+
+    // фильтры со списком значений (select, radio)
+    private List<VariantFilter> filters = new ArrayList<VariantFilter>();
+
+    // псевдонимы всех числовых фильтров конфигураций, а не только различающихся: по ним выбор в памяти не делается
+    // (даже одинаковое у всех конфигураций значение может не попасть в диапазон запроса, это проверяет сфинкс)
+    private List<String> numeric_aliases = new ArrayList<String>();
+
+    public ProductVariantMatrix() {
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Выбор вариантов">
+    /**
+     * Данный метод выбирает конфигурации, подходящие под выбранные значения фильтров. Внутри одного фильтра
+     * значения объединяются через ИЛИ, между фильтрами через И
+     *
+     * @param selected выбранные значения (идентификатор фильтра -> идентификаторы значений)
+     * @return результат выбора
+     */
+    public Selection select(Map<Long, Set<Long>> selected) {
+
+        int size = ids.length;
+
+        // маски по каждому фильтру, который участвует в выборе
+        BitSet[] filter_masks = new BitSet[filters.size()];
+        BitSet matched = full(size);
+
+        for (int i = 0; i < filters.size(); i++) {
+            VariantFilter filter = filters.get(i);
+            Set<Long> values = selected == null ? null : selected.get(filter.getId());
+
+            if (values == null || values.isEmpty()) {
+                continue;
+            }
+
+            BitSet mask = new BitSet(size);
+            for (int v = 0; v < filter.getValues().length; v++) {
+                if (values.contains(filter.getValues()[v])) {
+                    mask.or(filter.mask(v));
+                }
+            }
+
+            filter_masks[i] = mask;
+            matched.and(mask);
+        }
+
+        Selection selection = new Selection();
+
+        long min_price = NO_PRICE;
+        long max_price = NO_PRICE;
+
+        for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+            selection.ids.add(ids[i]);
+
+            long price = prices[i];
+            if (price == NO_PRICE) {
+                continue;
+            }
+            if (min_price == NO_PRICE || price < min_price) {
+                min_price = price;
+            }
+            if (max_price == NO_PRICE || price > max_price) {
+                max_price = price;
+            }
+        }
+
+        selection.min_price = min_price == NO_PRICE ? null : min_price;
+        selection.max_price = max_price == NO_PRICE ? null : max_price;
+
+        // Значение доступно, если есть конфигурация с этим значением, подходящая под выбор во всех остальных фильтрах
+        for (int i = 0; i < filters.size(); i++) {
+            VariantFilter filter = filters.get(i);
+
+            BitSet others = full(size);
+            for (int j = 0; j < filter_masks.length; j++) {
+                if (j != i && filter_masks[j] != null) {
+                    others.and(filter_masks[j]);
+                }
+            }
+
+            List<Long> available = new ArrayList<Long>();
+            for (int v = 0; v < filter.getValues().length; v++) {
+                if (filter.mask(v).intersects(others)) {
+                    available.add(filter.getValues()[v]);
+                }
+            }
+
+            selection.available.put(filter.getId(), available);
+        }
+
+        return selection;
+    }
+
+    /**
+     * Проверяет, может ли матрица ответить на запрос с переданными параметрами (по числовым фильтрам выбор
+     * выполняется в сфинксе)
+     *
+     * @param params параметры запроса
+     * @return true, если выбор можно сделать в памяти
+     */
+    public boolean canSelect(Map<String, String[]> params) {
+
+        if (params == null) {
+            return true;
+        }
+
+        for (String key : params.keySet()) {
+            for (String alias : numeric_aliases) {
+                if (isParamOf(key, alias)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Проверяет, что параметр относится к фильтру: равен псевдониму или продолжает его через "_" или "["
+     * (price_to, color[]), но не другой псевдоним с тем же началом (color10 для color1)
+     */
+    private static boolean isParamOf(String key, String alias) {
+
+        if (key.equals(alias)) {
+            return true;
+        }
+
+        if (key.length() <= alias.length() || !key.startsWith(alias)) {
+            return false;
+        }
+
+        char next = key.charAt(alias.length());
+
+        return next == '_' || next == '[';
+    }
+
+    private static BitSet full(int size) {
+        BitSet bits = new BitSet(size);
+        bits.set(0, size);
+        return bits;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Построение матрицы">
+    /**
+     * Данный класс собирает матрицу по конфигурациям группы
+     */
+    public static class Builder {
+
+        private final List<Long> ids = new ArrayList<Long>();
+
+        private final List<Long> prices = new ArrayList<Long>();
+
+        // фильтры в порядке появления (идентификатор фильтра -> фильтр)
+        private final LinkedHashMap<Long, FilterBuilder> filters = new LinkedHashMap<Long, FilterBuilder>();
+
+        private final Set<String> numeric_aliases = new LinkedHashSet<String>();
+
+        /**
+         * Добавляет конфигурацию в матрицу, все последующие значения относятся к ней
+         *
+         * @param id идентификатор конфигурации
+         * @param price цена конфигурации или null
+         */
+        public Builder addConfiguration(long id, Long price) {
+            ids.add(id);
+            prices.add(price == null || price <= 0 ? NO_PRICE : price);
+            return this;
+        }
+
+        /**
+         * Добавляет выбранное значение фильтра для последней добавленной конфигурации
+         */
+        public Builder addValue(long filter_id, String alias, String type, long value) {
+
+            FilterBuilder filter = filters.get(filter_id);
+
+            if (filter == null) {
+                filter = new FilterBuilder(filter_id, alias, type);
+                filters.put(filter_id, filter);
+            }
+
+            BitSet mask = filter.values.get(value);
+            if (mask == null) {
+                mask = new BitSet();
+                filter.values.put(value, mask);
+            }
+
+            mask.set(ids.size() - 1);
+            return this;
+        }
+
+        /**
+         * Запоминает числовой фильтр конфигураций
+         */
+        public Builder addNumeric(String alias) {
+            numeric_aliases.add(alias);
+            return this;
+        }
+
+        public ProductVariantMatrix build() {
+
+            ProductVariantMatrix matrix = new ProductVariantMatrix();
+
+            matrix.ids = new long[ids.size()];
+            matrix.prices = new long[prices.size()];
+            for (int i = 0; i < ids.size(); i++) {
+                matrix.ids[i] = ids.get(i);
+                matrix.prices[i] = prices.get(i);
+            }
+
+            for (FilterBuilder f : filters.values()) {
+                // значение, которое есть у всех конфигураций, не влияет на выбор
+                if (f.values.size() == 1 && f.values.firstEntry().getValue().cardinality() == ids.size()) {
+                    continue;
+                }
+
+                VariantFilter filter = new VariantFilter();
+                filter.setId(f.id);
+                filter.setAlias(f.alias);
+                filter.setType(f.type);
+
+                long[] values = new long[f.values.size()];
+                long[][] masks = new long[f.values.size()][];
+                int i = 0;
+                for (Map.Entry<Long, BitSet> v : f.values.entrySet()) {
+                    values[i] = v.getKey();
+                    masks[i] = v.getValue().toLongArray();
+                    i++;
+                }
+
+                filter.setValues(values);
+                filter.setMasks(masks);
+                matrix.filters.add(filter);
+            }
+
+            matrix.numeric_aliases = new ArrayList<String>(numeric_aliases);
+
+            return matrix;
+        }
+
+        private static class FilterBuilder {
+
+            private final long id;
+
+            private final String alias;
+
+            private final String type;
+
+            private final TreeMap<Long, BitSet> values = new TreeMap<Long, BitSet>();
+
+            private FilterBuilder(long id, String alias, String type) {
+                this.id = id;
+                this.alias = alias;
+                this.type = type;
+            }
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Вспомогательные классы">
+    /**
+     * Фильтр матрицы: значения и маски конфигураций для каждого значения
+     */
+    public static class VariantFilter {
+
+        // идентификатор фильтра
+        private long id;
+
+        // псевдоним фильтра
+        private String alias;
+
+        // тип фильтра (select, radio)
+        private String type;
+
+        // идентификаторы значений, отсортированные по возрастанию
+        private long[] values;
+
+        // маски конфигураций для каждого значения (BitSet.toLongArray())
+        private long[][] masks;
+
+        // развернутые маски, создаются при первом обращении
+        private transient BitSet[] bits;
+
+        /**
+         * Возвращает маску конфигураций для значения с номером index
+         */
+        BitSet mask(int index) {
+            BitSet[] cached = bits;
+            if (cached == null) {
+                cached = new BitSet[masks.length];
+                for (int i = 0; i < masks.length; i++) {
+                    cached[i] = BitSet.valueOf(masks[i]);
+                }
+                bits = cached;
+            }
+            return cached[index];
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public void setId(long id) {
+            this.id = id;
+        }
+
+        public String getAlias() {
+            return alias;
+        }
+
+        public void setAlias(String alias) {
+            this.alias = alias;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public long[] getValues() {
+            return values;
+        }
+
+        public void setValues(long[] values) {
+            this.values = values;
+        }
+
+        public long[][] getMasks() {
+            return masks;
+        }
+
+        public void setMasks(long[][] masks) {
+            this.masks = masks;
+            this.bits = null;
+        }
+    }
+
+    /**
+     * Результат выбора вариантов
+     */
+    public static class Selection {
+
+        // подходящие конфигурации в порядке матрицы
+        private final List<Long> ids = new ArrayList<Long>();
+
+        // значения, которые ещё можно выбрать (идентификатор фильтра -> идентификаторы значений)
+        private final Map<Long, List<Long>> available = new HashMap<Long, List<Long>>();
+
+        // минимальная цена среди подходящих конфигураций
+        private Long min_price;
+
+        // максимальная цена среди подходящих конфигураций
+        private Long max_price;
+
+        public List<Long> getIds() {
+            return ids;
+        }
+
+        public Map<Long, List<Long>> getAvailable() {
+            return available;
+        }
+
+        public Long getMin_price() {
+            return min_price;
+        }
+
+        public Long getMax_price() {
+            return max_price;
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры и сетторы">
+    public long[] getIds() {
+        return ids;
+    }
+
+    public void setIds(long[] ids) {
+        this.ids = ids;
+    }
+
+    public long[] getPrices() {
+        return prices;
+    }
+
+    public void setPrices(long[] prices) {
+        this.prices = prices;
+    }
+
+    public List<VariantFilter> getFilters() {
+        return filters;
+    }
+
+    public void setFilters(List<VariantFilter> filters) {
+        this.filters = filters;
+    }
+
+    public List<String> getNumeric_aliases() {
+        return numeric_aliases;
+    }
+
+    public void setNumeric_aliases(List<String> numeric_aliases) {
+        this.numeric_aliases = numeric_aliases;
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,99 @@
+package com.wp.model;
+
+import com.wp.model.enums.TypesEnum;
+
+import java.util.*;
+
+/**
+ * Данный класс представляет из себя описание фильтров раздела: псевдонимы фильтров с их типами и псевдоним
+ * фильтра с ценой. Используется для проверки параметров запроса и данных формы товара
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public final class SectionFiltersSchema {
+
+    // пустое описание (корневой раздел или раздел без фильтров)
+    public static final SectionFiltersSchema EMPTY =
+            new SectionFiltersSchema(0l, "", Collections.<String, TypesEnum>emptyMap());
+
+    // идентификатор раздела
+    private final long section_id;
+
+    // псевдоним фильтра с ценой
+    private final String price_alias;
+
+    // типы фильтров раздела (псевдоним -> тип), в порядке фильтров раздела
+    private final Map<String, TypesEnum> types;
+
+    // порядковые номера фильтров раздела (псевдоним -> номер)
+    private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+    // псевдонимы фильтров по порядковым номерам
+    private final String[] aliases;
+
+    public SectionFiltersSchema(long section_id, String price_alias, Map<String, TypesEnum> types) {
+        this.section_id = section_id;
+        this.price_alias = price_alias == null ? "" : price_alias;
+        this.types = Collections.unmodifiableMap(new LinkedHashMap<String, TypesEnum>(types));
+        this.aliases = types.keySet().toArray(new String[types.size()]);
+
+        for (int i = 0; i < aliases.length; i++) {
+            indexes.put(aliases[i], i);
+        }
+    }
+
+    /**
+     * Проверяет, есть ли фильтр в разделе
+     */
+    public boolean contains(String alias) {
+        return types.containsKey(alias);
+    }
+
+    /**
+     * Возвращает тип фильтра или null, если фильтра в разделе нет
+     */
+    public TypesEnum getType(String alias) {
+        return types.get(alias);
+    }
+
+    /**
+     * Возвращает порядковый номер фильтра или -1, если фильтра в разделе нет
+     */
+    public int indexOf(String alias) {
+        Integer index = indexes.get(alias);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Возвращает псевдоним фильтра по его порядковому номеру
+     */
+    public String getAlias(int index) {
+        return aliases[index];
+    }
+
+    /**
+     * Возвращает количество фильтров раздела
+     */
+    public int size() {
+        return aliases.length;
+    }
+
+    public boolean isPrice(String alias) {
+        return !price_alias.equals("") && price_alias.equals(alias);
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры">
+    public long getSection_id() {
+        return section_id;
+    }
+
+    public String getPrice_alias() {
+        return price_alias;
+    }
+
+    public Set<String> getAliases() {
+        return types.keySet();
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,71 @@
+package com.wp.servicies.impl;
+
+/**
+ * Данный класс представляет из себя автомат, который перестает пропускать обращения к внешнему сервису после
+ * нескольких сбоев подряд. Через заданное время пропускается одно пробное обращение: если оно успешно, то
+ * обращения снова пропускаются, если нет - автомат остается разомкнутым еще на то же время
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class CircuitBreaker {
+
+    // количество сбоев подряд, после которого обращения перестают пропускаться
+    private final int failures_threshold;
+
+    // сколько (в мс) обращения не пропускаются
+    private final long open_ms;
+
+    // количество сбоев подряд
+    private int failures;
+
+    // время последнего сбоя, после которого автомат разомкнут
+    private long opened_at;
+
+    // пробное обращение уже пропущено
+    private boolean probing;
+
+    public CircuitBreaker(int failures_threshold, long open_ms) {
+        this.failures_threshold = failures_threshold;
+        this.open_ms = open_ms;
+    }
+
+    /**
+     * Проверяет, можно ли обратиться к сервису
+     */
+    public synchronized boolean allowRequest() {
+
+        if (failures < failures_threshold) {
+            return true;
+        }
+
+        if (!probing && System.currentTimeMillis() - opened_at >= open_ms) {
+            probing = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    public synchronized void onSuccess() {
+        failures = 0;
+        probing = false;
+    }
+
+    public synchronized void onFailure() {
+
+        failures++;
+        probing = false;
+
+        if (failures >= failures_threshold) {
+            opened_at = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Проверяет, разомкнут ли автомат (обращения не пропускаются, кроме пробных)
+     */
+    public synchronized boolean isOpen() {
+        return failures >= failures_threshold;
+    }
+}
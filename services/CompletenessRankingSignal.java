@@ -0,0 +1,33 @@
+package com.wp.servicies.impl;
+
+import com.wp.model.ProductRankingInput;
+import com.wp.servicies.interfaces.IRankingSignal;
+import org.springframework.stereotype.Component;
+
+/**
+ * Составляющая веса за заполненность карточки товара: фотографии и заполненные фильтры раздела
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Component
+public class CompletenessRankingSignal implements IRankingSignal {
+
+    @Override
+    public String getName() {
+        return "completeness";
+    }
+
+    @Override
+    public long score(ProductRankingInput product) {
+
+        long score = product.getImages_count() > 0 ? 2 : 0;
+
+        // заполнена хотя бы половина фильтров раздела
+        if (product.getTotal_filters() > 0 && product.getFilled_filters() * 2 >= product.getTotal_filters()) {
+            score += 1;
+        }
+
+        return score;
+    }
+}
@@ -0,0 +1,259 @@
+package com.wp.servicies.impl;
+
+import com.wp.mappers.ibatis.postgres.IDeliveryLocationsMapper;
+import com.wp.servicies.interfaces.IDeliveryLocationsService;
+import com.wp.servicies.interfaces.IProductsService;
+import com.wp.utils.Cast;
+import com.wp.utils.Is;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.test.context.transaction.TransactionConfiguration;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Данный сервис реализует методы интерфейса для работы с городами доставки магазинов.
+ *
+ * Города доставки всех магазинов держатся в памяти: каждому городу выдается порядковый номер, а города магазина
+ * хранятся битовой маской по этим номерам (несколько сотен байт на магазин даже при тысячах городов). Маски
+ * магазинов живут в кэше ограниченное время: изменения, сохраненные на другом узле кластера, подхватываются
+ * после истечения срока жизни записи
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Service
+@TransactionConfiguration(transactionManager = "transactionPostgresManager")
+@Transactional(rollbackFor = Exception.class)
+public class DeliveryLocationsServiceImpl extends AService<IDeliveryLocationsService>
+        implements IDeliveryLocationsService {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Сервис для работы с товарами
+    @Autowired
+    IProductsService _productsService;
+
+    // Маппер для работы с городами доставки
+    @Autowired
+    IDeliveryLocationsMapper _deliveryLocationsMapper;
+    // </editor-fold>
+
+    // Сколько магазинов держать в кэше городов доставки
+    @Value("${delivery_locations_cache_size:50000}")
+    protected int CACHE_SIZE = 50000;
+
+    // Время жизни городов доставки магазина в кэше (мс)
+    @Value("${delivery_locations_cache_ttl:300000}")
+    protected long CACHE_TTL_MS = 300000;
+
+    // переменная, для работы с лог-файлами
+    private Logger log = Logger.getLogger(DeliveryLocationsServiceImpl.class);
+
+    // порядковые номера городов (идентификатор города -> номер бита)
+    private final Map<Long, Integer> locations_indexes = new HashMap<Long, Integer>();
+
+    // идентификаторы городов по порядковым номерам
+    private final List<Long> locations = new ArrayList<Long>();
+
+    // города доставки магазинов (идентификатор узла -> маска городов)
+    private LruCache<Long, BitSet> shops;
+
+    // поток для переиндексации товаров магазина после смены городов доставки
+    private ExecutorService reindexer;
+
+    // <editor-fold defaultstate="collapsed" desc="Загрузка городов доставки">
+    @PostConstruct
+    public void init() {
+
+        shops = new LruCache<Long, BitSet>(CACHE_SIZE, CACHE_TTL_MS);
+
+        reindexer = Executors.newSingleThreadExecutor(
+                new ProductsGroupsServiceImpl.NamedThreadFactory("delivery-locations-reindex"));
+
+        try {
+            for (Map<String, Object> row : _deliveryLocationsMapper.selectAll()) {
+                shops.put(Cast.toLong(row.get("node_id") + ""), toBits(parse((String) row.get("locations"))));
+            }
+        }
+        catch (Exception ex) {
+            log.error("Не удалось загрузить города доставки магазинов", ex);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        reindexer.shutdown();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем города доставки">
+    @Override
+    @Transactional(readOnly = true)
+    public List<Long> getDeliveryLocations(Long node_id) {
+
+        BitSet bits = getBits(node_id);
+
+        List<Long> result = new ArrayList<Long>();
+
+        synchronized (locations) {
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                result.add(locations.get(i));
+            }
+        }
+
+        Collections.sort(result);
+
+        return result;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public boolean isDeliveringTo(Long node_id, Long location_id) {
+
+        Integer index;
+
+        synchronized (locations) {
+            index = locations_indexes.get(location_id);
+        }
+
+        return index != null && getBits(node_id).get(index);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Сохраняем города доставки">
+    @Override
+    public void saveDeliveryLocations(final Long node_id, List<Long> locations_ids) {
+
+        TreeSet<Long> sorted = new TreeSet<Long>();
+        if (!Is.Empty(locations_ids)) {
+            for (Long location_id : locations_ids) {
+                if (location_id != null && location_id > 0) {
+                    sorted.add(location_id);
+                }
+            }
+        }
+
+        String value = join(sorted);
+
+        if (_deliveryLocationsMapper.update(node_id, value) == 0) {
+            _deliveryLocationsMapper.insert(node_id, value);
+        }
+
+        final BitSet bits = toBits(sorted);
+
+        // Кэш обновляется и товары магазина переиндексируются только после фиксации транзакции, чтобы при откате
+        // в памяти не остались несохраненные города, а поиск по городу доставки сразу учитывал изменения
+        final Runnable apply = new Runnable() {
+            @Override
+            public void run() {
+
+                shops.put(node_id, bits);
+
+                reindexer.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            _productsService.reindexDeliveryLocations(node_id);
+                        }
+                        catch (Exception ex) {
+                            log.error(String.format("Не удалось переиндексировать товары магазина %s.", node_id), ex);
+                        }
+                    }
+                });
+            }
+        };
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    apply.run();
+                }
+            });
+        }
+        else {
+            apply.run();
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Вспомогательные методы">
+    private BitSet getBits(Long node_id) {
+
+        if (node_id == null) {
+            return new BitSet();
+        }
+
+        BitSet bits = shops.get(node_id);
+
+        if (bits == null) {
+            // Магазин мог быть сохранен на другом узле кластера
+            bits = toBits(parse(_deliveryLocationsMapper.selectByNodeId(node_id)));
+            shops.put(node_id, bits);
+        }
+
+        return bits;
+    }
+
+    private BitSet toBits(Collection<Long> locations_ids) {
+
+        BitSet bits = new BitSet();
+
+        synchronized (locations) {
+            for (Long location_id : locations_ids) {
+                Integer index = locations_indexes.get(location_id);
+
+                if (index == null) {
+                    index = locations.size();
+                    locations.add(location_id);
+                    locations_indexes.put(location_id, index);
+                }
+
+                bits.set(index);
+            }
+        }
+
+        return bits;
+    }
+
+    private static List<Long> parse(String value) {
+
+        List<Long> result = new ArrayList<Long>();
+
+        if (Is.Empty(value)) {
+            return result;
+        }
+
+        for (String id : value.split(",")) {
+            if (!id.trim().equals("")) {
+                result.add(Cast.toLong(id.trim()));
+            }
+        }
+
+        return result;
+    }
+
+    private static String join(Collection<Long> ids) {
+
+        StringBuilder sb = new StringBuilder();
+
+        for (Long id : ids) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(id);
+        }
+
+        return sb.toString();
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,169 @@
+package com.wp.servicies.impl;
+
+import com.wp.model.FilterQueryPlan;
+import com.wp.model.PropertyName;
+import com.wp.model.SectionFiltersSchema;
+import com.wp.model.enums.TypesEnum;
+import com.wp.model.objects.Items;
+import com.wp.servicies.interfaces.IFilterQueryService;
+import com.wp.servicies.interfaces.ISectionsAndFiltersService;
+import com.wp.utils.Is;
+import com.wp.utils.mybatis.plugins.conditions.ExtendContext;
+import com.wp.web.views.FilterView;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+
+/**
+ * Данный сервис реализует разбор параметров запроса в запрос по фильтрам раздела.
+ *
+ * Описания фильтров раздела и разобранные запросы кэшируются, поэтому на каждый запрос остается только
+ * нормализация параметров. Для раздела с фильтрами остаются только параметры фильтров раздела (страница, метки
+ * рекламы и другие параметры отбрасываются, иначе каждый их вариант стал бы отдельным запросом в кэше). Для
+ * главного раздела и разделов без фильтров описания фильтров нет, поэтому параметры передаются дальше как есть -
+ * их разбирает сервис разделов
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Service
+public class FilterQueryServiceImpl extends AService<IFilterQueryService> implements IFilterQueryService {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Сервис для работы с разделами
+    @Autowired
+    ISectionsAndFiltersService _sectionsService;
+    // </editor-fold>
+
+    // описания фильтров разделов (идентификатор раздела -> описание)
+    private final LruCache<Long, SectionFiltersSchema> schemas =
+            new LruCache<Long, SectionFiltersSchema>(2000, 300000l);
+
+    // разобранные запросы (каноническая строка -> запрос)
+    private final LruCache<String, FilterQueryPlan> plans = new LruCache<String, FilterQueryPlan>(20000);
+
+    // <editor-fold defaultstate="collapsed" desc="Разбираем запрос">
+    @Override
+    public FilterQueryPlan compile(Long section_id, Map<String, String[]> params) {
+
+        long section = section_id == null ? 0l : section_id;
+
+        SectionFiltersSchema schema = getSchema(section);
+
+        TreeMap<String, String[]> filters = new TreeMap<String, String[]>();
+
+        // Без описания фильтров параметры нельзя проверить, поэтому они передаются как есть
+        boolean pass_unknown = schema == SectionFiltersSchema.EMPTY;
+
+        if (params != null) {
+            for (Map.Entry<String, String[]> param : params.entrySet()) {
+                String alias = getFilterAlias(param.getKey(), schema);
+
+                if (alias == null && !pass_unknown) {
+                    continue;
+                }
+
+                // Значения списочных фильтров можно сортировать, а у числовых фильтров, цены и неизвестных
+                // параметров порядок значений сохраняется (например, границы интервала)
+                boolean sort = alias != null && !isRange(schema, alias);
+
+                String[] values = FilterQueryPlan.normalize(param.getValue(), sort);
+                if (values != null) {
+                    filters.put(param.getKey(), values);
+                }
+            }
+        }
+
+        FilterQueryPlan plan = new FilterQueryPlan(section, filters);
+
+        // Одинаковые запросы возвращают один объект, чтобы результаты, посчитанные по нему, можно было переиспользовать
+        FilterQueryPlan cached = plans.get(plan.getCanonical());
+        if (cached != null) {
+            return cached;
+        }
+
+        plans.put(plan.getCanonical(), plan);
+
+        return plan;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем описание фильтров раздела">
+    @Override
+    public SectionFiltersSchema getSchema(Long section_id) {
+
+        if (section_id == null || section_id <= 0) {
+            return SectionFiltersSchema.EMPTY;
+        }
+
+        SectionFiltersSchema schema = schemas.get(section_id);
+
+        if (schema == null) {
+            Map<String, TypesEnum> types = new LinkedHashMap<String, TypesEnum>();
+
+            List<FilterView> filters = _sectionsService.getFiltersForSection(section_id);
+            if (!Is.Empty(filters)) {
+                for (FilterView f : filters) {
+                    types.put(f.getAlias().intern(), TypesEnum.findTE(f.getType()));
+                }
+            }
+
+            schema = new SectionFiltersSchema(section_id, getAliasForPrice(section_id), types);
+
+            schemas.put(section_id, schema);
+        }
+
+        return schema;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Вспомогательные методы">
+    /**
+     * Данный метод возвращает псевдоним фильтра, в котором хранится цена товара (обычно это "price")
+     */
+    private String getAliasForPrice(long section_id) {
+
+        Items section = _io.getItemByIdAndType( section_id, TypesEnum.SECTION,
+                new ExtendContext(Items.class).names(PropertyName.PRICE_FILTER_ALIAS));
+
+        if (Is.Empty(section)) {
+            return "";
+        }
+
+        return section.getValue(PropertyName.PRICE_FILTER_ALIAS, String.class);
+    }
+
+
+    /**
+     * Возвращает псевдоним фильтра раздела, к которому относится параметр (параметр равен псевдониму фильтра или
+     * начинается с него, например price_to или color[])
+     *
+     * @return псевдоним фильтра или null, если параметр не является фильтром раздела
+     */
+    private static String getFilterAlias(String key, SectionFiltersSchema schema) {
+
+        if (isFilter(key, schema)) {
+            return key;
+        }
+
+        for (int i = 1; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if ((c == '_' || c == '[') && isFilter(key.substring(0, i), schema)) {
+                return key.substring(0, i);
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isFilter(String alias, SectionFiltersSchema schema) {
+        return schema.contains(alias) || schema.isPrice(alias);
+    }
+
+    private static boolean isRange(SectionFiltersSchema schema, String alias) {
+        TypesEnum type = schema.getType(alias);
+        return schema.isPrice(alias) || type == TypesEnum.NUMBER || type == TypesEnum.INTERVAL;
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,42 @@
+package com.wp.servicies.impl;
+
+import com.wp.model.ProductRankingInput;
+import com.wp.servicies.interfaces.IRankingSignal;
+import org.springframework.stereotype.Component;
+
+/**
+ * Составляющая веса за новизну товара: убывает ступенями в первые три месяца после добавления
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Component
+public class FreshnessRankingSignal implements IRankingSignal {
+
+    private static final long DAY_MS = 24l * 60 * 60 * 1000;
+
+    @Override
+    public String getName() {
+        return "freshness";
+    }
+
+    @Override
+    public long score(ProductRankingInput product) {
+
+        if (product.getDate() == null) {
+            return 0;
+        }
+
+        long days = (System.currentTimeMillis() - product.getDate().getTime()) / DAY_MS;
+
+        if (days < 7) {
+            return 3;
+        }
+
+        if (days < 30) {
+            return 2;
+        }
+
+        return days < 90 ? 1 : 0;
+    }
+}
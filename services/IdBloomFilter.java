@@ -0,0 +1,88 @@
+package com.wp.servicies.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Данный класс представляет из себя фильтр Блума для идентификаторов: если идентификатора нет в фильтре, то его
+ * точно не добавляли, если есть - то, скорее всего, добавляли (ложные срабатывания с заданной вероятностью).
+ * Добавлять и проверять идентификаторы можно из нескольких потоков
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class IdBloomFilter {
+
+    // биты фильтра
+    private final AtomicLongArray bits;
+
+    // количество битов
+    private final long size;
+
+    // количество хэш-функций
+    private final int hashes;
+
+    /**
+     * @param expected ожидаемое количество идентификаторов
+     * @param fpp допустимая вероятность ложного срабатывания
+     */
+    public IdBloomFilter(long expected, double fpp) {
+
+        expected = Math.max(expected, 1l);
+
+        long bits_count = (long) Math.ceil(-expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        bits_count = Math.max(64l, (bits_count + 63) / 64 * 64);
+
+        this.size = bits_count;
+        this.hashes = Math.max(1, (int) Math.round((double) bits_count / expected * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (bits_count / 64));
+    }
+
+    public void add(long id) {
+
+        long hash = mix(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for (int i = 1; i <= hashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % size;
+            int index = (int) (bit >>> 6);
+            long mask = 1l << bit;
+
+            long word;
+            do {
+                word = bits.get(index);
+                if ((word & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(index, word, word | mask));
+        }
+    }
+
+    public boolean mightContain(long id) {
+
+        long hash = mix(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for (int i = 1; i <= hashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % size;
+            if ((bits.get((int) (bit >>> 6)) & (1l << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Перемешивает биты идентификатора (идентификаторы идут подряд, а хэш-функциям нужны случайные значения)
+     */
+    private static long mix(long id) {
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        id *= 0xc4ceb9fe1a85ec53L;
+        id ^= id >>> 33;
+        return id;
+    }
+}
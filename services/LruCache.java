@@ -0,0 +1,84 @@
+package com.wp.servicies.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Данный класс представляет из себя потокобезопасный кэш ограниченного размера, из которого вытесняются
+ * давно не используемые записи. Записи могут иметь время жизни
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class LruCache<K, V> {
+
+    // максимальное количество записей
+    private final int capacity;
+
+    // время жизни записи в мс (0 - бессрочно)
+    private final long ttl_ms;
+
+    private final LinkedHashMap<K, Entry<V>> map;
+
+    public LruCache(int capacity) {
+        this(capacity, 0l);
+    }
+
+    public LruCache(final int capacity, long ttl_ms) {
+        this.capacity = capacity;
+        this.ttl_ms = ttl_ms;
+        this.map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > LruCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Возвращает значение из кэша или null, если значения нет или оно устарело
+     */
+    public synchronized V get(K key) {
+
+        Entry<V> entry = map.get(key);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (ttl_ms > 0 && System.currentTimeMillis() - entry.created > ttl_ms) {
+            map.remove(key);
+            return null;
+        }
+
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        map.put(key, new Entry<V>(value, System.currentTimeMillis()));
+    }
+
+    public synchronized void remove(K key) {
+        map.remove(key);
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+
+        private final long created;
+
+        private Entry(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.wp.servicies.impl;
+
+import com.wp.model.ProductRankingInput;
+import com.wp.servicies.interfaces.IRankingSignal;
+import org.springframework.stereotype.Component;
+
+/**
+ * Составляющая веса за популярность товара (просмотры и переходы из списков, см. IProductsStatsService)
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Component
+public class PopularityRankingSignal implements IRankingSignal {
+
+    @Override
+    public String getName() {
+        return "popularity";
+    }
+
+    @Override
+    public long score(ProductRankingInput product) {
+        return product.getPopularity();
+    }
+}
@@ -0,0 +1,25 @@
+package com.wp.servicies.impl;
+
+import com.wp.model.ProductRankingInput;
+import com.wp.servicies.interfaces.IRankingSignal;
+import org.springframework.stereotype.Component;
+
+/**
+ * Составляющая веса за указанную цену
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Component
+public class PriceRankingSignal implements IRankingSignal {
+
+    @Override
+    public String getName() {
+        return "price";
+    }
+
+    @Override
+    public long score(ProductRankingInput product) {
+        return product.isHas_price() ? 1 : 0;
+    }
+}
@@ -0,0 +1,63 @@
+package com.wp.servicies.impl;
+
+import com.wp.model.ProductEvent;
+import com.wp.servicies.interfaces.IProductEventSubscriber;
+import com.wp.servicies.interfaces.IProductsExistenceService;
+import com.wp.servicies.interfaces.IProductsFacetsService;
+import com.wp.servicies.interfaces.IProductsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Данный подписчик сбрасывает данные, построенные по товарам в памяти сервера (компактные модели товаров,
+ * матрицы вариантов групп и количество товаров по значениям фильтров), при любом изменении товара и учитывает
+ * измененные на других серверах товары и группы в проверке существования
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Component
+public class ProductCachesSubscriber implements IProductEventSubscriber {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Сервис для работы с товарами
+    @Autowired
+    IProductsService _productsService;
+
+    // Сервис для подсчета количества товаров по значениям фильтров
+    @Autowired
+    IProductsFacetsService _facetsService;
+
+    // Сервис для проверки, что товара или группы нет в БД
+    @Autowired
+    IProductsExistenceService _existenceService;
+    // </editor-fold>
+
+    @Override
+    public String getName() {
+        return "product-caches";
+    }
+
+    @Override
+    public void onEvent(ProductEvent event) {
+
+        _productsService.evictProductCaches(event.getProduct_id());
+
+        // Товар есть в БД при любом событии, а запомненное отсутствие могло устареть (товар вернулся в действующее
+        // состояние), поэтому отметка об отсутствии сбрасывается при любом изменении, а не только при создании
+        _existenceService.registerProduct(event.getProduct_id());
+
+        if (event.getGroup_id() > 0) {
+            _existenceService.registerGroup(event.getGroup_id());
+
+            // матрица вариантов группы устарела до пересчета группы
+            _productsService.evictGroupCaches(event.getGroup_id());
+        }
+
+        // количество товаров по значениям фильтров в разделах изменилось
+        _facetsService.invalidate(event.getSection_id());
+        if (event.getOld_section_id() > 0) {
+            _facetsService.invalidate(event.getOld_section_id());
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.wp.servicies.impl;
+
+import com.wp.mappers.ibatis.postgres.IProductEventsMapper;
+import com.wp.model.ProductEvent;
+import com.wp.servicies.interfaces.IProductEventSubscriber;
+import com.wp.servicies.interfaces.IProductEventsService;
+import com.wp.utils.Is;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+import org.springframework.test.context.transaction.TransactionConfiguration;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Данный сервис реализует очередь событий изменения товаров.
+ *
+ * События пишутся в таблицу product_events в той же транзакции, что и сам товар, поэтому событие есть тогда и
+ * только тогда, когда изменение сохранено. Отдельный поток доставляет события подписчикам по порядку номеров.
+ * Для каждого подписчика на каждом сервере хранится номер последнего обработанного события, и он сдвигается только
+ * после успешной обработки (событие может быть доставлено повторно, но не будет потеряно). Номера подписчиков
+ * остановленных серверов удаляются по истечении срока хранения событий. События, номера которых были пропущены
+ * из-за долгой транзакции, перепроверяются и доставляются позже, не по порядку
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Service
+@TransactionConfiguration(transactionManager = "transactionPostgresManager")
+@Transactional(rollbackFor = Exception.class)
+public class ProductEventsServiceImpl extends AService<IProductEventsService> implements IProductEventsService {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Маппер для работы с очередью событий
+    @Autowired
+    IProductEventsMapper _eventsMapper;
+
+    // Подписчики на события
+    @Autowired(required = false)
+    List<IProductEventSubscriber> subscribers = new ArrayList<IProductEventSubscriber>();
+    // </editor-fold>
+
+    // Как часто (в мс) проверяется очередь, если о новых событиях не сообщили
+    @Value("${products_events_poll_ms:1000}")
+    protected long POLL_MS = 1000;
+
+    // Сколько событий выбирается за раз
+    @Value("${products_events_batch:500}")
+    protected int BATCH = 500;
+
+    // Сколько (в часах) хранятся обработанные события
+    @Value("${products_events_retention_hours:24}")
+    protected int RETENTION_HOURS = 24;
+
+    // Сколько (в мс) ждать событие с пропущенным номером, прежде чем считать его транзакцию откаченной
+    @Value("${products_events_gap_wait_ms:10000}")
+    protected long GAP_WAIT_MS = 10000;
+
+    // Сколько (в мс) перепроверять пропущенные номера событий (транзакция могла закоммититься после ожидания)
+    @Value("${products_events_gap_recheck_ms:600000}")
+    protected long GAP_RECHECK_MS = 600000;
+
+    // Имя сервера (у каждого сервера свои номера обработанных событий, так как подписчики обновляют его память)
+    @Value("${server_name:}")
+    protected String SERVER_NAME = "";
+
+    // переменная, для работы с лог-файлами
+    private Logger log = Logger.getLogger(ProductEventsServiceImpl.class);
+
+    // номера последних обработанных событий (подписчик -> номер события)
+    private final Map<String, Long> offsets = new HashMap<String, Long>();
+
+    // пропуски в номерах событий (подписчик -> {номер события перед пропуском, когда пропуск замечен})
+    private final Map<String, Long[]> gaps = new HashMap<String, Long[]>();
+
+    // больше стольких номеров из одного пропуска не перепроверяется
+    private static final int MAX_SKIPPED = 1000;
+
+    // пропущенные номера событий, которые еще могут появиться (подписчик -> номер события -> когда пропущен)
+    private final Map<String, TreeMap<Long, Long>> skipped = new HashMap<String, TreeMap<Long, Long>>();
+
+    // есть ли новые события, о которых сообщили после коммита
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    private ScheduledExecutorService dispatcher;
+
+    // <editor-fold defaultstate="collapsed" desc="Запуск и остановка">
+    @PostConstruct
+    public void init() {
+
+        if (Is.Empty(SERVER_NAME)) {
+            try {
+                SERVER_NAME = InetAddress.getLocalHost().getHostName();
+            }
+            catch (Exception ex) {
+                SERVER_NAME = "localhost";
+            }
+        }
+
+        dispatcher = Executors.newSingleThreadScheduledExecutor(
+                new ProductsGroupsServiceImpl.NamedThreadFactory("product-events"));
+
+        dispatcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                dispatchSafely();
+            }
+        }, POLL_MS, POLL_MS, TimeUnit.MILLISECONDS);
+
+        dispatcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Date before = new Date(System.currentTimeMillis() - RETENTION_HOURS * 3600000l);
+
+                    // Номера подписчиков этого сервера отмечаются живыми, а брошенные номера (сервер остановлен
+                    // или сменил имя) удаляются, чтобы не задерживать удаление событий
+                    if (!subscribers.isEmpty()) {
+                        _eventsMapper.touchOffsets(getKeys());
+                    }
+
+                    int expired = _eventsMapper.deleteExpiredOffsets(before);
+                    if (expired > 0) {
+                        log.info(String.format("Удалено %s брошенных номеров подписчиков событий товаров.", expired));
+                    }
+
+                    int deleted = _eventsMapper.deleteProcessed(before);
+                    if (deleted > 0) {
+                        log.info(String.format("Удалено %s обработанных событий товаров.", deleted));
+                    }
+                }
+                catch (Exception ex) {
+                    log.error("Не удалось удалить обработанные события товаров", ex);
+                }
+            }
+        }, 1, 1, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        dispatcher.shutdownNow();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Добавляем событие">
+    @Override
+    public void publish(ProductEvent event) {
+
+        _eventsMapper.insert(event);
+
+        // Сразу после коммита будим поток доставки, чтобы не ждать следующей проверки очереди
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    wakeUp();
+                }
+            });
+        }
+        else {
+            wakeUp();
+        }
+    }
+
+    private void wakeUp() {
+
+        if (!pending.compareAndSet(false, true)) {
+            return;
+        }
+
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                pending.set(false);
+                dispatchSafely();
+            }
+        });
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Доставляем события подписчикам">
+    @Override
+    public synchronized void dispatch() {
+        for (IProductEventSubscriber subscriber : subscribers) {
+            dispatch(subscriber);
+        }
+    }
+
+    private void dispatchSafely() {
+        try {
+            dispatch();
+        }
+        catch (Exception ex) {
+            log.error("Не удалось доставить события товаров", ex);
+        }
+    }
+
+    private void dispatch(IProductEventSubscriber subscriber) {
+
+        String key = getKey(subscriber);
+
+        recheckSkipped(subscriber, key);
+
+        long offset = getOffset(key);
+        long processed = offset;
+
+        while (true) {
+            List<ProductEvent> events = _eventsMapper.selectAfter(processed, BATCH);
+
+            boolean failed = false;
+
+            for (ProductEvent event : events) {
+                // Пропуск в номерах - это либо откаченная транзакция, либо еще не закоммиченная (номер выдается
+                // при вставке, а видна строка только после коммита). Ждем, пока пропуск не станет достаточно старым
+                if (event.getId() > processed + 1) {
+                    if (!isGapExpired(key, processed)) {
+                        failed = true;
+                        break;
+                    }
+
+                    skip(key, processed + 1, event.getId() - 1);
+                }
+
+                try {
+                    subscriber.onEvent(event);
+                    processed = event.getId();
+                }
+                catch (Exception ex) {
+                    // Порядок важнее скорости: следующие события ждут, пока это не будет обработано
+                    log.warn(String.format("Подписчик %s не обработал событие %s.", key, event), ex);
+                    failed = true;
+                    break;
+                }
+            }
+
+            if (failed || events.size() < BATCH) {
+                break;
+            }
+        }
+
+        if (processed != offset) {
+            if (_eventsMapper.updateOffset(key, processed) == 0) {
+                _eventsMapper.insertOffset(key, processed);
+            }
+            offsets.put(key, processed);
+        }
+    }
+
+    private boolean isGapExpired(String key, long processed) {
+
+        long now = System.currentTimeMillis();
+
+        Long[] gap = gaps.get(key);
+        if (gap == null || gap[0] != processed) {
+            gaps.put(key, new Long[]{processed, now});
+            return false;
+        }
+
+        return now - gap[1] > GAP_WAIT_MS;
+    }
+
+    /**
+     * Запоминает пропущенные номера событий, чтобы доставить события, если их транзакции закоммитятся позже
+     */
+    private void skip(String key, long from, long to) {
+
+        TreeMap<Long, Long> ids = skipped.get(key);
+        if (ids == null) {
+            ids = new TreeMap<Long, Long>();
+            skipped.put(key, ids);
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (long id = from; id <= to && id < from + MAX_SKIPPED; id++) {
+            ids.put(id, now);
+        }
+    }
+
+    /**
+     * Доставляет подписчику события с пропущенными ранее номерами, которые появились в очереди. Номера, которые
+     * не появились за GAP_RECHECK_MS, больше не проверяются
+     */
+    private void recheckSkipped(IProductEventSubscriber subscriber, String key) {
+
+        TreeMap<Long, Long> ids = skipped.get(key);
+
+        if (ids == null || ids.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (Iterator<Map.Entry<Long, Long>> it = ids.entrySet().iterator(); it.hasNext(); ) {
+            if (now - it.next().getValue() > GAP_RECHECK_MS) {
+                it.remove();
+            }
+        }
+
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        for (ProductEvent event : _eventsMapper.selectByIds(new ArrayList<Long>(ids.keySet()))) {
+            try {
+                subscriber.onEvent(event);
+                ids.remove(event.getId());
+            }
+            catch (Exception ex) {
+                log.warn(String.format("Подписчик %s не обработал пропущенное событие %s.", key, event), ex);
+                break;
+            }
+        }
+    }
+
+    private List<String> getKeys() {
+
+        List<String> keys = new ArrayList<String>();
+
+        for (IProductEventSubscriber subscriber : subscribers) {
+            keys.add(getKey(subscriber));
+        }
+
+        return keys;
+    }
+
+    private String getKey(IProductEventSubscriber subscriber) {
+        return subscriber.getName() + "@" + SERVER_NAME;
+    }
+
+    private long getOffset(String key) {
+
+        Long offset = offsets.get(key);
+
+        if (offset == null) {
+            offset = _eventsMapper.selectOffset(key);
+
+            if (offset == null) {
+                // Новый подписчик начинает с текущего конца очереди, история ему не нужна
+                offset = _eventsMapper.selectMaxId();
+                try {
+                    _eventsMapper.insertOffset(key, offset);
+                }
+                catch (DuplicateKeyException ex) {
+                    offset = _eventsMapper.selectOffset(key);
+                }
+            }
+
+            offsets.put(key, offset);
+        }
+
+        return offset;
+    }
+    // </editor-fold>
+}
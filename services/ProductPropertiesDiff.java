@@ -0,0 +1,166 @@
+package com.wp.servicies.impl;
+
+import com.wp.model.FILTERS;
+import com.wp.model.PropertyName;
+import com.wp.model.composite.PropertySimple;
+import com.wp.model.objects.Items;
+
+import java.util.*;
+
+/**
+ * Данный класс сравнивает сохраненные свойства товара с новыми свойствами из формы и оставляет только те
+ * изменения, которые действительно нужно записать в БД (вместо удаления и повторной записи всех свойств)
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class ProductPropertiesDiff {
+
+    // Свойства, текст которых попадает в полнотекстовый индекс сфинкса (фильтры, цена и остальные свойства
+    // хранятся в сфинксе атрибутами и обновляются без переиндексации)
+    private static final Set<String> FULL_TEXT_PROPERTIES = new HashSet<String>(Arrays.asList(
+            PropertyName.TITLE, PropertyName.DESCRIPTION));
+
+    // свойства, которые нужно добавить или обновить, и очистки удаленных свойств
+    private final List<PropertySimple> changes = new ArrayList<PropertySimple>();
+
+    // названия измененных свойств
+    private final Set<String> changed_names = new HashSet<String>();
+
+    private ProductPropertiesDiff() {
+    }
+
+    /**
+     * Данный метод получает сохраненные свойства товара для сравнения. Фотографий и значений фильтров с
+     * множественным выбором у товара несколько, поэтому они берутся все, а не одно значение из карты свойств
+     * (иначе сокращенный список значений совпал бы с сохраненным и удаленное значение осталось бы в БД)
+     *
+     * @param item товар со всеми свойствами
+     * @return
+     */
+    public static Map<String, PropertySimple> storedProperties(Items item) {
+
+        Map<String, PropertySimple> stored = new HashMap<String, PropertySimple>(item.toMapProperties());
+
+        for (String name : new ArrayList<String>(stored.keySet())) {
+            if (name != null && (name.equals(PropertyName.IMAGES) || name.startsWith(FILTERS.FILTER_PREFIX))) {
+                putValues(stored, item, name);
+            }
+        }
+
+        // фотографии могут не попасть в карту свойств, поэтому берутся отдельно
+        putValues(stored, item, PropertyName.IMAGES);
+
+        return stored;
+    }
+
+    private static void putValues(Map<String, PropertySimple> stored, Items item, String name) {
+
+        List values = item.getValues(name);
+        if (values != null && !values.isEmpty()) {
+            stored.put(name, new PropertySimple(name, values));
+        }
+    }
+
+    /**
+     * Данный метод сравнивает свойства
+     *
+     * @param stored сохраненные свойства товара
+     * @param properties новые свойства товара
+     * @return
+     */
+    public static ProductPropertiesDiff compare(Map<String, PropertySimple> stored, List<PropertySimple> properties) {
+
+        ProductPropertiesDiff diff = new ProductPropertiesDiff();
+
+        // Если свойство передано несколько раз, то в БД остается последнее значение
+        LinkedHashMap<String, PropertySimple> fresh = new LinkedHashMap<String, PropertySimple>();
+        for (PropertySimple property : properties) {
+            fresh.remove(property.getName());
+            fresh.put(property.getName(), property);
+        }
+
+        for (PropertySimple property : fresh.values()) {
+            PropertySimple old = stored.get(property.getName());
+
+            if (old != null && normalize(old.getValue()).equals(normalize(property.getValue()))) {
+                continue;
+            }
+
+            diff.changes.add(property);
+            diff.changed_names.add(property.getName());
+        }
+
+        for (String name : stored.keySet()) {
+            if (fresh.containsKey(name)) {
+                continue;
+            }
+
+            // Как и раньше (при полной перезаписи), очищаются только фильтры, которых нет в форме
+            if (name.startsWith(FILTERS.FILTER_PREFIX)) {
+                diff.changes.add(PropertySimple.clear(name));
+                diff.changed_names.add(name);
+            }
+        }
+
+        return diff;
+    }
+
+    /**
+     * Проверяет, есть ли изменения
+     */
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Возвращает свойства для записи в БД (включая очистку удаленных свойств)
+     */
+    public List<PropertySimple> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Проверяет, изменился ли текст товара (название, описание), который требует полной переиндексации товара
+     * в сфинксе. Если нет, то в сфинксе достаточно обновить атрибуты (цену, фильтры, публикацию)
+     */
+    public boolean isFullTextChanged() {
+
+        for (String name : changed_names) {
+            if (FULL_TEXT_PROPERTIES.contains(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Приводит значение свойства к строке для сравнения. Одно значение и список из одного значения приводятся
+     * к одному виду, объекты сравниваются по идентификатору, числа - по значению
+     */
+    private static String normalize(Object value) {
+
+        Collection<?> values = value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value);
+
+        StringBuilder sb = new StringBuilder("[");
+        for (Object v : values) {
+            sb.append(normalizeValue(v)).append(',');
+        }
+
+        return sb.append(']').toString();
+    }
+
+    private static String normalizeValue(Object value) {
+
+        if (value == null) {
+            return "";
+        }
+
+        if (value instanceof Items) {
+            return String.valueOf(((Items) value).getId());
+        }
+
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,48 @@
+package com.wp.servicies.impl;
+
+import com.wp.servicies.interfaces.IProductsAllocationService;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Данный класс замеряет память, выделенную обработчиками контроллера товаров и методами сервиса товаров.
+ *
+ * Участок называется по классу, методу и количеству параметров (перегруженные обработчики различаются).
+ * Внутренние вызовы сервиса идут через This(), поэтому тоже замеряются; их память входит в память вызывающего
+ * метода. Пока замер выключен, метод просто вызывается
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Aspect
+@Component
+public class ProductsAllocationAspect {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Сервис для замера выделенной памяти
+    @Autowired
+    IProductsAllocationService _allocationService;
+    // </editor-fold>
+
+    @Around("execution(public * com.wp.web.controllers.ProductsController.*(..))"
+            + " || execution(public * com.wp.servicies.interfaces.IProductsService+.*(..))")
+    public Object measure(ProceedingJoinPoint pjp) throws Throwable {
+
+        if (!_allocationService.isEnabled()) {
+            return pjp.proceed();
+        }
+
+        long mark = _allocationService.mark();
+
+        try {
+            return pjp.proceed();
+        }
+        finally {
+            _allocationService.record(pjp.getSignature().getDeclaringType().getSimpleName() + "."
+                                      + pjp.getSignature().getName() + "/" + pjp.getArgs().length, mark);
+        }
+    }
+}
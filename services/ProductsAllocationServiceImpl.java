@@ -0,0 +1,246 @@
+package com.wp.servicies.impl;
+
+import com.wp.servicies.interfaces.IProductsAllocationService;
+import com.wp.web.views.AllocationReport;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Данный сервис замеряет память, которую выделяют запросы товаров.
+ *
+ * Байты считаются по счетчику выделенной памяти потока (com.sun.management.ThreadMXBean), поэтому замер
+ * не требует агента и почти ничего не стоит, но работает только на HotSpot. Замер выключен по умолчанию и
+ * включается настройкой. Отчет с самыми затратными участками и количеством сборок мусора периодически
+ * записывается в лог
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Service
+public class ProductsAllocationServiceImpl extends AService<IProductsAllocationService>
+        implements IProductsAllocationService {
+
+    // Включен ли замер
+    @Value("${products_allocation_profiling:false}")
+    protected boolean ENABLED = false;
+
+    // Как часто (в мс) отчет записывается в лог
+    @Value("${products_allocation_report_ms:300000}")
+    protected long REPORT_MS = 300000;
+
+    // Сколько самых затратных участков записывается в лог
+    @Value("${products_allocation_report_size:30}")
+    protected int REPORT_SIZE = 30;
+
+    // переменная, для работы с лог-файлами
+    private Logger log = Logger.getLogger(ProductsAllocationServiceImpl.class);
+
+    private com.sun.management.ThreadMXBean threads;
+
+    // счетчики участков (название -> счетчик)
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+    // время и сборки мусора на момент последнего сброса
+    private volatile long started;
+    private volatile long gc_count;
+    private volatile long gc_time_ms;
+
+    private ScheduledExecutorService reporter;
+
+    // <editor-fold defaultstate="collapsed" desc="Запуск и остановка">
+    @PostConstruct
+    public void init() {
+
+        if (!ENABLED) {
+            return;
+        }
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            log.warn("Счетчик выделенной памяти потока не поддерживается, замер памяти запросов товаров выключен.");
+            return;
+        }
+
+        threads = (com.sun.management.ThreadMXBean) bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        reset();
+
+        reporter = Executors.newSingleThreadScheduledExecutor(
+                new ProductsGroupsServiceImpl.NamedThreadFactory("products-allocation"));
+
+        reporter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    report();
+                }
+                catch (Exception ex) {
+                    log.error("Не удалось записать отчет о памяти запросов товаров", ex);
+                }
+            }
+        }, REPORT_MS, REPORT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Замеряем память">
+    @Override
+    public boolean isEnabled() {
+        return threads != null;
+    }
+
+    @Override
+    public long mark() {
+        return threads == null ? -1l : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Override
+    public void record(String name, long mark) {
+
+        if (threads == null || mark < 0) {
+            return;
+        }
+
+        long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - mark;
+
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+
+        counter.add(bytes);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Формируем отчет">
+    @Override
+    public AllocationReport getReport() {
+
+        AllocationReport report = new AllocationReport();
+
+        if (threads == null) {
+            return report;
+        }
+
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            report.getEntries().add(new AllocationReport.Entry(entry.getKey(), counter.calls.get(),
+                                                               counter.bytes.get(), counter.max_bytes.get()));
+        }
+
+        Collections.sort(report.getEntries(), new Comparator<AllocationReport.Entry>() {
+            @Override
+            public int compare(AllocationReport.Entry o1, AllocationReport.Entry o2) {
+                return o1.getBytes() < o2.getBytes() ? 1 : (o1.getBytes() > o2.getBytes() ? -1 : 0);
+            }
+        });
+
+        long[] gc = gc();
+
+        report.setDuration_ms(System.currentTimeMillis() - started);
+        report.setGc_count(gc[0] - gc_count);
+        report.setGc_time_ms(gc[1] - gc_time_ms);
+
+        return report;
+    }
+
+    @Override
+    public void reset() {
+
+        counters.clear();
+
+        long[] gc = gc();
+
+        started = System.currentTimeMillis();
+        gc_count = gc[0];
+        gc_time_ms = gc[1];
+    }
+
+    private void report() {
+
+        AllocationReport report = getReport();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Память запросов товаров за %s с: сборок мусора %s (%s мс).",
+                                report.getDuration_ms() / 1000, report.getGc_count(), report.getGc_time_ms()));
+
+        for (AllocationReport.Entry entry : report.getEntries().subList(0, Math.min(REPORT_SIZE,
+                                                                                    report.getEntries().size()))) {
+            sb.append(String.format("%n  %-70s вызовов %10d, всего %8d КБ, на вызов %8d Б, наибольшее %8d Б",
+                                    entry.getName(), entry.getCalls(), entry.getBytes() / 1024,
+                                    entry.getBytes_per_call(), entry.getMax_bytes()));
+        }
+
+        log.info(sb.toString());
+    }
+
+    /**
+     * Возвращает количество и время (в мс) сборок мусора с запуска сервера
+     */
+    private long[] gc() {
+
+        long count = 0;
+        long time = 0;
+
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(collector.getCollectionCount(), 0);
+            time += Math.max(collector.getCollectionTime(), 0);
+        }
+
+        return new long[]{count, time};
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Вспомогательные классы">
+    /**
+     * Счетчики одного участка кода
+     */
+    private static class Counter {
+
+        private final AtomicLong calls = new AtomicLong();
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        private final AtomicLong max_bytes = new AtomicLong();
+
+        private void add(long allocated) {
+
+            calls.incrementAndGet();
+            bytes.addAndGet(allocated);
+
+            for (long max = max_bytes.get(); allocated > max; max = max_bytes.get()) {
+                if (max_bytes.compareAndSet(max, allocated)) {
+                    break;
+                }
+            }
+        }
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,438 @@
+package com.wp.servicies.impl;
+
+import com.wp.mappers.ibatis.postgres.IProductsConsistencyMapper;
+import com.wp.model.enums.StatesEnum;
+import com.wp.model.enums.TypesEnum;
+import com.wp.servicies.interfaces.IProductsConsistencyService;
+import com.wp.servicies.interfaces.IProductsService;
+import com.wp.web.exceptions.InternalServerErrorException;
+import com.wp.web.exceptions.NotFoundException;
+import com.wp.web.views.ConsistencyReport;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Данный сервис сверяет индекс сфинкса с БД.
+ *
+ * Действующие товары выбираются из БД порциями по порядку идентификаторов (группа и публикация - одним запросом на
+ * порцию), одновременно из сфинкса выбираются списки опубликованных и неопубликованных товаров, а затем все
+ * конфигурации каждой группы одним списком. Отсортированные списки сливаются за один проход. Сравниваются наличие
+ * товара, группа и публикация (у конфигураций, которых нет в общих списках, публикация из сфинкса неизвестна и не
+ * сравнивается): остальные атрибуты сфинкс не возвращает,
+ * они записываются заново при исправлении. Лишние товары удаляются из индекса, у товаров с расходящимися
+ * атрибутами атрибуты перезаписываются. Товары, которых нет в индексе, только попадают в отчет: фильтры в формате
+ * индекса собираются из формы сохранения товара, поэтому такие товары нужно пересохранить
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Service
+public class ProductsConsistencyServiceImpl extends AService<IProductsConsistencyService>
+        implements IProductsConsistencyService {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Сервис для работы с товарами
+    @Autowired
+    IProductsService _productsService;
+
+    // Маппер для обхода товаров и истории сверок
+    @Autowired
+    IProductsConsistencyMapper _consistencyMapper;
+    // </editor-fold>
+
+    // Как часто (в мс) запускается сверка
+    @Value("${products_consistency_interval_ms:86400000}")
+    protected long INTERVAL_MS = 86400000;
+
+    // Исправлять ли расхождения, найденные фоновой сверкой
+    @Value("${products_consistency_repair:true}")
+    protected boolean REPAIR = true;
+
+    // Если расхождений больше, то они не исправляются (скорее всего, индекс перестраивается или недоступен)
+    @Value("${products_consistency_max_repairs:10000}")
+    protected int MAX_REPAIRS = 10000;
+
+    // Количество потоков для выборки из сфинкса и исправления
+    @Value("${products_consistency_threads:4}")
+    protected int THREADS = 4;
+
+    // количество идентификаторов в одной порции выборки из БД
+    private static final int CHUNK_SIZE = 1000;
+
+    // количество товаров на странице при выборке из сфинкса
+    private static final int PAGE_SIZE = 500;
+
+    // количество товаров в одной задаче исправления
+    private static final int REPAIR_BATCH = 100;
+
+    // публикация товара в сфинксе неизвестна (товар выбран из сфинкса без условия на публикацию)
+    private static final long UNKNOWN = -1l;
+
+    // переменная, для работы с лог-файлами
+    private Logger log = Logger.getLogger(ProductsConsistencyServiceImpl.class);
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService workers;
+
+    // <editor-fold defaultstate="collapsed" desc="Запуск и остановка">
+    @PostConstruct
+    public void init() {
+
+        workers = Executors.newFixedThreadPool(THREADS,
+                new ProductsGroupsServiceImpl.NamedThreadFactory("products-consistency-worker"));
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ProductsGroupsServiceImpl.NamedThreadFactory("products-consistency"));
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check(REPAIR);
+                }
+                catch (Exception ex) {
+                    log.error("Не удалось сверить индекс товаров с БД", ex);
+                }
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Сверяем индекс с БД">
+    @Override
+    public synchronized ConsistencyReport check(boolean repair) {
+
+        long start = System.currentTimeMillis();
+
+        ConsistencyReport report = new ConsistencyReport();
+
+        // Списки товаров из сфинкса выбираются параллельно с обходом БД
+        final IndexSnapshot index = new IndexSnapshot();
+
+        List<Future<?>> listings = new ArrayList<Future<?>>();
+        for (final long is_active : new long[]{1l, 0l}) {
+            listings.add(workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    index.load(0l, is_active);
+                }
+            }));
+        }
+
+        DbSnapshot db = loadDb();
+
+        await(listings);
+
+        // В общем списке конфигурации группы схлопнуты в одну, поэтому группы выбираются отдельно (опубликованные
+        // и неопубликованные конфигурации одним списком)
+        List<Future<?>> groups = new ArrayList<Future<?>>();
+        for (final long group_id : db.groups) {
+            groups.add(workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    index.load(group_id, null);
+                }
+            }));
+        }
+
+        await(groups);
+
+        List<Long> ghosts = new ArrayList<Long>();
+        List<Long> mismatched = new ArrayList<Long>();
+
+        merge(db, index, report, ghosts, mismatched);
+
+        if (repair && ghosts.size() + mismatched.size() > 0) {
+            if (ghosts.size() + mismatched.size() > MAX_REPAIRS) {
+                log.error(String.format("Расхождений индекса с БД слишком много (%s), исправление пропущено.",
+                                        ghosts.size() + mismatched.size()));
+            }
+            else {
+                report.setRepaired(repair(ghosts, mismatched));
+            }
+        }
+
+        report.setDuration_ms(System.currentTimeMillis() - start);
+
+        try {
+            _consistencyMapper.insertRun(report);
+        }
+        catch (Exception ex) {
+            log.warn("Не удалось сохранить результат сверки индекса.", ex);
+        }
+
+        log.info(report);
+
+        return report;
+    }
+
+    @Override
+    public List<Map<String, Object>> getHistory(int limit) {
+        return _consistencyMapper.selectRuns(limit);
+    }
+
+    /**
+     * Выбирает действующие товары из БД. Идентификаторы выбираются по порядку, поэтому снимок уже отсортирован
+     */
+    private DbSnapshot loadDb() {
+
+        DbSnapshot db = new DbSnapshot();
+
+        long type_id = TypesEnum.PRODUCTS.getType().getId();
+        List<Long> states_ids = Arrays.asList(StatesEnum.ACTIVE.getState().getId(),
+                                              StatesEnum.APPROVED.getState().getId());
+
+        long after_id = 0l;
+
+        while (true) {
+            List<Long> ids = _consistencyMapper.selectProductsIds(type_id, states_ids, after_id, CHUNK_SIZE);
+
+            // Группа и публикация всей порции выбираются одним запросом, без моделей товаров и общих кэшей
+            Map<Long, long[]> attributes = ids.isEmpty() ? Collections.<Long, long[]>emptyMap() :
+                                           _productsService.getIndexAttributes(ids);
+
+            for (Long product_id : ids) {
+                long[] product = attributes.get(product_id);
+
+                // товара нет, если он удален во время сверки
+                if (product != null) {
+                    db.add(product_id, product[0], product[1] == 1l);
+                }
+            }
+
+            if (ids.size() < CHUNK_SIZE) {
+                break;
+            }
+
+            after_id = ids.get(ids.size() - 1);
+        }
+
+        return db;
+    }
+
+    /**
+     * Сливает отсортированные снимки БД и индекса и записывает расхождения в отчет
+     */
+    private void merge(DbSnapshot db, IndexSnapshot index, ConsistencyReport report, List<Long> ghosts,
+                       List<Long> mismatched) {
+
+        long[] index_ids = index.sortedIds();
+
+        report.setDb_count(db.size);
+        report.setIndex_count(index_ids.length);
+
+        int i = 0;
+        int j = 0;
+
+        while (i < db.size || j < index_ids.length) {
+            if (j == index_ids.length || (i < db.size && db.ids[i] < index_ids[j])) {
+                report.addMissing(db.ids[i++]);
+            }
+            else if (i == db.size || db.ids[i] > index_ids[j]) {
+                report.addGhost(index_ids[j]);
+                ghosts.add(index_ids[j++]);
+            }
+            else {
+                long[] attributes = index.products.get(index_ids[j]);
+
+                if (attributes[0] != db.groups_ids[i] ||
+                        (attributes[1] != UNKNOWN && (attributes[1] == 1) != db.published[i])) {
+                    report.addMismatched(db.ids[i]);
+                    mismatched.add(db.ids[i]);
+                }
+
+                i++;
+                j++;
+            }
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Исправляем расхождения">
+    /**
+     * Исправляет расхождения порциями в несколько потоков. Перед исправлением товар проверяется заново, так как
+     * за время сверки его могли изменить
+     *
+     * @return количество исправленных товаров
+     */
+    private int repair(List<Long> ghosts, List<Long> mismatched) {
+
+        final AtomicInteger repaired = new AtomicInteger();
+
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+
+        for (int from = 0; from < ghosts.size(); from += REPAIR_BATCH) {
+            final List<Long> batch = ghosts.subList(from, Math.min(from + REPAIR_BATCH, ghosts.size()));
+            tasks.add(workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (Long product_id : batch) {
+                        try {
+                            // действующий товар (например, добавленный во время сверки) не удаляется
+                            if (_productsService.removeFromIndex(product_id)) {
+                                repaired.incrementAndGet();
+                            }
+                        }
+                        catch (Exception ex) {
+                            log.warn(String.format("Не удалось удалить товар %s из индекса.", product_id), ex);
+                        }
+                    }
+                }
+            }));
+        }
+
+        for (int from = 0; from < mismatched.size(); from += REPAIR_BATCH) {
+            final List<Long> batch = mismatched.subList(from, Math.min(from + REPAIR_BATCH, mismatched.size()));
+            tasks.add(workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (Long product_id : batch) {
+                        try {
+                            _productsService.reindexProductAttributes(product_id);
+                            repaired.incrementAndGet();
+                        }
+                        catch (NotFoundException ex) {
+                            // товар удален во время сверки
+                        }
+                        catch (Exception ex) {
+                            log.warn(String.format("Не удалось обновить атрибуты товара %s в индексе.", product_id),
+                                     ex);
+                        }
+                    }
+                }
+            }));
+        }
+
+        await(tasks);
+
+        return repaired.get();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Вспомогательные методы и классы">
+    private static void await(List<Future<?>> tasks) {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InternalServerErrorException();
+            }
+            catch (ExecutionException ex) {
+                Logger.getLogger(ProductsConsistencyServiceImpl.class).error("Сверка индекса прервана", ex.getCause());
+                throw new InternalServerErrorException();
+            }
+        }
+    }
+
+    /**
+     * Действующие товары из БД: идентификаторы по возрастанию, группа и публикация каждого товара
+     */
+    private static class DbSnapshot {
+
+        private long[] ids = new long[CHUNK_SIZE];
+
+        private long[] groups_ids = new long[CHUNK_SIZE];
+
+        private boolean[] published = new boolean[CHUNK_SIZE];
+
+        private int size;
+
+        // группы, в которых есть товары
+        private final Set<Long> groups = new HashSet<Long>();
+
+        private void add(long product_id, long group_id, boolean is_published) {
+
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                groups_ids = Arrays.copyOf(groups_ids, size * 2);
+                published = Arrays.copyOf(published, size * 2);
+            }
+
+            ids[size] = product_id;
+            groups_ids[size] = group_id;
+            published[size] = is_published;
+            size++;
+
+            if (group_id > 0) {
+                groups.add(group_id);
+            }
+        }
+    }
+
+    /**
+     * Товары из индекса: идентификатор -> {группа, публикация (1 или 0)}
+     */
+    private class IndexSnapshot {
+
+        private final ConcurrentMap<Long, long[]> products = new ConcurrentHashMap<Long, long[]>();
+
+        /**
+         * Выбирает из сфинкса все товары группы (или всего каталога) с указанной публикацией
+         *
+         * @param is_active 1 - опубликованные товары, 0 - неопубликованные, null - все (публикация неизвестна)
+         */
+        private void load(long group_id, Long is_active) {
+
+            // Индекс обходится по возрастанию идентификатора, как и БД: изменение выдачи во время сверки не сдвигает
+            // товары между порциями
+            for (long after_id = 0l; ; ) {
+                List<Long> ids = _productsService.getIndexedProductsIds(group_id, is_active, after_id, PAGE_SIZE);
+
+                for (Long product_id : ids) {
+                    long[] attributes = new long[]{group_id, is_active == null ? UNKNOWN : is_active};
+
+                    // группа товара известна только из выборки по группе, она заменяет данные общего списка (а
+                    // публикация берется из общего списка, если товар в нем есть: общие списки выбираются раньше)
+                    if (group_id > 0) {
+                        long[] listed = products.get(product_id);
+                        if (listed != null && attributes[1] == UNKNOWN) {
+                            attributes[1] = listed[1];
+                        }
+                        products.put(product_id, attributes);
+                    }
+                    else {
+                        products.putIfAbsent(product_id, attributes);
+                    }
+                }
+
+                if (ids.size() < PAGE_SIZE) {
+                    break;
+                }
+
+                after_id = ids.get(ids.size() - 1);
+            }
+        }
+
+        private long[] sortedIds() {
+
+            long[] ids = new long[products.size()];
+
+            int i = 0;
+            for (Long product_id : products.keySet()) {
+                ids[i++] = product_id;
+            }
+
+            Arrays.sort(ids);
+
+            return ids;
+        }
+    }
+    // </editor-fold>
+}
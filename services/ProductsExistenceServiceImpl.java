@@ -0,0 +1,270 @@
+package com.wp.servicies.impl;
+
+import com.wp.mappers.ibatis.postgres.IProductsConsistencyMapper;
+import com.wp.model.enums.TypesEnum;
+import com.wp.servicies.interfaces.IProductsExistenceService;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Данный сервис проверяет, что товара или группы товаров нет в БД, не обращаясь к БД.
+ *
+ * Идентификаторы товаров и групп в любом состоянии периодически выбираются из БД в фильтры Блума, созданные
+ * товары и группы добавляются в фильтры сразу (на этом сервере) и по событиям изменения товаров (на остальных).
+ * Отсутствие в фильтре считается точным только для идентификаторов не больше наибольшего выбранного: новые
+ * объекты получают большие идентификаторы и проверяются в БД. Удаленные и снятые товары остаются в фильтре
+ * (товар может вернуться в действующее состояние), поэтому отсутствие, найденное в БД, запоминается на короткое
+ * время
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Service
+public class ProductsExistenceServiceImpl extends AService<IProductsExistenceService>
+        implements IProductsExistenceService {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Маппер для обхода объектов по порядку идентификаторов
+    @Autowired
+    IProductsConsistencyMapper _itemsMapper;
+    // </editor-fold>
+
+    // Как часто (в мс) фильтры пересчитываются по БД
+    @Value("${products_existence_rebuild_ms:3600000}")
+    protected long REBUILD_MS = 3600000;
+
+    // Допустимая доля ложных срабатываний фильтров (отсутствующий объект принят за существующий)
+    @Value("${products_existence_fpp:0.01}")
+    protected double FPP = 0.01;
+
+    // Сколько (в мс) помнится, что объекта нет в БД
+    @Value("${products_existence_missing_ttl_ms:60000}")
+    protected long MISSING_TTL_MS = 60000;
+
+    // Сколько отсутствующих объектов каждого типа помнится
+    @Value("${products_existence_missing_size:100000}")
+    protected int MISSING_SIZE = 100000;
+
+    // количество идентификаторов в одной порции выборки из БД
+    private static final int CHUNK_SIZE = 10000;
+
+    // переменная, для работы с лог-файлами
+    private Logger log = Logger.getLogger(ProductsExistenceServiceImpl.class);
+
+    private ExistingIds products;
+
+    private ExistingIds groups;
+
+    private ScheduledExecutorService scheduler;
+
+    // <editor-fold defaultstate="collapsed" desc="Запуск и остановка">
+    @PostConstruct
+    public void init() {
+
+        products = new ExistingIds(MISSING_SIZE, MISSING_TTL_MS);
+        groups = new ExistingIds(MISSING_SIZE, MISSING_TTL_MS);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ProductsGroupsServiceImpl.NamedThreadFactory("products-existence"));
+
+        // Первый расчет сразу после запуска, до него проверяется только память об отсутствующих объектах
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebuild();
+                }
+                catch (Exception ex) {
+                    log.error("Не удалось пересчитать фильтры существующих товаров", ex);
+                }
+            }
+        }, 0, REBUILD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Проверяем наличие товаров и групп">
+    @Override
+    public boolean isMissingProduct(Long product_id) {
+        return product_id != null && products.isMissing(product_id);
+    }
+
+    @Override
+    public boolean isMissingGroup(Long group_id) {
+        return group_id != null && groups.isMissing(group_id);
+    }
+
+    @Override
+    public void markMissingProduct(Long product_id) {
+        products.markMissing(product_id);
+    }
+
+    @Override
+    public void markMissingGroup(Long group_id) {
+        groups.markMissing(group_id);
+    }
+
+    @Override
+    public void registerProduct(Long product_id) {
+        products.register(product_id);
+    }
+
+    @Override
+    public void registerGroup(Long group_id) {
+        groups.register(group_id);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Пересчитываем фильтры">
+    private void rebuild() {
+
+        int products_count = rebuild(products, TypesEnum.PRODUCTS.getType().getId());
+        int groups_count = rebuild(groups, TypesEnum.FOLDER.getType().getId());
+
+        log.info(String.format("Фильтры существующих объектов пересчитаны: товаров %s, групп %s.",
+                               products_count, groups_count));
+    }
+
+    private int rebuild(ExistingIds existing, long type_id) {
+
+        existing.beginRebuild();
+
+        IdsBuffer buffer = new IdsBuffer();
+
+        for (List<Long> ids = null; ids == null || ids.size() == CHUNK_SIZE; ) {
+            ids = _itemsMapper.selectItemsIds(type_id, buffer.last(), CHUNK_SIZE);
+            buffer.addAll(ids);
+        }
+
+        existing.finishRebuild(buffer, FPP);
+
+        return buffer.size;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Вспомогательные классы">
+    /**
+     * Существующие объекты одного типа: фильтр Блума с наибольшим учтенным идентификатором и память
+     * об отсутствующих объектах
+     */
+    private static class ExistingIds {
+
+        // текущий фильтр (null, пока фильтр не посчитан)
+        private volatile Snapshot snapshot;
+
+        // объекты, созданные во время пересчета (null, если пересчета нет)
+        private List<Long> pending;
+
+        private final LruCache<Long, Boolean> missing;
+
+        private ExistingIds(int missing_size, long missing_ttl_ms) {
+            this.missing = new LruCache<Long, Boolean>(missing_size, missing_ttl_ms);
+        }
+
+        private boolean isMissing(long id) {
+
+            if (missing.get(id) != null) {
+                return true;
+            }
+
+            Snapshot current = snapshot;
+
+            return current != null && id <= current.max_id && !current.filter.mightContain(id);
+        }
+
+        private void markMissing(long id) {
+            missing.put(id, Boolean.TRUE);
+        }
+
+        private synchronized void register(long id) {
+
+            missing.remove(id);
+
+            if (snapshot != null) {
+                snapshot.filter.add(id);
+            }
+
+            if (pending != null) {
+                pending.add(id);
+            }
+        }
+
+        private synchronized void beginRebuild() {
+            pending = new ArrayList<Long>();
+        }
+
+        private synchronized void finishRebuild(IdsBuffer ids, double fpp) {
+
+            // запас на объекты, которые будут созданы до следующего пересчета
+            IdBloomFilter filter = new IdBloomFilter(ids.size + ids.size / 10 + 1000, fpp);
+
+            for (int i = 0; i < ids.size; i++) {
+                filter.add(ids.ids[i]);
+            }
+
+            // объекты, созданные во время выборки, могли в нее не попасть
+            for (Long id : pending) {
+                filter.add(id);
+            }
+
+            snapshot = new Snapshot(filter, ids.last());
+            pending = null;
+        }
+    }
+
+    /**
+     * Фильтр и наибольший учтенный в нем идентификатор (меняются вместе)
+     */
+    private static class Snapshot {
+
+        private final IdBloomFilter filter;
+
+        private final long max_id;
+
+        private Snapshot(IdBloomFilter filter, long max_id) {
+            this.filter = filter;
+            this.max_id = max_id;
+        }
+    }
+
+    /**
+     * Идентификаторы, выбранные по возрастанию
+     */
+    private static class IdsBuffer {
+
+        private long[] ids = new long[CHUNK_SIZE];
+
+        private int size;
+
+        private void addAll(List<Long> chunk) {
+
+            if (size + chunk.size() > ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(ids.length * 2, size + chunk.size()));
+            }
+
+            for (Long id : chunk) {
+                ids[size++] = id;
+            }
+        }
+
+        private long last() {
+            return size == 0 ? 0l : ids[size - 1];
+        }
+    }
+    // </editor-fold>
+}
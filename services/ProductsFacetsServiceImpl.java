@@ -0,0 +1,587 @@
+package com.wp.servicies.impl;
+
+import com.wp.model.CompactProduct;
+import com.wp.servicies.interfaces.ICompanyService;
+import com.wp.servicies.interfaces.IProductsFacetsService;
+import com.wp.servicies.interfaces.IProductsService;
+import com.wp.servicies.interfaces.ISectionsAndFiltersService;
+import com.wp.utils.Cast;
+import com.wp.utils.Is;
+import com.wp.utils.mybatis.plugins.paging.page.PageContext;
+import com.wp.web.views.FilterView;
+import com.wp.web.views.ProductFacets;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Данный сервис считает количество товаров по значениям фильтров раздела.
+ *
+ * Для каждого раздела в памяти строится индекс: для каждого значения списочного фильтра - битовая маска товаров,
+ * для числовых фильтров - значения товаров. Количество товаров для состояния фильтров считается пересечением
+ * масок, популярные состояния кэшируются. В памяти держатся индексы только недавно запрошенных разделов, для главного
+ * раздела (все товары) индекс не строится
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Service
+public class ProductsFacetsServiceImpl extends AService<IProductsFacetsService> implements IProductsFacetsService {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Сервис для работы с товарами
+    @Autowired
+    IProductsService _productsService;
+
+    // Сервис для работы с разделами
+    @Autowired
+    ISectionsAndFiltersService _sectionsService;
+
+    // Сервис для работы с компаниями
+    @Autowired
+    ICompanyService _companyService;
+    // </editor-fold>
+
+    // Главный раздел для товаров (по нему количество товаров не считается - в его индекс попали бы все товары)
+    @Value("${products_section}")
+    protected long MAIN_PRODUCT_SECTION_ID = 0;
+
+    // Сколько индексов разделов держать в памяти
+    @Value("${products_facets_max_sections:200}")
+    protected int MAX_SECTIONS = 200;
+
+    // Как часто (в мс) можно перестраивать индекс раздела, товары которого изменились
+    @Value("${products_facets_rebuild_ms:600000}")
+    protected long REBUILD_MS = 600000;
+
+    // Количество интервалов для числовых фильтров
+    @Value("${products_facets_buckets:5}")
+    protected int BUCKETS = 5;
+
+    // количество товаров, которые выбираются из сфинкса за раз при построении индекса
+    private static final int PAGE_SIZE = 500;
+
+    // значение числового фильтра, если у товара оно не указано
+    private static final long NO_VALUE = Long.MIN_VALUE;
+
+    // переменная, для работы с лог-файлами
+    private Logger log = Logger.getLogger(ProductsFacetsServiceImpl.class);
+
+    // индексы разделов (идентификатор раздела -> индекс)
+    private LruCache<Long, FacetIndex> indexes;
+
+    // разделы, индексы которых включают товары раздела (раздел товара -> разделы с индексами)
+    private final ConcurrentHashMap<Long, Set<Long>> containing = new ConcurrentHashMap<Long, Set<Long>>();
+
+    // разделы, индекс которых строится в данный момент
+    private final Set<Long> building = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    // разделы, товары которых изменились после построения индекса
+    private final Set<Long> stale = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    // посчитанные состояния фильтров
+    private final LruCache<String, ProductFacets> cache = new LruCache<String, ProductFacets>(5000, 60000l);
+
+    private ExecutorService builder;
+
+    // <editor-fold defaultstate="collapsed" desc="Запуск и остановка">
+    @PostConstruct
+    public void init() {
+        indexes = new LruCache<Long, FacetIndex>(MAX_SECTIONS);
+        builder = Executors.newSingleThreadExecutor(new ProductsGroupsServiceImpl.NamedThreadFactory("products-facets"));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        builder.shutdownNow();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем количество товаров по значениям фильтров">
+    @Override
+    public ProductFacets getFacets(Long section_id, Long location_id, Long node_id, List<FilterView> filters) {
+
+        if (section_id == null || section_id <= 0 || section_id == MAIN_PRODUCT_SECTION_ID) {
+            return null;
+        }
+
+        FacetIndex index = indexes.get(section_id);
+
+        if (index == null || (stale.contains(section_id) && System.currentTimeMillis() - index.built > REBUILD_MS)) {
+            scheduleBuild(section_id);
+        }
+
+        // Пока индекс строится, количество товаров не показываем
+        if (index == null) {
+            return null;
+        }
+
+        Map<Long, Set<Long>> selected = new TreeMap<Long, Set<Long>>();
+        Map<Long, long[]> ranges = new TreeMap<Long, long[]>();
+        readSelection(filters, selected, ranges);
+
+        long location = location_id == null ? 0l : location_id;
+        long node = node_id == null ? 0l : node_id;
+
+        String key = cacheKey(section_id, index.built, location, node, selected, ranges);
+
+        ProductFacets facets = cache.get(key);
+
+        if (facets == null) {
+            facets = index.count(location, node, selected, ranges);
+            cache.put(key, facets);
+        }
+
+        return facets;
+    }
+
+    /**
+     * Помечает устаревшими индексы раздела и разделов, в которые входят его товары. Если индекс построен давно,
+     * он сразу перестраивается, иначе - при первом запросе после истечения REBUILD_MS
+     */
+    @Override
+    public void invalidate(Long section_id) {
+
+        if (section_id == null || section_id <= 0) {
+            return;
+        }
+
+        Set<Long> sections = new HashSet<Long>(Collections.singleton(section_id));
+        Set<Long> parents = containing.get(section_id);
+        if (parents != null) {
+            sections.addAll(parents);
+        }
+
+        for (Long indexed : sections) {
+            FacetIndex index = indexes.get(indexed);
+
+            if (index == null) {
+                continue;
+            }
+
+            stale.add(indexed);
+
+            if (System.currentTimeMillis() - index.built > REBUILD_MS) {
+                scheduleBuild(indexed);
+            }
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Построение индекса">
+    private void scheduleBuild(final Long section_id) {
+
+        if (!building.add(section_id)) {
+            return;
+        }
+
+        builder.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stale.remove(section_id);
+
+                    FacetIndex index = build(section_id);
+                    indexes.put(section_id, index);
+
+                    for (Long contained : index.sections) {
+                        Set<Long> parents = containing.get(contained);
+                        if (parents == null) {
+                            containing.putIfAbsent(contained,
+                                    Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>()));
+                            parents = containing.get(contained);
+                        }
+                        parents.add(section_id);
+                    }
+                }
+                catch (Exception ex) {
+                    log.error(String.format("Не удалось построить индекс фильтров раздела %s.", section_id), ex);
+                }
+                finally {
+                    building.remove(section_id);
+                }
+            }
+        });
+    }
+
+    private FacetIndex build(Long section_id) {
+
+        // В списке раздела конфигурации группы схлопнуты в одну, поэтому конфигурации групп выбираются отдельно:
+        // значения, которые есть только у других конфигураций группы, тоже должны учитываться
+        Set<Long> products_ids = new LinkedHashSet<Long>();
+        Set<Long> groups_ids = new HashSet<Long>();
+
+        for (int page = 1; ; page++) {
+            PageContext pc = new PageContext().setPageSize(PAGE_SIZE).setCurrentPage(page);
+            List<Long> ids = _productsService.getPublishedProductsIds(section_id, pc);
+
+            for (Long product_id : ids) {
+                products_ids.add(product_id);
+
+                try {
+                    Long group_id = _productsService.getCompactProductModel(product_id).getGroup_id();
+                    if (group_id != null && group_id > 0 && groups_ids.add(group_id)) {
+                        products_ids.addAll(getPublishedConfigurationsIds(group_id));
+                    }
+                }
+                catch (Exception ex) {
+                    log.warn(String.format("Не удалось получить конфигурации товара %s.", product_id), ex);
+                }
+            }
+
+            if (ids.size() < PAGE_SIZE) {
+                break;
+            }
+        }
+
+        FacetIndex index = new FacetIndex(products_ids.size());
+
+        // город магазина (идентификатор узла -> идентификатор города)
+        Map<Long, Long> shops_locations = new HashMap<Long, Long>();
+
+        for (Long product_id : products_ids) {
+            try {
+                CompactProduct product = _productsService.getCompactProductModel(product_id);
+
+                Long location = shops_locations.get(product.getNode_id());
+                if (location == null) {
+                    location = _companyService.getCompanyMainDataById(product.getNode_id()).getLocation().getId();
+                    shops_locations.put(product.getNode_id(), location);
+                }
+
+                index.add(product.getNode_id(), location, product.getSection_id(),
+                        _sectionsService.getFiltersByMapForEdit(product.getSection_id(), product.getFilters()));
+            }
+            catch (Exception ex) {
+                log.warn(String.format("Не удалось добавить товар %s в индекс фильтров.", product_id), ex);
+            }
+        }
+
+        index.finish(BUCKETS);
+
+        log.info(String.format("Построен индекс фильтров раздела %s: %s товаров.", section_id, index.size));
+
+        return index;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Вспомогательные методы">
+    /**
+     * Выбирает из индекса все опубликованные конфигурации группы
+     */
+    private List<Long> getPublishedConfigurationsIds(Long group_id) {
+
+        List<Long> products_ids = new ArrayList<Long>();
+
+        for (long after_id = 0l; ; ) {
+            List<Long> ids = _productsService.getIndexedProductsIds(group_id, 1l, after_id, PAGE_SIZE);
+            products_ids.addAll(ids);
+
+            if (ids.size() < PAGE_SIZE) {
+                return products_ids;
+            }
+
+            after_id = ids.get(ids.size() - 1);
+        }
+    }
+
+    private void readSelection(List<FilterView> filters, Map<Long, Set<Long>> selected, Map<Long, long[]> ranges) {
+
+        if (Is.Empty(filters)) {
+            return;
+        }
+
+        for (FilterView f : filters) {
+            if (f.getType().equals("select") && !Is.Empty(f.getSelectedValues()) && !f.getSelectedValues().isEmpty()) {
+                selected.put(f.getId(), new TreeSet<Long>(f.getSelectedValues()));
+            }
+            else if (f.getType().equals("radio") && !Is.Empty(f.getSelectedValue()) && f.getSelectedValue() > 0) {
+                selected.put(f.getId(), new TreeSet<Long>(Collections.singleton(f.getSelectedValue())));
+            }
+            else if (f.getType().equals("number") || f.getType().equals("interval")) {
+                Long min = Is.Empty(f.getMinValue()) ? null : Cast.toLong(f.getMinValue() + "");
+                Long max = Is.Empty(f.getMaxValue()) ? null : Cast.toLong(f.getMaxValue() + "");
+
+                if ((min != null && min > 0) || (max != null && max > 0)) {
+                    ranges.put(f.getId(), new long[]{
+                            min == null || min <= 0 ? Long.MIN_VALUE : min,
+                            max == null || max <= 0 ? Long.MAX_VALUE : max});
+                }
+            }
+        }
+    }
+
+    private String cacheKey(Long section_id, long version, long location, long node, Map<Long, Set<Long>> selected,
+                            Map<Long, long[]> ranges) {
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(section_id).append('@').append(version).append('|').append(location).append('|').append(node);
+
+        for (Map.Entry<Long, Set<Long>> e : selected.entrySet()) {
+            sb.append('|').append(e.getKey()).append('=').append(e.getValue());
+        }
+
+        for (Map.Entry<Long, long[]> e : ranges.entrySet()) {
+            sb.append('|').append(e.getKey()).append(':').append(e.getValue()[0]).append('-').append(e.getValue()[1]);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Индекс фильтров одного раздела
+     */
+    private static class FacetIndex {
+
+        // время построения индекса (используется и как версия)
+        private final long built = System.currentTimeMillis();
+
+        // максимальное количество товаров
+        private final int capacity;
+
+        // разделы товаров индекса
+        private final Set<Long> sections = new HashSet<Long>();
+
+        // количество товаров в индексе
+        private int size;
+
+        // товары магазинов (идентификатор узла -> маска товаров)
+        private final Map<Long, BitSet> shops = new HashMap<Long, BitSet>();
+
+        // товары городов (идентификатор города -> маска товаров)
+        private final Map<Long, BitSet> locations = new HashMap<Long, BitSet>();
+
+        // товары по значениям списочных фильтров (идентификатор фильтра -> значение -> маска товаров)
+        private final Map<Long, Map<Long, BitSet>> postings = new HashMap<Long, Map<Long, BitSet>>();
+
+        // значения числовых фильтров (идентификатор фильтра -> значения по номерам товаров)
+        private final Map<Long, long[]> numeric = new HashMap<Long, long[]>();
+
+        // границы интервалов числовых фильтров
+        private final Map<Long, long[]> edges = new HashMap<Long, long[]>();
+
+        private FacetIndex(int capacity) {
+            this.capacity = capacity;
+        }
+
+        private void add(long node_id, Long location_id, long section_id, List<FilterView> filters) {
+
+            int doc = size++;
+
+            sections.add(section_id);
+
+            bits(shops, node_id).set(doc);
+            if (location_id != null) {
+                bits(locations, location_id).set(doc);
+            }
+
+            if (Is.Empty(filters)) {
+                return;
+            }
+
+            for (FilterView f : filters) {
+                if (f.getType().equals("select") && !Is.Empty(f.getSelectedValues())) {
+                    for (Long v : f.getSelectedValues()) {
+                        posting(f.getId(), v).set(doc);
+                    }
+                }
+                else if (f.getType().equals("radio") && !Is.Empty(f.getSelectedValue()) && f.getSelectedValue() > 0) {
+                    posting(f.getId(), f.getSelectedValue()).set(doc);
+                }
+                else if (f.getType().equals("number") || f.getType().equals("interval")) {
+                    if (Is.Empty(f.getValue()) || f.getValue().trim().equals("") || Cast.toLong(f.getValue()) <= 0) {
+                        continue;
+                    }
+
+                    long[] values = numeric.get(f.getId());
+                    if (values == null) {
+                        values = new long[capacity];
+                        Arrays.fill(values, NO_VALUE);
+                        numeric.put(f.getId(), values);
+                    }
+                    values[doc] = Cast.toLong(f.getValue());
+                }
+            }
+        }
+
+        /**
+         * Считает границы интервалов числовых фильтров по квантилям значений
+         */
+        private void finish(int buckets) {
+
+            for (Map.Entry<Long, long[]> e : numeric.entrySet()) {
+                long[] sorted = new long[size];
+                int n = 0;
+                for (int doc = 0; doc < size; doc++) {
+                    if (e.getValue()[doc] != NO_VALUE) {
+                        sorted[n++] = e.getValue()[doc];
+                    }
+                }
+
+                if (n == 0) {
+                    continue;
+                }
+
+                Arrays.sort(sorted, 0, n);
+
+                // верхние границы интервалов (без повторов)
+                long[] bounds = new long[buckets];
+                int count = 0;
+                for (int i = 1; i <= buckets; i++) {
+                    int position = (int) ((long) n * i / buckets) - 1;
+                    long bound = sorted[Math.max(0, Math.min(n - 1, position))];
+                    if (count == 0 || bound > bounds[count - 1]) {
+                        bounds[count++] = bound;
+                    }
+                }
+
+                edges.put(e.getKey(), Arrays.copyOf(bounds, count));
+            }
+        }
+
+        private ProductFacets count(long location, long node, Map<Long, Set<Long>> selected, Map<Long, long[]> ranges) {
+
+            BitSet base = new BitSet(size);
+            base.set(0, size);
+
+            // индекс читается из нескольких потоков, поэтому здесь он не должен изменяться
+            if (location > 0) {
+                and(base, locations.get(location));
+            }
+            if (node > 0) {
+                and(base, shops.get(node));
+            }
+
+            // маски выбранных фильтров
+            Map<Long, BitSet> masks = new HashMap<Long, BitSet>();
+
+            for (Map.Entry<Long, Set<Long>> e : selected.entrySet()) {
+                BitSet mask = new BitSet(size);
+                Map<Long, BitSet> values = postings.get(e.getKey());
+                if (values != null) {
+                    for (Long v : e.getValue()) {
+                        BitSet p = values.get(v);
+                        if (p != null) {
+                            mask.or(p);
+                        }
+                    }
+                }
+                masks.put(e.getKey(), mask);
+            }
+
+            for (Map.Entry<Long, long[]> e : ranges.entrySet()) {
+                BitSet mask = new BitSet(size);
+                long[] values = numeric.get(e.getKey());
+                if (values != null) {
+                    for (int doc = 0; doc < size; doc++) {
+                        if (values[doc] != NO_VALUE && values[doc] >= e.getValue()[0] && values[doc] <= e.getValue()[1]) {
+                            mask.set(doc);
+                        }
+                    }
+                }
+                masks.put(e.getKey(), mask);
+            }
+
+            ProductFacets facets = new ProductFacets();
+
+            BitSet all = except(base, masks, null);
+            facets.setTotal(all.cardinality());
+
+            // Для значений фильтра учитываются все выбранные фильтры, кроме него самого
+            for (Map.Entry<Long, Map<Long, BitSet>> f : postings.entrySet()) {
+                BitSet others = except(base, masks, f.getKey());
+                Map<Long, Integer> counts = new HashMap<Long, Integer>();
+
+                for (Map.Entry<Long, BitSet> v : f.getValue().entrySet()) {
+                    BitSet hits = (BitSet) v.getValue().clone();
+                    hits.and(others);
+                    counts.put(v.getKey(), hits.cardinality());
+                }
+
+                facets.getCounts().put(f.getKey(), counts);
+            }
+
+            for (Map.Entry<Long, long[]> f : edges.entrySet()) {
+                BitSet others = except(base, masks, f.getKey());
+                long[] bounds = f.getValue();
+                long[] values = numeric.get(f.getKey());
+                int[] counts = new int[bounds.length];
+
+                for (int doc = others.nextSetBit(0); doc >= 0; doc = others.nextSetBit(doc + 1)) {
+                    if (values[doc] == NO_VALUE) {
+                        continue;
+                    }
+                    int i = Arrays.binarySearch(bounds, values[doc]);
+                    counts[i >= 0 ? i : Math.min(-i - 1, bounds.length - 1)]++;
+                }
+
+                List<ProductFacets.Bucket> buckets = new ArrayList<ProductFacets.Bucket>();
+                long from = 0l;
+                for (int i = 0; i < bounds.length; i++) {
+                    buckets.add(new ProductFacets.Bucket(from, bounds[i], counts[i]));
+                    from = bounds[i] + 1;
+                }
+
+                facets.getBuckets().put(f.getKey(), buckets);
+            }
+
+            return facets;
+        }
+
+        private static void and(BitSet base, BitSet mask) {
+            if (mask == null) {
+                base.clear();
+            }
+            else {
+                base.and(mask);
+            }
+        }
+
+        private static BitSet except(BitSet base, Map<Long, BitSet> masks, Long skip) {
+
+            BitSet result = (BitSet) base.clone();
+
+            for (Map.Entry<Long, BitSet> e : masks.entrySet()) {
+                if (!e.getKey().equals(skip)) {
+                    result.and(e.getValue());
+                }
+            }
+
+            return result;
+        }
+
+        private BitSet posting(Long filter_id, Long value) {
+
+            Map<Long, BitSet> values = postings.get(filter_id);
+
+            if (values == null) {
+                values = new HashMap<Long, BitSet>();
+                postings.put(filter_id, values);
+            }
+
+            return bits(values, value);
+        }
+
+        private static BitSet bits(Map<Long, BitSet> map, Long key) {
+
+            BitSet bits = map.get(key);
+
+            if (bits == null) {
+                bits = new BitSet();
+                map.put(key, bits);
+            }
+
+            return bits;
+        }
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,364 @@
+package com.wp.servicies.impl;
+
+import com.wp.servicies.interfaces.IProductsGroupsService;
+import com.wp.servicies.interfaces.IProductsService;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Данный сервис реализует отложенный пересчет общих свойств групп товаров.
+ *
+ * Группы, помеченные для пересчета, складываются в очереди по магазинам. Планировщик по кругу обходит магазины
+ * и отдает на пересчет не более одной группы магазина за раз, поэтому магазин, который массово редактирует свои
+ * товары, не занимает все потоки пула
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Service
+public class ProductsGroupsServiceImpl extends AService<IProductsGroupsService> implements IProductsGroupsService {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Сервис для работы с товарами
+    @Autowired
+    IProductsService _productsService;
+    // </editor-fold>
+
+    // Окно ожидания (в мс): группа пересчитывается только после того, как её не меняли это время
+    @Value("${products_groups_debounce_ms:3000}")
+    protected long DEBOUNCE_MS = 3000;
+
+    // Максимальное время ожидания (в мс) для группы, которую меняют непрерывно
+    @Value("${products_groups_max_delay_ms:15000}")
+    protected long MAX_DELAY_MS = 15000;
+
+    // Количество потоков для пересчета групп
+    @Value("${products_groups_workers:2}")
+    protected int WORKERS = 2;
+
+    // переменная, для работы с лог-файлами
+    private Logger log = Logger.getLogger(ProductsGroupsServiceImpl.class);
+
+    // Все структуры ниже изменяются только под этой блокировкой
+    private final Object lock = new Object();
+
+    // группы, ожидающие пересчета (group_id -> данные о группе)
+    private final Map<Long, DirtyGroup> dirty = new HashMap<Long, DirtyGroup>();
+
+    // очереди групп по магазинам (node_id -> идентификаторы групп в порядке первой пометки)
+    private final Map<Long, ArrayDeque<Long>> queues = new HashMap<Long, ArrayDeque<Long>>();
+
+    // порядок обхода магазинов
+    private final ArrayDeque<Long> shops = new ArrayDeque<Long>();
+
+    // группы, которые пересчитываются в данный момент (group_id -> задача)
+    private final Map<Long, Future<?>> running = new HashMap<Long, Future<?>>();
+
+    // магазины, у которых в данный момент пересчитывается группа
+    private final Set<Long> running_shops = new HashSet<Long>();
+
+    private ScheduledExecutorService timer;
+
+    private ThreadPoolExecutor workers;
+
+    // <editor-fold defaultstate="collapsed" desc="Запуск и остановка планировщика">
+    @PostConstruct
+    public void init() {
+
+        timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("products-groups-timer"));
+
+        // Очередь пула ограничена: планировщик сам не отдает больше задач, чем потоков в пуле
+        workers = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(WORKERS), new NamedThreadFactory("products-groups-worker"));
+
+        long tick = Math.max(100l, DEBOUNCE_MS / 4);
+
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dispatch();
+                }
+                catch (Exception ex) {
+                    log.error("Произошла ошибка при распределении групп товаров на пересчет", ex);
+                }
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+
+        timer.shutdownNow();
+
+        // Дожидаемся текущих пересчетов и пересчитываем всё, что осталось в очереди
+        workers.shutdown();
+        try {
+            workers.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        flushAll();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Помечаем группу для пересчета">
+    @Override
+    public void markDirty(final Long node_id, final Long group_id) {
+
+        if (group_id == null || group_id <= 0) {
+            return;
+        }
+
+        // Если мы внутри транзакции, то пересчитывать группу можно только после того, как изменения станут видны
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    mark(node_id, group_id);
+                }
+            });
+            return;
+        }
+
+        mark(node_id, group_id);
+    }
+
+    private void mark(Long node_id, Long group_id) {
+
+        long now = System.currentTimeMillis();
+        long shop_id = node_id == null ? 0l : node_id;
+
+        synchronized (lock) {
+            DirtyGroup group = dirty.get(group_id);
+
+            if (group == null) {
+                group = new DirtyGroup(shop_id, group_id, now);
+                dirty.put(group_id, group);
+
+                ArrayDeque<Long> queue = queues.get(shop_id);
+                if (queue == null) {
+                    queue = new ArrayDeque<Long>();
+                    queues.put(shop_id, queue);
+                    shops.add(shop_id);
+                }
+                queue.add(group_id);
+            }
+
+            // Откладываем пересчет, но не дольше максимального времени ожидания
+            group.due = Math.min(now + DEBOUNCE_MS, group.first_marked + MAX_DELAY_MS);
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Синхронный пересчет">
+    @Override
+    public void flush(Long group_id) {
+
+        if (group_id == null || group_id <= 0) {
+            return;
+        }
+
+        DirtyGroup group;
+        Future<?> current;
+
+        synchronized (lock) {
+            group = removeDirty(group_id);
+            current = running.get(group_id);
+        }
+
+        // Если группа пересчитывается прямо сейчас, дожидаемся окончания
+        if (current != null) {
+            try {
+                current.get();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException ex) {
+                log.warn(String.format("Не удалось пересчитать группу товаров %s.", group_id), ex);
+            }
+        }
+
+        if (group != null) {
+            _productsService.updateProductsGroupProperties(group_id);
+        }
+    }
+
+    @Override
+    public void flushAll() {
+
+        List<Long> groups;
+
+        synchronized (lock) {
+            groups = new ArrayList<Long>(dirty.keySet());
+        }
+
+        for (Long group_id : groups) {
+            try {
+                flush(group_id);
+            }
+            catch (Exception ex) {
+                log.error(String.format("Не удалось пересчитать группу товаров %s.", group_id), ex);
+            }
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Вспомогательные методы">
+    /**
+     * Отдает на пересчет группы, у которых истекло окно ожидания. Магазины обходятся по кругу, у каждого магазина
+     * одновременно пересчитывается не более одной группы
+     */
+    private void dispatch() {
+
+        long now = System.currentTimeMillis();
+
+        synchronized (lock) {
+            int shops_count = shops.size();
+
+            for (int i = 0; i < shops_count && running.size() < WORKERS; i++) {
+                Long shop_id = shops.poll();
+                ArrayDeque<Long> queue = queues.get(shop_id);
+
+                if (queue == null || queue.isEmpty()) {
+                    queues.remove(shop_id);
+                    continue;
+                }
+
+                // магазин уходит в конец круга
+                shops.add(shop_id);
+
+                if (running_shops.contains(shop_id)) {
+                    continue;
+                }
+
+                Long group_id = nextDueGroup(queue, now);
+
+                if (group_id == null) {
+                    continue;
+                }
+
+                DirtyGroup group = removeDirty(group_id);
+
+                running_shops.add(shop_id);
+                running.put(group_id, workers.submit(new GroupTask(group)));
+            }
+        }
+    }
+
+    private Long nextDueGroup(ArrayDeque<Long> queue, long now) {
+
+        for (Long group_id : queue) {
+            DirtyGroup group = dirty.get(group_id);
+
+            // группа, которая уже пересчитывается, не может быть запущена второй раз
+            if (group != null && group.due <= now && !running.containsKey(group_id)) {
+                return group_id;
+            }
+        }
+
+        return null;
+    }
+
+    private DirtyGroup removeDirty(Long group_id) {
+
+        DirtyGroup group = dirty.remove(group_id);
+
+        if (group != null) {
+            ArrayDeque<Long> queue = queues.get(group.node_id);
+            if (queue != null) {
+                queue.remove(group_id);
+            }
+        }
+
+        return group;
+    }
+
+    /**
+     * Данные о группе, ожидающей пересчета
+     */
+    private static class DirtyGroup {
+
+        // идентификатор магазина
+        private final long node_id;
+
+        // идентификатор группы товаров
+        private final long group_id;
+
+        // время первой пометки группы
+        private final long first_marked;
+
+        // время, после которого группу можно пересчитывать
+        private long due;
+
+        private DirtyGroup(long node_id, long group_id, long first_marked) {
+            this.node_id = node_id;
+            this.group_id = group_id;
+            this.first_marked = first_marked;
+        }
+    }
+
+    /**
+     * Задача пересчета одной группы
+     */
+    private class GroupTask implements Runnable {
+
+        private final DirtyGroup group;
+
+        private GroupTask(DirtyGroup group) {
+            this.group = group;
+        }
+
+        @Override
+        public void run() {
+            try {
+                _productsService.updateProductsGroupProperties(group.group_id);
+            }
+            catch (Exception ex) {
+                log.error(String.format("Не удалось пересчитать группу товаров %s.", group.group_id), ex);
+            }
+            finally {
+                synchronized (lock) {
+                    running.remove(group.group_id);
+                    running_shops.remove(group.node_id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Фабрика потоков-демонов с понятными именами (для логов и дампов потоков)
+     */
+    static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+    // </editor-fold>
+}
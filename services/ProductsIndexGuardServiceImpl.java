@@ -0,0 +1,149 @@
+package com.wp.servicies.impl;
+
+import com.wp.servicies.interfaces.*;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Данный сервис выбирает идентификаторы товаров из сфинкса так, чтобы сбои сфинкса не занимали потоки запросов.
+ *
+ * Выборка выполняется в отдельном пуле потоков с ограничением времени ожидания. После нескольких сбоев подряд
+ * (ошибка, превышение времени, все потоки пула заняты) обращения к сфинксу приостанавливаются, а запросы
+ * отвечаются последним удачным результатом такого же запроса. Удачные результаты запоминаются при каждой выборке,
+ * а после паузы пробный запрос проверяет, восстановился ли сфинкс
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Service
+public class ProductsIndexGuardServiceImpl extends AService<IProductsIndexGuardService>
+        implements IProductsIndexGuardService {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Сервис для работы с товарами, связанный со сфинксом
+    @Autowired
+    ISphinxProductIndex _sphinxProductsIndex;
+    // </editor-fold>
+
+    // Сколько (в мс) ждать ответа сфинкса
+    @Value("${products_sphinx_timeout_ms:2000}")
+    protected long TIMEOUT_MS = 2000;
+
+    // Количество сбоев подряд, после которого обращения к сфинксу приостанавливаются
+    @Value("${products_sphinx_failures:5}")
+    protected int FAILURES = 5;
+
+    // На сколько (в мс) приостанавливаются обращения к сфинксу
+    @Value("${products_sphinx_pause_ms:10000}")
+    protected long PAUSE_MS = 10000;
+
+    // Количество одновременных выборок из сфинкса
+    @Value("${products_sphinx_threads:32}")
+    protected int THREADS = 32;
+
+    // Сколько последних удачных результатов запросов хранится
+    @Value("${products_sphinx_stale_size:20000}")
+    protected int STALE_SIZE = 20000;
+
+    // Сколько (в мс) хранится удачный результат запроса
+    @Value("${products_sphinx_stale_ttl_ms:3600000}")
+    protected long STALE_TTL_MS = 3600000;
+
+    // переменная, для работы с лог-файлами
+    private Logger log = Logger.getLogger(ProductsIndexGuardServiceImpl.class);
+
+    private ExecutorService executor;
+
+    private CircuitBreaker breaker;
+
+    // последние удачные результаты запросов (ключ запроса -> идентификаторы товаров)
+    private LruCache<String, List<Long>> last_results;
+
+    // <editor-fold defaultstate="collapsed" desc="Запуск и остановка">
+    @PostConstruct
+    public void init() {
+
+        // Очереди нет: если все потоки заняты, то сфинкс не справляется и ждать бесполезно
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 60l, TimeUnit.SECONDS,
+                                          new SynchronousQueue<Runnable>(),
+                                          new ProductsGroupsServiceImpl.NamedThreadFactory("products-sphinx"));
+
+        breaker = new CircuitBreaker(FAILURES, PAUSE_MS);
+
+        last_results = new LruCache<String, List<Long>>(STALE_SIZE, STALE_TTL_MS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Выбираем идентификаторы товаров">
+    @Override
+    public List<Long> select(final SphinxSelectSettings settings, String key, boolean allow_stale) {
+
+        if (breaker.allowRequest()) {
+            Future<List<Long>> future = null;
+
+            try {
+                future = executor.submit(new Callable<List<Long>>() {
+                    @Override
+                    public List<Long> call() throws Exception {
+                        return _sphinxProductsIndex.select(settings);
+                    }
+                });
+
+                List<Long> ids = future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+                breaker.onSuccess();
+                last_results.put(key, ids);
+
+                return ids;
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                onFailure(key, ex);
+            }
+            catch (TimeoutException ex) {
+                future.cancel(true);
+                onFailure(key, ex);
+            }
+            catch (ExecutionException ex) {
+                onFailure(key, ex.getCause());
+            }
+            catch (RejectedExecutionException ex) {
+                onFailure(key, ex);
+            }
+        }
+
+        return allow_stale ? last_results.get(key) : null;
+    }
+
+    @Override
+    public boolean isUnavailable() {
+        return breaker.isOpen();
+    }
+
+    private void onFailure(String key, Throwable ex) {
+
+        boolean was_open = breaker.isOpen();
+
+        breaker.onFailure();
+
+        if (!was_open && breaker.isOpen()) {
+            log.error(String.format("Сфинкс недоступен, обращения приостановлены на %s мс.", PAUSE_MS), ex);
+        }
+        else {
+            log.warn(String.format("Не удалось выбрать товары из сфинкса (%s): %s", key, ex));
+        }
+    }
+    // </editor-fold>
+}
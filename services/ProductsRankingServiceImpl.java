@@ -0,0 +1,283 @@
+package com.wp.servicies.impl;
+
+import com.wp.mappers.ibatis.postgres.IProductWeightsMapper;
+import com.wp.mappers.ibatis.postgres.IProductsConsistencyMapper;
+import com.wp.model.CompactProduct;
+import com.wp.model.ProductRankingInput;
+import com.wp.model.enums.StatesEnum;
+import com.wp.model.enums.TypesEnum;
+import com.wp.servicies.interfaces.*;
+import com.wp.utils.Cast;
+import com.wp.utils.Is;
+import com.wp.utils.mybatis.plugins.paging.page.PageContext;
+import com.wp.web.exceptions.NotFoundException;
+import com.wp.web.views.RankingReport;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Данный сервис считает вес товаров в выдаче.
+ *
+ * Вес складывается из составляющих (все бины IRankingSignal) с множителями из настройки products_ranking_weights
+ * (например "completeness:1,freshness:1,popularity:1,price:1,reputation:1"). Фоновая задача каждый запуск
+ * пересчитывает следующую порцию действующих товаров (по возрастанию идентификатора) и записывает в сфинкс только
+ * изменившийся вес
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Service
+public class ProductsRankingServiceImpl extends AService<IProductsRankingService> implements IProductsRankingService {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Сервис для работы с товарами
+    @Autowired
+    IProductsService _productsService;
+
+    // Сервис для подсчета просмотров товаров
+    @Autowired
+    IProductsStatsService _statsService;
+
+    // Сервис для разбора фильтров разделов
+    @Autowired
+    IFilterQueryService _filterQueryService;
+
+    // Маппер для работы с записанным весом товаров
+    @Autowired
+    IProductWeightsMapper _weightsMapper;
+
+    // Маппер для обхода товаров по идентификаторам
+    @Autowired
+    IProductsConsistencyMapper _itemsMapper;
+
+    // Составляющие веса товара
+    @Autowired
+    List<IRankingSignal> signals;
+    // </editor-fold>
+
+    // Множители составляющих веса (название составляющей:множитель через запятую, по умолчанию множитель 1)
+    @Value("${products_ranking_weights:}")
+    protected String WEIGHTS = "";
+
+    // Как часто (в мс) запускается пересчет очередной порции товаров
+    @Value("${products_ranking_interval_ms:600000}")
+    protected long INTERVAL_MS = 600000;
+
+    // Сколько страниц товаров пересчитывается за один запуск
+    @Value("${products_ranking_pages:10}")
+    protected int PAGES_PER_RUN = 10;
+
+    // Пробный режим: фоновая задача только пишет в лог, как изменится вес, ничего не записывая
+    @Value("${products_ranking_dry_run:false}")
+    protected boolean DRY_RUN = false;
+
+    // количество товаров на странице при обходе каталога
+    private static final int PAGE_SIZE = 500;
+
+    // переменная, для работы с лог-файлами
+    private Logger log = Logger.getLogger(ProductsRankingServiceImpl.class);
+
+    // множители составляющих (название -> множитель)
+    private final Map<String, Long> multipliers = new HashMap<String, Long>();
+
+    // идентификатор товара, после которого продолжится обход каталога
+    private long next_id = 0l;
+
+    private ScheduledExecutorService scheduler;
+
+    // <editor-fold defaultstate="collapsed" desc="Запуск и остановка">
+    @PostConstruct
+    public void init() {
+
+        if (!Is.Empty(WEIGHTS)) {
+            for (String pair : WEIGHTS.split(",")) {
+                String[] parts = pair.trim().split(":");
+                if (parts.length == 2) {
+                    multipliers.put(parts[0].trim(), Cast.toLong(parts[1].trim()));
+                }
+            }
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ProductsGroupsServiceImpl.NamedThreadFactory("products-ranking"));
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refreshNextSlice();
+                }
+                catch (Exception ex) {
+                    log.error("Не удалось пересчитать вес товаров", ex);
+                }
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Считаем вес товара">
+    @Override
+    public long computeWeight(ProductRankingInput product) {
+
+        long weight = 0l;
+
+        for (IRankingSignal signal : signals) {
+            Long multiplier = multipliers.get(signal.getName());
+            weight += signal.score(product) * (multiplier == null ? 1l : multiplier);
+        }
+
+        return weight;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Записываем вес товара">
+    @Override
+    public void storeWeight(long product_id, long weight) {
+        try {
+            if (_weightsMapper.update(product_id, weight) == 0) {
+                _weightsMapper.insert(product_id, weight);
+            }
+        }
+        catch (DuplicateKeyException ex) {
+            // строку успел добавить другой сервер
+            _weightsMapper.update(product_id, weight);
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Пересчитываем вес товаров">
+    @Override
+    public RankingReport refresh(Collection<Long> products_ids, boolean dry_run) {
+
+        RankingReport report = new RankingReport(dry_run);
+
+        if (Is.Empty(products_ids)) {
+            return report;
+        }
+
+        Map<Long, Long> popularity = _statsService.getPopularity(products_ids);
+        Map<Long, Long> stored = getStoredWeights(products_ids);
+
+        // изменившийся вес записывается в сфинкс одной порцией после пересчета
+        Map<Long, Long> changed = new LinkedHashMap<Long, Long>();
+
+        for (Long product_id : products_ids) {
+            try {
+                CompactProduct product = _productsService.getCompactProductModel(product_id);
+
+                Long product_popularity = popularity.get(product_id);
+
+                long weight = computeWeight(ProductRankingInput.of(product,
+                        _filterQueryService.getSchema(product.getSection_id()),
+                        product_popularity == null ? 0l : product_popularity));
+
+                Long old_weight = stored.get(product_id);
+                report.add(product_id, old_weight, weight);
+
+                if (dry_run || (old_weight != null && old_weight == weight)) {
+                    continue;
+                }
+
+                changed.put(product_id, weight);
+            }
+            catch (NotFoundException ex) {
+                // товар удален или снят с публикации
+            }
+            catch (Exception ex) {
+                log.warn(String.format("Не удалось пересчитать вес товара %s.", product_id), ex);
+            }
+        }
+
+        if (changed.isEmpty()) {
+            return report;
+        }
+
+        // в БД записывается только вес, который попал в сфинкс
+        for (Long product_id : _productsService.updateProductsWeights(changed)) {
+            storeWeight(product_id, changed.get(product_id));
+        }
+
+        return report;
+    }
+
+    @Override
+    public RankingReport refresh(Collection<Long> products_ids) {
+        return refresh(products_ids, DRY_RUN);
+    }
+
+    @Override
+    public RankingReport preview(Long section_id) {
+
+        List<Long> products_ids = new ArrayList<Long>();
+
+        for (int page = 1; ; page++) {
+            PageContext pc = new PageContext().setPageSize(PAGE_SIZE).setCurrentPage(page);
+            List<Long> ids = _productsService.getPublishedProductsIds(section_id, pc);
+            products_ids.addAll(ids);
+
+            if (ids.size() < PAGE_SIZE) {
+                break;
+            }
+        }
+
+        RankingReport report = refresh(products_ids, true);
+
+        log.info(report);
+
+        return report;
+    }
+
+    /**
+     * Пересчитывает следующую порцию каталога. Каталог обходится по кругу, поэтому за несколько запусков
+     * пересчитываются все товары (и убывающая со временем новизна в том числе). Товары выбираются из БД по
+     * возрастанию идентификатора, поэтому изменение веса не сдвигает товары между порциями
+     */
+    private synchronized void refreshNextSlice() {
+
+        long type_id = TypesEnum.PRODUCTS.getType().getId();
+        List<Long> states_ids = Arrays.asList(StatesEnum.ACTIVE.getState().getId(),
+                                              StatesEnum.APPROVED.getState().getId());
+
+        for (int i = 0; i < PAGES_PER_RUN; i++) {
+            List<Long> ids = _itemsMapper.selectProductsIds(type_id, states_ids, next_id, PAGE_SIZE);
+
+            RankingReport report = refresh(ids);
+            log.info(String.format("Товары после %s: %s", next_id, report));
+
+            next_id = ids.size() < PAGE_SIZE ? 0l : ids.get(ids.size() - 1);
+
+            if (next_id == 0l) {
+                break;
+            }
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Вспомогательные методы">
+    private Map<Long, Long> getStoredWeights(Collection<Long> products_ids) {
+
+        Map<Long, Long> result = new HashMap<Long, Long>();
+
+        for (Map<String, Object> row : _weightsMapper.selectByIds(products_ids)) {
+            result.put(Cast.toLong(row.get("product_id") + ""), Cast.toLong(row.get("weight") + ""));
+        }
+
+        return result;
+    }
+    // </editor-fold>
+}
@@ -1,9 +1,16 @@
 package com.wp.servicies.impl;
 
 import com.wp.annotation.OffTLU;
-import com.wp.crypto.Hash;
+import com.wp.mappers.ibatis.postgres.IProductsConsistencyMapper;
+import com.wp.model.CompactProduct;
+import com.wp.model.ConfigurationFingerprint;
+import com.wp.model.FILTERS;
+import com.wp.model.FilterQueryPlan;
 import com.wp.model.Product;
+import com.wp.model.ProductEvent;
 import com.wp.model.ProductGroupProperties;
+import com.wp.model.ProductRankingInput;
+import com.wp.model.ProductVariantMatrix;
 import com.wp.model.PropertyName;
 import com.wp.model.composite.PropertySimple;
 import com.wp.model.enums.StatesEnum;
@@ -27,7 +34,10 @@ import org.codehaus.jackson.map.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.test.context.transaction.TransactionConfiguration;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.io.IOException;
 import java.util.*;
@@ -59,19 +69,95 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
     // Сервис для работы с товарами, связанный со сфинксом
     @Autowired
     ISphinxProductIndex _sphinxProductsIndex;
+
+    // Сервис для отложенного пересчета групп товаров
+    @Autowired
+    IProductsGroupsService _groupsService;
+
+    // Сервис для работы с городами доставки магазинов
+    @Autowired
+    IDeliveryLocationsService _deliveryLocationsService;
+
+    // Сервис для разбора параметров запроса в запрос по фильтрам
+    @Autowired
+    IFilterQueryService _filterQueryService;
+
+    // Сервис для подсчета просмотров товаров
+    @Autowired
+    IProductsStatsService _statsService;
+
+    // Сервис для расчета веса товаров в выдаче
+    @Autowired
+    IProductsRankingService _rankingService;
+
+    // Сервис для очереди событий изменения товаров
+    @Autowired
+    IProductEventsService _eventsService;
+
+    // Сервис для проверки, что товара или группы нет в БД
+    @Autowired
+    IProductsExistenceService _existenceService;
+
+    // Сервис для выборки из сфинкса с ограничением времени ожидания
+    @Autowired
+    IProductsIndexGuardService _indexGuardService;
+
+    // Маппер для выборки идентификаторов товаров из БД в обход сфинкса
+    @Autowired
+    IProductsConsistencyMapper _itemsMapper;
+
+    // Сервис для замера памяти, выделенной запросами товаров
+    @Autowired
+    IProductsAllocationService _allocationService;
     // </editor-fold>
 
     // переменная, для работы с лог-файлами
     private Logger log = Logger.getLogger(ProductsServiceImpl.class);
 
+    // количество конфигураций, которые показываются на странице группы
+    private static final int GROUP_PAGE_SIZE = 30;
+
+    // свойства товара, которые показываются в списках (описание и фильтры выбираются при обращении к ним)
+    private static final String[] LIST_PROPERTIES = new String[]{
+            PropertyName.TITLE, PropertyName.PRICE, PropertyName.HASH, PropertyName.DIMENSION, PropertyName.GROUP_ID,
+            PropertyName.IS_PUBLISH, PropertyName.SECTION, PropertyName.IMAGES};
+
+    // количество товаров, которые выбираются из сфинкса за раз при переиндексации
+    private static final int REINDEX_PAGE_SIZE = 500;
+
+    // сколько (в мс) матрица группы считается устаревшей после изменения конфигурации (больше, чем откладывается
+    // пересчет группы, чтобы другие серверы не прочитали из папки старую матрицу)
+    private static final long STALE_MATRIX_MS = 60000;
+
+    // разобранные матрицы вариантов групп (group_id -> матрица)
+    private final LruCache<Long, ProductVariantMatrix> variant_matrices =
+            new LruCache<Long, ProductVariantMatrix>(10000);
+
+    // группы, конфигурации которых изменились, а матрица еще не пересчитана (group_id -> отметка)
+    private final LruCache<Long, Boolean> stale_matrices = new LruCache<Long, Boolean>(10000, STALE_MATRIX_MS);
+
+    // данные о фотографиях товаров (image_id -> данные)
+    private final LruCache<Long, ImageView> image_views = new LruCache<Long, ImageView>(50000, 600000l);
+
+    // компактные модели товаров (product_id -> модель)
+    private final LruCache<Long, CompactProduct> compact_products =
+            new LruCache<Long, CompactProduct>(200000, 600000l);
+
+    // фильтры для сфинкса, подготовленные по разобранным запросам (каноническая строка запроса -> фильтры)
+    private final LruCache<String, SphinxSelectSettings> sphinx_filters =
+            new LruCache<String, SphinxSelectSettings>(20000, 300000l);
+
     // <editor-fold defaultstate="collapsed" desc="Сохраняем товар">
     @Override
     @OffTLU
-    public Long saveProduct(Long node_id, Long product_id, Long group_id, ProductForm form) {
+    public ProductSaveResult saveProduct(Long node_id, Long product_id, Long group_id, ProductForm form) {
 
         Items item;
         Long old_section_id = null;
 
+        // сохраненные свойства товара (при обновлении)
+        Map<String, PropertySimple> stored = null;
+
         // Если добавляем новый товар
         if (product_id == 0) {
             // Создаем объект типа товар на узле с идентификатором node_id
@@ -80,17 +166,24 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
                 Logger.getLogger(ProductsServiceImpl22.class).error("Не удалость создать объект товара");
                 return null;
             }
+
+            _existenceService.registerProduct(item.getId());
         }
         // Если обновляем старый
         else {
-            // Получаем объект по идентификатору, выбирая также свойство PropertyName.SECTION (раздел, в котором
-            // лежит товар)
-            item = _io.getItemById(product_id, new ExtendContext(Items.class).names(PropertyName.SECTION));
+            // Получаем объект по идентификатору со всеми свойствами: раздел, в котором лежит товар, и свойства,
+            // с которыми будут сравниваться новые
+            item = _io.getItemById(product_id, new ExtendContext(Items.class).names("*"));
 
             if (Is.Empty(item)) {
                 throw new NotFoundException("Товар не найден");
             }
 
+            // Товар мог быть запомнен отсутствующим, пока не был действующим (например, до одобрения)
+            _existenceService.registerProduct(product_id);
+
+            stored = ProductPropertiesDiff.storedProperties(item);
+
             Object section = item.getValue(PropertyName.SECTION);
 
             // Если раздел был сохранен как Items (объект)
@@ -107,13 +200,33 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
         // тут мы получили псевдоним для фильтра с ценой (обычно этот alias == "price")
         // В дальнейшем нам это будет необходимо, чтобы из всех фильтров узнать значение цены
         // для товара (ключом будет как раз этот alias)
-        form.setPrice_alias(getAliasForPrice(form.getSection_id()));
+        // Фильтры формы разбираются по описанию фильтров раздела, в котором есть и этот псевдоним
+        form.applySchema(_filterQueryService.getSchema(form.getSection_id()));
+
+        List<PropertySimple> properties = form.toProps();
+
+        // Отпечаток конфигурации хранится числом, по нему ищутся одинаковые конфигурации (форма считает его один раз
+        // после разбора фильтров по описанию раздела)
+        long fingerprint = form.getFingerprint();
+        properties.add(new PropertySimple(ConfigurationFingerprint.PROPERTY_NAME, fingerprint));
 
-        // Перед добавлением/сохранением товара очищаем все его свойства
-        _sectionsService.clearFilterProperties(item);
+        // Для сфинкса нужна полная переиндексация, если товар новый или изменились текст или раздел
+        boolean reindex = true;
 
-        // Сохраняем все его новые свойства
-        _cs.savePropertiesList(item, false, form.toProps());
+        if (stored == null) {
+            // Сохраняем все свойства нового товара
+            _cs.savePropertiesList(item, false, properties);
+        }
+        else {
+            // Записываем только измененные свойства и очищаем удаленные, остальные строки в БД не трогаем
+            ProductPropertiesDiff diff = ProductPropertiesDiff.compare(stored, properties);
+
+            if (!diff.isEmpty()) {
+                _cs.savePropertiesList(item, false, diff.getChanges());
+            }
+
+            reindex = diff.isFullTextChanged() || form.getSection_id() != old_section_id;
+        }
 
         // Если раздел изменился, то удаляем товар со старого раздела в сфинксе
         if(old_section_id != null && form.getSection_id() != old_section_id) {
@@ -141,6 +254,10 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
         // идентификатор узла, на котором сохранен товар
         sphinx_item.setShop_id(node_id);
 
+        // отпечаток конфигурации товара (в запросах пока не используется: уникальность конфигурации проверяется
+        // по моделям товаров группы в checkConfigurationForUnique)
+        sphinx_item.setFingerprint(fingerprint);
+
         // опубликованыый или неопубликованный товар
         sphinx_item.setActive(form.getIs_publish());
 
@@ -152,32 +269,62 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
         // список городов, в которых продается товар
         sphinx_item.setLocations(loc);
 
+        // список городов, в которые магазин доставляет товар
+        sphinx_item.setLocations_to(_deliveryLocationsService.getDeliveryLocations(node_id));
+
         if (!Is.Empty(form.getGroup_id()) && form.getGroup_id() > 0) {
             // идентификатор группы, если товар является конфигурацией другого товара
             sphinx_item.setGroup_id(form.getGroup_id());
         }
 
         // Расчитываем вес товара
-        long weight = 0l;
-        weight += !Is.Empty(form.getImages()) ? 2 : 0;
-        if (!Is.Empty(form.getPrice_alias()) && form.getFiltersMap() != null &&
-            form.getFiltersMap().containsKey(form.getPrice_alias())) {
-            weight += 1;
+        ProductRankingInput ranking = new ProductRankingInput();
+        ranking.setId(item.getId());
+        ranking.setNode_id(node_id);
+        ranking.setSection_id(form.getSection_id());
+        ranking.setDate(item.getDate_in());
+        ranking.setImages_count(form.getImages() == null ? 0 : form.getImages().size());
+        ranking.setHas_price(!Is.Empty(form.getPrice_alias()) && form.getFiltersMap() != null &&
+                             form.getFiltersMap().containsKey(form.getPrice_alias()));
+        ranking.setFilled_filters(form.getFiltersMap() == null ? 0 : form.getFiltersMap().size());
+        ranking.setTotal_filters(_filterQueryService.getSchema(form.getSection_id()).size());
+        ranking.setPopularity(product_id == 0 ? 0l : _statsService.getPopularity(item.getId()));
+
+        // вес товара (записывается и в БД, чтобы фоновый пересчет сравнивал с весом, который лежит в сфинксе)
+        long weight = _rankingService.computeWeight(ranking);
+        sphinx_item.setProduct_weight(weight);
+        _rankingService.storeWeight(item.getId(), weight);
+
+        if (reindex) {
+            // добавляем товар в индекс сфинкса
+            _sphinxProductsIndex.addToIndex(sphinx_item);
+        }
+        else {
+            // текст и фильтры не изменились, обновляем только атрибуты товара
+            _sphinxProductsIndex.update(sphinx_item);
         }
 
-        // вес товара
-        sphinx_item.setProduct_weight(weight);
+        if (group_id != null && group_id > 0) {
+            // Помечаем конфигурации товара для пересчета (все конфигурации товара лежат в одной папке, сделано для
+            // быстроты выборки данных по конфигурациям). При массовом редактировании группа пересчитается один раз
+            _groupsService.markDirty(node_id, group_id);
 
-        // добавляем товар в индекс сфинкса
-        _sphinxProductsIndex.addToIndex(sphinx_item);
+            // до пересчета выбор конфигураций строится по самим конфигурациям
+            evictGroupCaches(group_id);
+        }
 
-        if (group_id > 0) {
-            // Обновляем конфигурации для товара (все конфигурации товара лежат в одной папке, сделано для быстроты
-            // выборки данных по конфигурациям)
-            This().updateProductsGroupProperties(group_id);
+        // Событие изменения товара пишется в той же транзакции, подписчики получат его после коммита
+        ProductEvent event = new ProductEvent(getSaveEventType(stored, form), item.getId(), node_id,
+                                              form.getSection_id(), group_id == null ? 0l : group_id);
+        if (old_section_id != null && form.getSection_id() != old_section_id) {
+            event.setOld_section_id(old_section_id);
         }
+        _eventsService.publish(event);
 
-        return item.getId();
+        // Собираем модель из сохраненных данных, чтобы не выбирать товар повторно
+        Product product = buildSavedModel(item, node_id, form, properties);
+
+        return new ProductSaveResult(product, buildConfigurationForList(product));
     }
     // </editor-fold>
 
@@ -189,23 +336,95 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
     @Transactional(readOnly = true, noRollbackFor = NotFoundException.class)
     public Product getProductModel(Long product_id) {
 
-        FilterContext fc = new FilterContext();
-
-        // Формируем контекст для условие "WHERE" в PostgreSQL и говорим, что хотим получать
-        // только опубликованные или одобренные товары
-        fc.where()  .variable(PropertyName.STATE_ID).operand(OPERANDS.IN)
-                    .value(new Long[]{StatesEnum.ACTIVE.getState().getId(), StatesEnum.APPROVED.getState().getId()});
+        // Несуществующие товары (удаленные, перебор идентификаторов) отсекаются без запроса в БД
+        if (_existenceService.isMissingProduct(product_id)) {
+            throw new NotFoundException("Товар не найден");
+        }
 
-        // Получаем объект товара по его id со всеми свойствами
+        // Получаем объект товара по его id со всеми свойствами (только опубликованные или одобренные товары)
         Items item = _io.getItemByIdAndType(product_id, TypesEnum.PRODUCTS,
-                new ExtendContext(Items.class).names("*"), fc);
+                new ExtendContext(Items.class).names("*"), activeOrApproved());
 
         if (Is.Empty(item)) {
+            _existenceService.markMissingProduct(product_id);
             throw new NotFoundException("Товар не найден");
         }
 
+        return buildProductModel(item);
+    }
+
+    private Product buildProductModel(Items item) {
+
+        long mark = _allocationService.mark();
+
         // Преобразуем данные в класс (модель), для дальнейшего удобства
-        return new Product(item);
+        Product product = new Product(item);
+
+        _allocationService.record("Product.apply", mark);
+
+        return product;
+    }
+
+    @Override
+    @OffTLU
+    @Transactional(readOnly = true, noRollbackFor = NotFoundException.class)
+    public Product getProductModelForList(Long product_id) {
+
+        // Для списков выбираем только свойства, которые в них показываются
+        Items item = _io.getItemByIdAndType(product_id, TypesEnum.PRODUCTS,
+                new ExtendContext(Items.class).names(LIST_PROPERTIES), activeOrApproved());
+
+        if (Is.Empty(item)) {
+            throw new NotFoundException("Товар не найден");
+        }
+
+        return buildLightProductModel(item);
+    }
+
+    private Product buildLightProductModel(Items item) {
+
+        long mark = _allocationService.mark();
+
+        // Описание и фильтры выбираются, только если к ним обратятся. Обращение может быть уже после выхода из
+        // этого метода, поэтому полная модель выбирается через прокси: в своей транзакции и только действующий товар
+        Product product = Product.light(item, new Product.Loader() {
+            @Override
+            public Product load(long id) {
+                return This().getProductModel(id);
+            }
+        });
+
+        _allocationService.record("Product.light", mark);
+
+        return product;
+    }
+
+    @Override
+    @OffTLU
+    public CompactProduct getCompactProductModel(Long product_id) {
+
+        CompactProduct product = compact_products.get(product_id);
+
+        if (product != null) {
+            return product;
+        }
+
+        Items item = _io.getItemByIdAndType(product_id, TypesEnum.PRODUCTS,
+                new ExtendContext(Items.class).names("*"), activeOrApproved());
+
+        if (Is.Empty(item)) {
+            throw new NotFoundException("Товар не найден");
+        }
+
+        Object section = item.getValue(PropertyName.SECTION);
+        Long section_id = section instanceof Items ? ((Items) section).getId() : (Long) section;
+
+        // Значения фильтров раскладываются по описанию фильтров раздела
+        product = CompactProduct.from(item, _filterQueryService.getSchema(section_id));
+
+        compact_products.put(product_id, product);
+
+        return product;
     }
     // </editor-fold>
 
@@ -226,6 +445,8 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
             throw new InternalServerErrorException();
         }
 
+        _existenceService.registerGroup(productFolderItem.getId());
+
         // Обновляем свойства PropertyName.GROUP_ID у товара, который был одиночным и стал конфигурацией
         _cs.saveProperties( new Items(product_id), false,
                             new PropertySimple(PropertyName.GROUP_ID, productFolderItem.getId()));
@@ -239,6 +460,9 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
         // обновляем свойство группы для товара в сфинксе
         _sphinxProductsIndex.update(sphinx_item);
 
+        _eventsService.publish(new ProductEvent(ProductEvent.Type.REGROUPED, product_id, product.getNode_id(),
+                                                product.getSection_id(), productFolderItem.getId()));
+
         return productFolderItem.getId();
     }
     // </editor-fold>
@@ -270,11 +494,19 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
         // Неинтересные обработки для свойств и фильтров для товаров
         List<PropertySimple> properties = processingFiltersFromConfigurations(products);
 
+        // Матрица вариантов, по которой конфигурации выбираются на странице группы без запроса в сфинкс
+        String variant_matrix = processingVariantMatrix(products);
+        if (variant_matrix != null) {
+            properties.add(new PropertySimple(ProductVariantMatrix.PROPERTY_NAME, variant_matrix));
+        }
+
         try {
             ProductGroupProperties group_properties = This().getGroupPropertiesModel(group_id);
 
             // обновляем конфигурации для товаров
             _cs.savePropertiesList(new Items(group_properties.getId()), false, properties);
+
+            onVariantMatrixSaved(group_id);
         }
         catch (Exception ex) {
             log.error("Произошла ошибка при обработке свойств для группы товаров", ex);
@@ -288,19 +520,22 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
     public ProductViewForView getProductView(Long product_id) {
 
         // Получаем модель товара со всем свойствами
-        Product product = This().getProductModel(product_id);
+        return buildProductView(This().getProductModel(product_id));
+    }
 
-        // Берем только нужные свойства для конкретного случая
-        ProductViewForView view = new ProductViewForView(product);
+    @Override
+    @OffTLU
+    public ProductViewForView getProductView(Product product) {
+        return buildProductView(product);
+    }
 
-        List<ImageView> images = new ArrayList<ImageView>();
+    private ProductViewForView buildProductView(Product product) {
 
-        for (Long image_id : product.getImages()) {
-            images.add(_imageService.getImageInfo(image_id));
-        }
+        // Берем только нужные свойства для конкретного случая
+        ProductViewForView view = new ProductViewForView(product);
 
         // Получаем список фотографий к товару
-        view.setImages(images);
+        view.setImages(getImageInfos(product.getImages()));
 
         // Устанавливаем все указанные характеристики товара, которые учавствуют в поиске (фильтры)
         view.setFilters(_sectionsService.getFiltersByMapForView(product.getSection_id(), product.getFilters(), false));
@@ -328,19 +563,135 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
     public ProductViewForEdit getProductForEdit(Long product_id) {
 
         // Получаем модель товара со всем свойствами
-        Product product = This().getProductModel(product_id);
+        return buildProductForEdit(This().getProductModel(product_id));
+    }
+    // </editor-fold>
 
-        // Берем только нужные свойства для конкретного случая
-        ProductViewForEdit view = new ProductViewForEdit(product);
+    // <editor-fold defaultstate="collapsed" desc="Получаем все данные страницы группы товаров">
+    @Override
+    @OffTLU
+    public ProductGroupSnapshot getGroupSnapshot(Long group_id, Map<String, String[]> filters) {
+
+        if (_existenceService.isMissingGroup(group_id)) {
+            throw new NotFoundException("Не найдена папка для товаров");
+        }
+
+        // Папка группы выбирается один раз: из нее берутся и характеристики группы, и матрица вариантов
+        Items folder = _io.getItemByIdAndType(group_id, TypesEnum.FOLDER, new ExtendContext(Items.class).names("*"));
+
+        if (Is.Empty(folder)) {
+            _existenceService.markMissingGroup(group_id);
+            throw new NotFoundException("Не найдена папка для товаров");
+        }
+
+        // Получаем все конфигурации группы одним запросом, всё остальное строим из них
+        List<Long> products_ids = getProductsIds(0l, group_id, 0l, null, null, null, null, null);
+
+        Map<Long, Items> items = getProductItems(products_ids, "*");
+
+        List<Product> models = new ArrayList<Product>();
+        Map<Long, Product> models_by_id = new HashMap<Long, Product>();
+        for (Long product_id : products_ids) {
+            Items item = items.get(product_id);
+            if (item != null) {
+                Product model = new Product(item);
+                models.add(model);
+                models_by_id.put(product_id, model);
+            }
+        }
+
+        if (models.isEmpty()) {
+            throw new NotFoundException("Конфигурации не найдены");
+        }
 
-        List<ImageView> images = new ArrayList<ImageView>();
+        ProductGroupSnapshot snapshot = new ProductGroupSnapshot();
+        snapshot.setGroup_id(group_id);
+        snapshot.setSection_id(models.get(0).getSection_id());
 
-        for (Long image_id : product.getImages()) {
-            images.add(_imageService.getImageInfo(image_id));
+        // Получаем фотографии всех конфигураций группы за один раз
+        List<Long> images_ids = new ArrayList<Long>();
+        for (Product model : models) {
+            images_ids.addAll(model.getImages());
         }
+        getImageInfos(images_ids);
+
+        for (Product model : models) {
+            snapshot.getConfigurations().add(buildProductForEdit(model));
+        }
+
+        // Получаем все характеристики группы товаров
+        ProductGroupProperties group_properties = new ProductGroupProperties(folder);
+        snapshot.setProperties(group_properties);
+
+        // Если мы работаем с разделом одежды, получаем систему измерения размеров для группы товаров
+        String[] dimension_param = filters == null ? null : filters.get("dimension_system");
+        String dimension_system = Is.Empty(dimension_param) || Is.Empty(dimension_param[0]) ?
+                                        group_properties.getDimension_system() :
+                                        dimension_param[0];
+
+        // Получаем выбранные фильтры на странице поиска товаров по параметрам (аналог Яндекс Маркета)
+        List<FilterView> selected_filters = _sectionsService.getOnlySelectedFilters(snapshot.getSection_id(),
+                                                                                    group_properties.getFilters(),
+                                                                                    filters,
+                                                                                    dimension_system);
+        snapshot.setFilters(selected_filters);
+
+        // Если фильтры не были переданы или их воообще нет, то не учитываем фильтры при выборе конфигураций
+        if (Is.Empty(selected_filters) || selected_filters.isEmpty()) {
+            filters = null;
+        }
+
+        // Матрица вариантов: сохраненная в группе или построенная по уже полученным конфигурациям
+        ProductVariantMatrix matrix = getVariantMatrix(group_id, folder);
+        if (matrix == null) {
+            matrix = buildVariantMatrix(snapshot.getConfigurations());
+        }
+
+        List<Long> filtered_ids;
+
+        if (matrix.canSelect(filters)) {
+            ProductVariantMatrix.Selection selection =
+                    matrix.select(filters == null ? null : getSelectedValues(selected_filters));
+
+            filtered_ids = selection.getIds();
+            snapshot.setSelection(selection);
+        }
+        else {
+            // По числовым фильтрам выбираем в сфинксе, но данные товаров берем из уже полученных
+            filtered_ids = getProductsIds(0l, group_id, snapshot.getSection_id(), null, null, null, null, filters);
+        }
+
+        for (Long product_id : filtered_ids) {
+            if (snapshot.getFiltered().size() >= GROUP_PAGE_SIZE) {
+                break;
+            }
+
+            // Элементы списка строятся только для показываемых конфигураций
+            Product model = models_by_id.get(product_id);
+            if (model != null) {
+                snapshot.getFiltered().add(buildConfigurationForList(model));
+            }
+        }
+
+        // Получаем информацию об усредненных данных о товаре, аналог Яндекс Маркета
+        long mark = _allocationService.mark();
+
+        snapshot.setAverage(getProductAverage(snapshot.getConfigurations(), selected_filters));
+
+        _allocationService.record("ProductsServiceImpl.getProductAverage", mark);
+
+        return snapshot;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Формируем данные о товаре для редактирования">
+    private ProductViewForEdit buildProductForEdit(Product product) {
+
+        // Берем только нужные свойства для конкретного случая
+        ProductViewForEdit view = new ProductViewForEdit(product);
 
         // Получаем список фотографий к товару
-        view.setImages(images);
+        view.setImages(getImageInfos(product.getImages()));
 
         // Устанавливаем все указанные характеристики товара, которые учавствуют в поиске (фильтры)
         view.setFilters(_sectionsService.getFiltersByMapForEdit(product.getSection_id(), product.getFilters()));
@@ -356,15 +707,29 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
     @Transactional(readOnly = true, noRollbackFor = Exception.class)
     public ProductViewForList getProductForList(Long product_id) {
 
-        // Получаем модель товара со всем свойствами
-        Product product = This().getProductModel(product_id);
+        // Получаем модель товара со свойствами для списка
+        return buildProductForList(This().getProductModelForList(product_id));
+    }
+
+    @Override
+    @OffTLU
+    @Transactional(readOnly = true, noRollbackFor = Exception.class)
+    public ProductViewForList getProductForList(Product product) {
+        return buildProductForList(product);
+    }
+
+    private ProductViewForList buildProductForList(Product product) {
+
+        long mark = _allocationService.mark();
 
         // Берем только нужные свойства для конкретного случая
         ProductViewForList product_list = new ProductViewForList(product);
 
+        _allocationService.record("ProductViewForList.new", mark);
+
         if(!product.getImages().isEmpty()){
             // устанавливем главную фотографию для товара, которая будет видна в списке
-            product_list.setImage(_imageService.getImageInfo(product.getImages().get(0)));
+            product_list.setImage(getImageInfo(product.getImages().get(0)));
         }
 
         if (product_list.getGroup_id() == null || product_list.getGroup_id() == 0) {
@@ -389,15 +754,16 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
     // <editor-fold defaultstate="collapsed" desc="Проверяем уникальность конфигурации товара">
     @Override
     @OffTLU
-    public boolean checkConfigurationForUnique(Long group_id, Long product_id, String filters, Nodes node) {
-
-        List<ProductViewForEdit> products = This().getProductsByGroupIdForEdit(group_id);
-        String current_product_hash = Hash.getHex(filters);
+    public boolean checkConfigurationForUnique(Long group_id, Long product_id, long fingerprint, Nodes node) {
 
         // Проверяем схожесть конфигураций и если хоть с одним товаром данная конфигурация совпадает,
-        // то она не уникальна
-        for (ProductViewForEdit p : products){
-            if (p.getHash().equals(current_product_hash) && product_id.longValue() != p.getId()){
+        // то она не уникальна (сравниваются отпечатки, а не json с фильтрами)
+        for (Long id : getProductsIds(0l, group_id, 0l, null, null, null, null, null)) {
+            if (id.longValue() == product_id.longValue()) {
+                continue;
+            }
+
+            if (This().getCompactProductModel(id).getFingerprint() == fingerprint) {
                 return false;
             }
         }
@@ -411,113 +777,562 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
     @OffTLU
     public ProductConfigurationsViewForList getProductConfigurationForListItem(Long product_id) {
 
-        // Получаем модель товара со всем свойствами
-        Product p = This().getProductModel(product_id);
+        // Получаем модель товара со свойствами для списка
+        return buildConfigurationForList(This().getProductModelForList(product_id));
+    }
+
+    private ProductConfigurationsViewForList buildConfigurationForList(Product p) {
 
         // Извлекаем из модели конфигурации для списка
         ProductConfigurationsViewForList view = new ProductConfigurationsViewForList(p);
 
-        // Получаем фильтры для конкретного товара
-        List<FilterView> p_filters = _sectionsService.getFiltersByMapForEdit(p.getSection_id(), p.getFilters());
-
         if(!p.getImages().isEmpty()){
             // устанавливем главную фотографию для товара, которая будет видна в списке
-            view.setImage(_imageService.getImageInfo(p.getImages().get(0)));
+            view.setImage(getImageInfo(p.getImages().get(0)));
+        }
+
+        return view;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем все данные о товарах для паблика">
+    @Override
+    public List<ProductViewForList> getProductsForPublic(Long section_id, Long location_id, Long location_to_id,
+                                                         PageContext pc, Map<String, String[]> filters) {
+        return getProducts(0l, 0l, section_id, location_id, location_to_id, 1l, pc, filters);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем все данные о товарах для владельца">
+    @Override
+    public List<ProductViewForList> getProductsByNodeId(Long node_id, Long is_active, Long section_id, PageContext pc,
+                                                        Map<String, String[]> filters) {
+
+        // Владельцу не показываем устаревший список: он должен видеть только что сохраненные товары
+        List<Long> products_ids = findProductsIds(node_id, 0l, section_id, null, null, is_active, pc, filters, false);
+
+        if (products_ids == null) {
+            // Сфинкс недоступен, товары магазина выбираются из БД
+            return getProductsByNodeIdFromDb(node_id, is_active, pc);
+        }
+
+        return getProductsForList(products_ids);
+    }
+
+    /**
+     * Данный метод выбирает товары магазина из БД, новые первыми. Раздел и фильтры не учитываются, публикация
+     * проверяется по выбранным товарам, поэтому страница может быть неполной
+     */
+    private List<ProductViewForList> getProductsByNodeIdFromDb(Long node_id, Long is_active, PageContext pc) {
+
+        int page_size = pc == null ? REINDEX_PAGE_SIZE : pc.getPageSize();
+        int page = pc == null ? 1 : pc.getCurrentPage();
+
+        List<Long> products_ids = _itemsMapper.selectNodeProductsIds(node_id, TypesEnum.PRODUCTS.getType().getId(),
+                Arrays.asList(StatesEnum.ACTIVE.getState().getId(), StatesEnum.APPROVED.getState().getId()),
+                (page - 1) * page_size, page_size);
+
+        if (is_active != null) {
+            List<Long> selected = new ArrayList<Long>();
+
+            for (Long product_id : products_ids) {
+                try {
+                    if (This().getCompactProductModel(product_id).isPublished() == (is_active == 1)) {
+                        selected.add(product_id);
+                    }
+                }
+                catch (NotFoundException ex) {
+                    // товар удален
+                }
+            }
+
+            products_ids = selected;
+        }
+
+        return getProductsForList(products_ids);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем несколько товаров по идентификаторам">
+    @Override
+    @OffTLU
+    @Transactional(readOnly = true, noRollbackFor = Exception.class)
+    public List<Object> getProductsByIds(List<Long> products_ids, Projection projection) {
+
+        // Убираем повторы и товары, которых точно нет в БД
+        Set<Long> requested = new LinkedHashSet<Long>();
+        for (Long product_id : products_ids) {
+            if (product_id != null && product_id > 0 && !_existenceService.isMissingProduct(product_id)) {
+                requested.add(product_id);
+            }
+        }
+
+        // Все товары выбираются одним запросом (только действующие: он же проверяет наличие товаров). Для списков
+        // выбираются только свойства списка, для просмотра - все свойства
+        Map<Long, Items> items = projection == Projection.VIEW ? getProductItems(requested, "*") :
+                                 getProductItems(requested, LIST_PROPERTIES);
+
+        List<Object> products = new ArrayList<Object>();
+
+        for (Long product_id : requested) {
+            Items item = items.get(product_id);
+
+            if (item == null) {
+                _existenceService.markMissingProduct(product_id);
+                continue;
+            }
+
+            try {
+                // Представления строятся из уже выбранных объектов, без повторной выборки товара
+                switch (projection) {
+                    case LIST:
+                        products.add(buildProductForList(buildLightProductModel(item)));
+                        break;
+                    case CONFIGURATION:
+                        products.add(buildConfigurationForList(buildLightProductModel(item)));
+                        break;
+                    default:
+                        products.add(buildProductView(buildProductModel(item)));
+                }
+            }
+            catch (Exception ex) {
+                log.warn(String.format("Не удалось получить данные о товаре %s.", product_id), ex);
+            }
+        }
+
+        return products;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем идентификаторы опубликованных товаров раздела">
+    @Override
+    public List<Long> getPublishedProductsIds(Long section_id, PageContext pc) {
+        return requireIds(findProductsIds(0l, 0l, section_id, null, null, 1l, pc, null, false));
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем идентификаторы товаров из индекса">
+    @Override
+    public List<Long> getIndexedProductsIds(Long group_id, Long is_active, long after_id, int limit) {
+
+        SphinxSelectSettings settings = new SphinxSelectSettings();
+
+        setStatus(settings, is_active);
+
+        // товары по возрастанию идентификатора после последнего выбранного, всегда первая страница
+        settings.setMin_id(after_id + 1);
+        settings.setOrder_by(ISphinxProductIndex.ID);
+        settings.setPc(new PageContext().setPageSize(limit).setCurrentPage(1));
+
+        settings.setGroup_id(group_id > 0 ? group_id : ISphinxProductIndex.GROUP_ID);
+        settings.setSection(new Items(_sphinxProductsIndex.getRootId()));
+
+        String key = new StringBuilder("indexed|").append(group_id).append('|').append(is_active).append('|')
+                .append(after_id).append('x').append(limit).toString();
+
+        return requireIds(_indexGuardService.select(settings, key, false));
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем все товары одной конфигурации">
+    @Override
+    public List<ProductViewForList> getProductsByGroupId(Long group_id, Long section_id, PageContext pc,
+                                                         Map<String, String[]> filters) {
+        return getProducts(0l, group_id, section_id, null, null, null, pc, filters);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Передаем товары списка по мере получения">
+    // Транзакция на весь список не нужна: клиент может читать ответ долго, а каждый товар выбирается в своей
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void streamProductsForPublic(Long section_id, Long location_id, Long location_to_id, PageContext pc,
+                                        Map<String, String[]> filters, ProductsConsumer consumer)
+            throws IOException {
+        streamProductsForList(getProductsIds(0l, 0l, section_id, location_id, location_to_id, 1l, pc, filters),
+                              consumer);
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void streamProductsByNodeId(Long node_id, Long is_active, Long section_id, PageContext pc,
+                                       Map<String, String[]> filters, ProductsConsumer consumer)
+            throws IOException {
+
+        List<Long> products_ids = findProductsIds(node_id, 0l, section_id, null, null, is_active, pc, filters, false);
+
+        if (products_ids == null) {
+            // Сфинкс недоступен, товары магазина выбираются из БД
+            for (ProductViewForList product : getProductsByNodeIdFromDb(node_id, is_active, pc)) {
+                consumer.accept(product);
+            }
+            return;
+        }
+
+        streamProductsForList(products_ids, consumer);
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void streamProductsByGroupId(Long group_id, Long section_id, PageContext pc,
+                                        Map<String, String[]> filters, ProductsConsumer consumer)
+            throws IOException {
+        streamProductsForList(getProductsIds(0l, group_id, section_id, null, null, null, pc, filters), consumer);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем все конфигурации для данного товара">
+    @Override
+    public List<ProductConfigurationsViewForList> getProductsByGroupIdForList(Long group_id,
+                                                                              Long section_id,
+                                                                              PageContext pc,
+                                                                              Map<String, String[]> filters) {
+
+        // Получаем идентификаторы товаров по переданным параметрам
+        List<Long> products_ids = getProductsIds(0l, group_id, section_id, null, null, null, pc, filters);
+
+        return This().getProductsConfigurationsForList(products_ids);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем конфигурации по их идентификаторам">
+    @Override
+    public List<ProductConfigurationsViewForList> getProductsConfigurationsForList(List<Long> products_ids) {
+
+        List<ProductConfigurationsViewForList> products = new ArrayList<ProductConfigurationsViewForList>();
+
+        for (Long product_id : products_ids) {
+            try {
+                // Получаем товар для списка (все запросы кэшированы и выполняются мгновенно)
+                products.add(This().getProductConfigurationForListItem(product_id));
+            }
+            catch (Exception ex) {
+                log.error("Не удалось получить данные о товаре.", ex);
+            }
+        }
+
+        return products;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем все конфигурации для данного товара при редактировании">
+    @Override
+    @OffTLU
+    public List<ProductViewForEdit> getProductsByGroupIdForEdit(Long group_id) {
+
+        // Получаем идентификаторы товаров по переданным параметрам
+        List<Long> products_ids = getProductsIds(0l, group_id, 0l, null, null, null, null, null);
+
+        List<ProductViewForEdit> products = new ArrayList<ProductViewForEdit>();
+
+        for (Long product_id : products_ids) {
+            try {
+                // Получаем товар для редактирования (все запросы кэшированы и выполняются мгновенно)
+                products.add(This().getProductForEdit(product_id));
+            }
+            catch (Exception ex) {
+                log.error("Не удалось получить данные о товаре.", ex);
+            }
+        }
+
+        return products;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем модель конфигурации товара">
+    @Override
+    // Если отсутствует папка, в которой хранятся товары и все их свойства для конфигураций, откатываем
+    // все манипуляции с БД, которые были раньше
+    @Transactional(readOnly = true, noRollbackFor = NotFoundException.class)
+    public ProductGroupProperties getGroupPropertiesModel(Long group_id) {
+
+        if (_existenceService.isMissingGroup(group_id)) {
+            throw new NotFoundException("Не найдена папка для товаров");
+        }
+
+        Items item = _io.getItemByIdAndType(group_id, TypesEnum.FOLDER,
+                new ExtendContext(Items.class).names("*"));
+
+        if (Is.Empty(item)) {
+            _existenceService.markMissingGroup(group_id);
+            throw new NotFoundException("Не найдена папка для товаров");
+        }
+
+        return new ProductGroupProperties(item);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Получаем матрицу вариантов группы товаров">
+    @Override
+    @Transactional(readOnly = true)
+    public ProductVariantMatrix getVariantMatrix(Long group_id) {
+
+        // Конфигурации изменились, а матрица в папке еще старая
+        if (stale_matrices.get(group_id) != null) {
+            return null;
+        }
+
+        ProductVariantMatrix cached = variant_matrices.get(group_id);
+        if (cached != null) {
+            return cached;
+        }
+
+        Items item = _io.getItemByIdAndType(group_id, TypesEnum.FOLDER,
+                new ExtendContext(Items.class).names(ProductVariantMatrix.PROPERTY_NAME));
+
+        if (Is.Empty(item)) {
+            return null;
+        }
+
+        return parseVariantMatrix(group_id, item);
+    }
+
+    /**
+     * Данный метод получает матрицу вариантов из уже выбранной папки группы (без повторной выборки папки)
+     */
+    private ProductVariantMatrix getVariantMatrix(Long group_id, Items folder) {
+
+        if (stale_matrices.get(group_id) != null) {
+            return null;
+        }
+
+        ProductVariantMatrix cached = variant_matrices.get(group_id);
+        if (cached != null) {
+            return cached;
+        }
+
+        return parseVariantMatrix(group_id, folder);
+    }
+
+    private ProductVariantMatrix parseVariantMatrix(Long group_id, Items folder) {
+
+        String json = folder.getValue(ProductVariantMatrix.PROPERTY_NAME, String.class, (String) null);
+
+        // Матрица ещё не построена (группа не пересчитывалась после появления матриц)
+        if (Is.Empty(json)) {
+            return null;
+        }
+
+        try {
+            ProductVariantMatrix matrix = new ObjectMapper().readValue(json, ProductVariantMatrix.class);
+            variant_matrices.put(group_id, matrix);
+            return matrix;
+        }
+        catch (IOException ex) {
+            log.warn(String.format("Не удалось разобрать матрицу вариантов группы товаров %s.", group_id), ex);
+            return null;
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Переиндексируем города доставки товаров магазина">
+    @Override
+    @OffTLU
+    public void reindexDeliveryLocations(Long node_id) {
+
+        List<Long> locations_to = _deliveryLocationsService.getDeliveryLocations(node_id);
+
+        int page = 1;
+        int updated = 0;
+
+        while (true) {
+            // Выбираем все товары магазина (опубликованные и нет) порциями
+            PageContext pc = new PageContext().setPageSize(REINDEX_PAGE_SIZE).setCurrentPage(page);
+            List<Long> products_ids = requireIds(findProductsIds(node_id, 0l, 0l, null, null, null, pc, null, false));
+
+            // Для обновления атрибута нужен только раздел товара, поэтому модели товаров не собираются: разделы
+            // всей порции выбираются одним запросом
+            Map<Long, Items> items = getProductItems(products_ids, PropertyName.SECTION);
+
+            for (Long product_id : products_ids) {
+                try {
+                    Items item = items.get(product_id);
+
+                    if (item == null) {
+                        continue;
+                    }
+
+                    Object section = item.getValue(PropertyName.SECTION);
+
+                    SphinxIndexItem sphinx_item = new SphinxIndexItem();
+
+                    sphinx_item.setSection_id(section instanceof Items ? ((Items) section).getId() : (Long) section);
+                    sphinx_item.setId(product_id);
+                    sphinx_item.setLocations_to(locations_to);
+
+                    // обновляем только города доставки
+                    _sphinxProductsIndex.update(sphinx_item);
+                    updated++;
+                }
+                catch (Exception ex) {
+                    log.warn(String.format("Не удалось обновить города доставки товара %s.", product_id), ex);
+                }
+            }
+
+            if (products_ids.size() < REINDEX_PAGE_SIZE) {
+                break;
+            }
+
+            page++;
+        }
+
+        log.info(String.format("Обновлены города доставки у %s товаров магазина %s.", updated, node_id));
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Обновляем вес товаров">
+    @Override
+    @OffTLU
+    public Set<Long> updateProductsWeights(Map<Long, Long> weights) {
+
+        Set<Long> updated = new HashSet<Long>();
+
+        if (weights.isEmpty()) {
+            return updated;
+        }
+
+        // Для обновления атрибута нужен только раздел товара: разделы всей порции выбираются одним запросом.
+        // ISphinxProductIndex обновляет атрибуты одного документа, поэтому в сфинкс уходит запрос на товар
+        Map<Long, Items> items = getProductItems(weights.keySet(), PropertyName.SECTION);
+
+        for (Map.Entry<Long, Long> e : weights.entrySet()) {
+            Long product_id = e.getKey();
+
+            try {
+                Items item = items.get(product_id);
+
+                if (item == null) {
+                    continue;
+                }
+
+                Object section = item.getValue(PropertyName.SECTION);
+
+                SphinxIndexItem sphinx_item = new SphinxIndexItem();
+
+                sphinx_item.setSection_id(section instanceof Items ? ((Items) section).getId() : (Long) section);
+                sphinx_item.setId(product_id);
+
+                // обновляем только вес товара
+                sphinx_item.setProduct_weight(e.getValue());
+
+                _sphinxProductsIndex.update(sphinx_item);
+                updated.add(product_id);
+            }
+            catch (Exception ex) {
+                log.warn(String.format("Не удалось записать вес товара %s.", product_id), ex);
+            }
         }
 
-        return view;
+        return updated;
     }
     // </editor-fold>
 
-    // <editor-fold defaultstate="collapsed" desc="Получаем все данные о товарах для паблика">
+    // <editor-fold defaultstate="collapsed" desc="Сбрасываем данные товара в памяти">
     @Override
-    public List<ProductViewForList> getProductsForPublic(Long section_id, Long location_id, Long location_to_id,
-                                                         PageContext pc, Map<String, String[]> filters) {
-        return getProducts(0l, 0l, section_id, location_id, location_to_id, 1l, pc, filters);
+    public void evictProductCaches(Long product_id) {
+        compact_products.remove(product_id);
     }
-    // </editor-fold>
 
-    // <editor-fold defaultstate="collapsed" desc="Получаем все данные о товарах для владельца">
     @Override
-    public List<ProductViewForList> getProductsByNodeId(Long node_id, Long is_active, Long section_id, PageContext pc,
-                                                        Map<String, String[]> filters) {
-        return getProducts(node_id, 0l, section_id, null, null, is_active, pc, filters);
+    public void evictGroupCaches(Long group_id) {
+
+        if (group_id == null || group_id <= 0) {
+            return;
+        }
+
+        stale_matrices.put(group_id, Boolean.TRUE);
+        variant_matrices.remove(group_id);
     }
-    // </editor-fold>
 
-    // <editor-fold defaultstate="collapsed" desc="Получаем все товары одной конфигурации">
-    @Override
-    public List<ProductViewForList> getProductsByGroupId(Long group_id, Long section_id, PageContext pc,
-                                                         Map<String, String[]> filters) {
-        return getProducts(0l, group_id, section_id, null, null, null, pc, filters);
+    /**
+     * Данный метод снимает отметку об устаревшей матрице после того, как новая матрица записана в папку группы
+     */
+    private void onVariantMatrixSaved(final Long group_id) {
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    variant_matrices.remove(group_id);
+                    stale_matrices.remove(group_id);
+                }
+            });
+            return;
+        }
+
+        variant_matrices.remove(group_id);
+        stale_matrices.remove(group_id);
     }
     // </editor-fold>
 
-    // <editor-fold defaultstate="collapsed" desc="Получаем все конфигурации для данного товара">
+    // <editor-fold defaultstate="collapsed" desc="Получаем атрибуты индекса по данным БД">
     @Override
-    public List<ProductConfigurationsViewForList> getProductsByGroupIdForList(Long group_id,
-                                                                              Long section_id,
-                                                                              PageContext pc,
-                                                                              Map<String, String[]> filters) {
+    @OffTLU
+    @Transactional(readOnly = true)
+    public Map<Long, long[]> getIndexAttributes(Collection<Long> products_ids) {
 
-        // Получаем идентификаторы товаров по переданным параметрам
-        List<Long> products_ids = getProductsIds(0l, group_id, section_id, null, null, null, pc, filters);
+        Map<Long, long[]> result = new HashMap<Long, long[]>();
 
-        List<ProductConfigurationsViewForList> products = new ArrayList<ProductConfigurationsViewForList>();
+        for (Map.Entry<Long, Items> e : getProductItems(products_ids, PropertyName.GROUP_ID,
+                                                         PropertyName.IS_PUBLISH).entrySet()) {
+            Items item = e.getValue();
 
-        for (Long product_id : products_ids) {
-            try {
-                // Получаем товар для списка (все запросы кэшированы и выполняются мгновенно)
-                products.add(This().getProductConfigurationForListItem(product_id));
-            }
-            catch (Exception ex) {
-                log.error("Не удалось получить данные о товаре.", ex);
-            }
+            // У старых товаров нет свойства IS_PUBLISH, но они опубликованы (как и в Product)
+            result.put(e.getKey(), new long[]{
+                    item.getValue(PropertyName.GROUP_ID, Long.class, 0l),
+                    item.getValue(PropertyName.IS_PUBLISH, Long.class, 1l)});
         }
 
-        return products;
+        return result;
     }
     // </editor-fold>
 
-    // <editor-fold defaultstate="collapsed" desc="Получаем все конфигурации для данного товара при редактировании">
+    // <editor-fold defaultstate="collapsed" desc="Удаляем из индекса товар, которого нет в БД">
     @Override
     @OffTLU
-    public List<ProductViewForEdit> getProductsByGroupIdForEdit(Long group_id) {
+    public boolean removeFromIndex(Long product_id) {
 
-        // Получаем идентификаторы товаров по переданным параметрам
-        List<Long> products_ids = getProductsIds(0l, group_id, 0l, null, null, null, null, null);
+        // Товар выбирается в любом состоянии: у удаленного товара нужно узнать раздел, в котором он лежит в сфинксе
+        Items item = _io.getItemById(product_id, new ExtendContext(Items.class).names("*"));
 
-        List<ProductViewForEdit> products = new ArrayList<ProductViewForEdit>();
+        if (Is.Empty(item)) {
+            log.warn(String.format("Товар %s не найден в БД, раздел в сфинксе неизвестен.", product_id));
+            return false;
+        }
 
-        for (Long product_id : products_ids) {
-            try {
-                // Получаем товар для редактирования (все запросы кэшированы и выполняются мгновенно)
-                products.add(This().getProductForEdit(product_id));
-            }
-            catch (Exception ex) {
-                log.error("Не удалось получить данные о товаре.", ex);
-            }
+        long state_id = item.getState().getId();
+        if (state_id == StatesEnum.ACTIVE.getState().getId() || state_id == StatesEnum.APPROVED.getState().getId()) {
+            return false;
         }
 
-        return products;
+        Object section = item.getValue(PropertyName.SECTION);
+        Long section_id = section instanceof Items ? ((Items) section).getId() : (Long) section;
+
+        _sphinxProductsIndex.delete(section_id, product_id);
+
+        return true;
     }
     // </editor-fold>
 
-    // <editor-fold defaultstate="collapsed" desc="Получаем модель конфигурации товара">
+    // <editor-fold defaultstate="collapsed" desc="Записываем в сфинкс атрибуты товара из БД">
     @Override
-    // Если отсутствует папка, в которой хранятся товары и все их свойства для конфигураций, откатываем
-    // все манипуляции с БД, которые были раньше
-    @Transactional(readOnly = true, noRollbackFor = NotFoundException.class)
-    public ProductGroupProperties getGroupPropertiesModel(Long group_id) {
+    public void reindexProductAttributes(Long product_id) {
 
-        Items item = _io.getItemByIdAndType(group_id, TypesEnum.FOLDER,
-                new ExtendContext(Items.class).names("*"));
+        // Атрибуты записываются по свежим данным, а не по кэшу
+        compact_products.remove(product_id);
+        CompactProduct product = This().getCompactProductModel(product_id);
 
-        if (Is.Empty(item)) {
-            throw new NotFoundException("Не найдена папка для товаров");
-        }
+        SphinxIndexItem sphinx_item = new SphinxIndexItem();
 
-        return new ProductGroupProperties(item);
+        sphinx_item.setSection_id(product.getSection_id());
+        sphinx_item.setId(product_id);
+        sphinx_item.setShop_id(product.getNode_id());
+        sphinx_item.setActive(product.isPublished() ? 1 : 0);
+        sphinx_item.setGroup_id(product.getGroup_id());
+        sphinx_item.setFingerprint(product.getFingerprint());
+
+        // текст и фильтры не трогаем, обновляем только атрибуты
+        _sphinxProductsIndex.update(sphinx_item);
     }
     // </editor-fold>
 
@@ -541,10 +1356,16 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
         // удаляем товар из сфинкса
         _sphinxProductsIndex.delete(product.getSection_id(), product_id);
 
+        // Событие удаления товара (подписчики сбросят данные, построенные по товару)
+        long group_id = product.getGroup_id() == null ? 0l : product.getGroup_id();
+        _eventsService.publish(new ProductEvent(ProductEvent.Type.DELETED, product_id, node_id,
+                                                product.getSection_id(), group_id));
+
         // Если товар находился в группе товаров
         if (!Is.Empty(product.getGroup_id()) && product.getGroup_id() > 0) {
-            // обновляем свойства группы товаров
-            This().updateProductsGroupProperties(product.getGroup_id());
+            // помечаем свойства группы товаров для пересчета
+            _groupsService.markDirty(node_id, product.getGroup_id());
+            evictGroupCaches(product.getGroup_id());
         }
     }
     // </editor-fold>
@@ -572,6 +1393,9 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
 
         // удаляем свойство группы для товара из сфинкса
         _sphinxProductsIndex.update(sphinx_item);
+
+        _eventsService.publish(new ProductEvent(ProductEvent.Type.REGROUPED, product_id, node_id,
+                                                product.getSection_id(), 0l));
     }
     // </editor-fold>
 
@@ -586,7 +1410,13 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
                                                  Map<String, String[]> filters) {
 
         // Получаем идентификаторы товаров по переданным параметрам
-        List<Long> products_ids = getProductsIds(node_id, group_id, section_id, location_id, null, is_active, pc, filters);
+        List<Long> products_ids = getProductsIds(node_id, group_id, section_id, location_id, location_to_id, is_active,
+                                                 pc, filters);
+
+        return getProductsForList(products_ids);
+    }
+
+    private List<ProductViewForList> getProductsForList(List<Long> products_ids) {
 
         List<ProductViewForList> products = new ArrayList<ProductViewForList>();
 
@@ -603,22 +1433,64 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
 
     }
 
+    private void streamProductsForList(List<Long> products_ids, ProductsConsumer consumer) throws IOException {
+
+        for (Long product_id : products_ids) {
+            ProductViewForList product;
+
+            try {
+                product = This().getProductForList(product_id);
+            } catch (Exception ex) {
+                log.warn(String.format("Не удалось получить данные о товаре %s.", product_id), ex);
+                continue;
+            }
+
+            // Ошибки получателя не глотаем: ответ клиенту уже не дописать
+            consumer.accept(product);
+        }
+    }
+
     private List<Long> getProductsIds(Long node_id, Long group_id, Long section_id, Long location_id,
                                       Long location_to_id, Long is_active, PageContext pc,
                                       Map<String, String[]> filters) {
+        // Если сфинкс недоступен, то отвечаем последним удачным результатом такого же запроса
+        return requireIds(findProductsIds(node_id, group_id, section_id, location_id, location_to_id, is_active, pc,
+                                          filters, true));
+    }
 
-        // формируем данные для выборки из сфинкса
-        SphinxSelectSettings settings = new SphinxSelectSettings();
+    private static List<Long> requireIds(List<Long> products_ids) {
 
-        if(is_active != null){
-            List<Long> statuses = new ArrayList<Long>();
-            int status = is_active == 1 ? StatesEnum.PUBLISHED.getValue() : StatesEnum.ACTIVE.getValue();
-            statuses.add((long) status);
+        if (products_ids == null) {
+            throw new InternalServerErrorException();
+        }
 
-            // устанавливаем статусы для товаров
-            settings.setStatus(statuses);
+        return products_ids;
+    }
+
+    /**
+     * Данный метод выбирает идентификаторы товаров из сфинкса
+     *
+     * @param allow_stale можно ли ответить последним удачным результатом запроса, если сфинкс недоступен
+     * @return идентификаторы товаров или null, если сфинкс недоступен и ответить нечем
+     */
+    private List<Long> findProductsIds(Long node_id, Long group_id, Long section_id, Long location_id,
+                                       Long location_to_id, Long is_active, PageContext pc,
+                                       Map<String, String[]> filters, boolean allow_stale) {
+
+        // ключ запроса для последнего удачного результата
+        StringBuilder key = new StringBuilder().append(node_id).append('|').append(group_id).append('|')
+                .append(section_id).append('|').append(location_id).append('|').append(location_to_id).append('|')
+                .append(is_active).append('|');
+
+        if (pc != null) {
+            key.append(pc.getCurrentPage()).append('x').append(pc.getPageSize());
         }
 
+        // формируем данные для выборки из сфинкса
+        SphinxSelectSettings settings = new SphinxSelectSettings();
+
+        setStatus(settings, is_active);
+
         if (node_id != null && node_id > 0) {
             // идентификатор магазина, в котором находится товар
             settings.setShop_id(node_id);
@@ -655,13 +1527,105 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
         }
 
         if (filters != null) {
-            // фильтры для товаров
-            settings.setFilters(_sectionsService.getFiltersValuesForSphinx(filters));
+            // фильтры для товаров (разбираем только параметры, которые являются фильтрами раздела)
+            FilterQueryPlan plan = _filterQueryService.compile(section_id, filters);
+
+            if (!plan.isEmpty()) {
+                // Подготовленные фильтры общие для всех одинаковых запросов, поэтому запрос получает свою копию списка
+                settings.setFilters(copyOf(getSphinxFilters(plan).getFilters()));
+                key.append('|').append(plan.getCanonical());
+            }
         }
 
         // получаем список товаров по переданным параметрам из сфинкса
-        return _sphinxProductsIndex.select(settings);
+        return _indexGuardService.select(settings, key.toString(), allow_stale);
+
+    }
+
+    /**
+     * Данный метод устанавливает статус выбираемых из сфинкса товаров (null - товары в любом статусе)
+     */
+    private static void setStatus(SphinxSelectSettings settings, Long is_active) {
+
+        if(is_active != null){
+            List<Long> statuses = new ArrayList<Long>();
+            int status = is_active == 1 ? StatesEnum.PUBLISHED.getValue() : StatesEnum.ACTIVE.getValue();
+            statuses.add((long) status);
+
+            // устанавливаем статусы для товаров
+            settings.setStatus(statuses);
+        }
+    }
 
+    /**
+     * Возвращает фильтры для сфинкса, подготовленные по разобранному запросу. Фильтры готовятся один раз
+     * для каждого уникального запроса
+     */
+    private SphinxSelectSettings getSphinxFilters(FilterQueryPlan plan) {
+
+        SphinxSelectSettings compiled = sphinx_filters.get(plan.getCanonical());
+
+        if (compiled == null) {
+            compiled = new SphinxSelectSettings();
+            compiled.setFilters(_sectionsService.getFiltersValuesForSphinx(plan.getFilters()));
+
+            sphinx_filters.put(plan.getCanonical(), compiled);
+        }
+
+        return compiled;
+    }
+
+    private static <T> List<T> copyOf(List<T> list) {
+        return list == null ? null : new ArrayList<T>(list);
+    }
+
+    private Product buildSavedModel(Items item, Long node_id, ProductForm form, List<PropertySimple> properties) {
+
+        Product product = new Product();
+
+        product.setId(item.getId());
+        product.setNode_id(node_id);
+        product.setState(item.getState());
+        product.setDate(item.getDate_in());
+        product.setTitle(form.getTitle());
+        product.setDescription(form.getDescription());
+        product.setSection_id(form.getSection_id());
+        product.setPublished(form.getIs_publish() == 1);
+        product.setImages(form.getImages() == null ? new ArrayList<Long>() : new ArrayList<Long>(form.getImages()));
+
+        if (form.getDimension() != null && !form.getDimension().trim().equals("")) {
+            product.setDimension(form.getDimension());
+        }
+
+        if (form.getGroup_id() != null && form.getGroup_id() > 0) {
+            product.setGroup_id(form.getGroup_id());
+        }
+
+        Map<String, PropertySimple> filters = new HashMap<String, PropertySimple>();
+
+        for (PropertySimple property : properties) {
+            String name = property.getName();
+            Object value = property.getValue();
+
+            if (name.startsWith(FILTERS.FILTER_PREFIX)) {
+                filters.put(name, property);
+            }
+            else if (name.equals(PropertyName.HASH)) {
+                product.setHash((String) value);
+            }
+            else if (name.equals(ConfigurationFingerprint.PROPERTY_NAME)) {
+                product.setFingerprint((Long) value);
+            }
+            else if (name.equals(PropertyName.PRICE) && value != null) {
+                // цена может быть сохранена строкой (как и в Product.apply)
+                Long price = value instanceof Long ? (Long) value : Cast.toLong(value + "");
+                product.setPrice(price == null || price <= 0 ? null : price);
+            }
+        }
+
+        product.setFilters(filters);
+
+        return product;
     }
 
     private List<PropertySimple> processingFiltersFromConfigurations(List<ProductViewForEdit> products) {
@@ -813,6 +1777,161 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
 
     }
 
+    private String processingVariantMatrix(List<ProductViewForEdit> products) {
+
+        try {
+            return new ObjectMapper().writeValueAsString(buildVariantMatrix(products));
+        }
+        catch (IOException ex) {
+            log.error("Произошла ошибка при сериализации матрицы вариантов", ex);
+            return null;
+        }
+    }
+
+    private ProductVariantMatrix buildVariantMatrix(List<ProductViewForEdit> products) {
+
+        ProductVariantMatrix.Builder builder = new ProductVariantMatrix.Builder();
+
+        for (ProductViewForEdit p : products) {
+            Long price = null;
+
+            if (!Is.Empty(p.getFilters())) {
+                for (FilterView f : p.getFilters()) {
+                    if (f.getAlias().equals("price") && !Is.Empty(f.getValue()) && !f.getValue().trim().equals("")) {
+                        price = Cast.toLong(f.getValue());
+                    }
+                }
+            }
+
+            builder.addConfiguration(p.getId(), price);
+
+            if (Is.Empty(p.getFilters())) {
+                continue;
+            }
+
+            for (FilterView f : p.getFilters()) {
+                if (f.getType().equals("select")) {
+                    if (Is.Empty(f.getSelectedValues())) {
+                        continue;
+                    }
+                    for (Long v : f.getSelectedValues()) {
+                        builder.addValue(f.getId(), f.getAlias(), f.getType(), v);
+                    }
+                }
+                else if (f.getType().equals("radio")) {
+                    if (Is.Empty(f.getSelectedValue()) || f.getSelectedValue() <= 0) {
+                        continue;
+                    }
+                    builder.addValue(f.getId(), f.getAlias(), f.getType(), f.getSelectedValue());
+                }
+                else if (f.getType().equals("number") || f.getType().equals("interval")) {
+                    builder.addNumeric(f.getAlias());
+                }
+            }
+        }
+
+        return builder.build();
+    }
+
+    private Map<Long, Set<Long>> getSelectedValues(List<FilterView> filters) {
+
+        Map<Long, Set<Long>> selected = new HashMap<Long, Set<Long>>();
+
+        for (FilterView f : filters) {
+            Set<Long> values = new HashSet<Long>();
+
+            if (f.getType().equals("select") && !Is.Empty(f.getSelectedValues())) {
+                values.addAll(f.getSelectedValues());
+            }
+            else if (f.getType().equals("radio") && !Is.Empty(f.getSelectedValue()) && f.getSelectedValue() > 0) {
+                values.add(f.getSelectedValue());
+            }
+
+            if (!values.isEmpty()) {
+                selected.put(f.getId(), values);
+            }
+        }
+
+        return selected;
+    }
+
+    private ProductAverageView getProductAverage(List<ProductViewForEdit> products_configurations, List<FilterView> filters) {
+
+        // Получаем первый товар в конфигурации
+        ProductViewForEdit fp = products_configurations.get(0);
+
+        List<FilterAverageView> filters_average = new ArrayList<FilterAverageView>();
+        HashMap<Long, Integer> filters_keys_by_ids = new HashMap<Long, Integer>();
+        Long price = 0l;
+
+        // Заполняем фильтрами, которые указаны во всех конфигурациях (дублирующие пропускаем)
+        for (ProductViewForEdit p : products_configurations) {
+            price = _sectionsService.getFiltersForConfigurationView(p.getFilters(), filters_average, filters_keys_by_ids);
+        }
+
+        // Формируем данные для усредненного товара
+        ProductAverageView product_average = new ProductAverageView(fp.getTitle(), fp.getDescription(), filters_average, price);
+
+        String dimension = null;
+
+        // Записываем все изображения конфигураций
+        HashMap<Long, Boolean> hm = new HashMap<Long, Boolean>();
+        for (ProductViewForEdit p : products_configurations) {
+            if (Is.Empty(dimension) && !Is.Empty(p.getDimension())) {
+                dimension = p.getDimension();
+            }
+            //Добавляем изображениея без дубликатов
+            for (ImageView imageView : p.getImages()) {
+                if (hm.containsKey(imageView.getId())) {
+                    continue;
+                }
+                hm.put(imageView.getId(), true);
+                product_average.getImages().add(imageView);
+            }
+        }
+
+        if (!Is.Empty(dimension)) {
+            product_average.setSearch_dimension(dimension);
+        }
+
+        // Добавляем значения, которые используются только в конфигурациях
+        for (FilterView f : filters) {
+            if (f.getAlias().equals("dimension") && !Is.Empty(f.get_dimension_system())) {
+                dimension = f.get_dimension_system();
+                product_average.setSearch_dimension(dimension);
+            }
+
+            if (f.getAlias().equals("price")) {
+                product_average.setPrice(f.getMinValue());
+                product_average.setPrice_to(f.getMaxValue());
+                continue;
+            }
+
+            if (!filters_keys_by_ids.containsKey(f.getId()))
+                continue;
+
+            Integer key = filters_keys_by_ids.get(f.getId());
+
+            if (f.getType().equals("number") || f.getType().equals("interval")) {
+                product_average.getFilters().get(key).setValue(f.getMinValue());
+                product_average.getFilters().get(key).setValue_to(f.getMaxValue());
+            } else if (f.getType().equals("select")) {
+                List<String> values = new ArrayList<String>();
+
+                for (ListValue v : f.getValues()) {
+                    values.add(v.getValue());
+                }
+
+                product_average.getFilters().get(key).setValues(values);
+            }
+        }
+
+        // Устанавливаем интервал в фильтрах для конфигураций
+        product_average.setFilters(filters_average);
+
+        return product_average;
+    }
+
     private void processingSizeAndColorsValuesIds(FilterView f, List<Long> ids, List<ListValue> values) {
 
         if (!f.getSelectedValues().isEmpty()) {
@@ -850,16 +1969,100 @@ public class ProductsServiceImpl extends AService<IProductsService> implements I
 
     }
 
-    private String getAliasForPrice(long section_id) {
+    /**
+     * Данный метод определяет тип события сохранения товара: добавлен, опубликован или изменен
+     */
+    private static ProductEvent.Type getSaveEventType(Map<String, PropertySimple> stored, ProductForm form) {
+
+        if (stored == null) {
+            return ProductEvent.Type.CREATED;
+        }
+
+        // У старых товаров нет свойства IS_PUBLISH, но они опубликованы
+        PropertySimple was_published = stored.get(PropertyName.IS_PUBLISH);
+        if (form.getIs_publish() == 1 && was_published != null && !"1".equals(was_published.getValue() + "")) {
+            return ProductEvent.Type.PUBLISHED;
+        }
+
+        return ProductEvent.Type.UPDATED;
+    }
+
+    /**
+     * Данный метод выбирает действующие товары по списку идентификаторов одним запросом к БД (id IN (...)) только
+     * с указанными свойствами. Отсутствующих и удаленных товаров в результате нет
+     *
+     * @param products_ids идентификаторы товаров
+     * @param names выбираемые свойства ("*" - все свойства)
+     * @return товары (идентификатор товара -> объект товара)
+     */
+    private Map<Long, Items> getProductItems(Collection<Long> products_ids, String... names) {
+
+        Map<Long, Items> items = new HashMap<Long, Items>();
+
+        if (products_ids.isEmpty()) {
+            return items;
+        }
+
+        for (Items item : _io.getItemsByIdsAndType(products_ids, TypesEnum.PRODUCTS,
+                                                   new ExtendContext(Items.class).names(names), activeOrApproved())) {
+            items.put(item.getId(), item);
+        }
+
+        return items;
+    }
+
+    /**
+     * Данный метод формирует условие выборки только опубликованных или одобренных товаров
+     */
+    private FilterContext activeOrApproved() {
+
+        FilterContext fc = new FilterContext();
+
+        fc.where()  .variable(PropertyName.STATE_ID).operand(OPERANDS.IN)
+                    .value(new Long[]{StatesEnum.ACTIVE.getState().getId(), StatesEnum.APPROVED.getState().getId()});
+
+        return fc;
+    }
+
+    private ImageView getImageInfo(Long image_id) {
+        return getImageInfos(Collections.singletonList(image_id)).get(0);
+    }
+
+    /**
+     * Данный метод возвращает данные о фотографиях в том же порядке, в котором переданы идентификаторы.
+     * Данные о фотографиях кэшируются, из сервиса фотографий выбираются только отсутствующие в кэше
+     */
+    private List<ImageView> getImageInfos(List<Long> images_ids) {
 
-        Items section = _io.getItemByIdAndType( section_id, TypesEnum.SECTION,
-                new ExtendContext(Items.class).names(PropertyName.PRICE_FILTER_ALIAS));
+        Map<Long, ImageView> found = new HashMap<Long, ImageView>();
+        Set<Long> missing = new LinkedHashSet<Long>();
+
+        for (Long image_id : images_ids) {
+            ImageView image = image_views.get(image_id);
+            if (image != null) {
+                found.put(image_id, image);
+            }
+            else {
+                missing.add(image_id);
+            }
+        }
+
+        // В сервисе фотографий нет выборки по списку, поэтому отсутствующие в кэше фотографии выбираются по одной
+        // (каждая один раз за вызов). Когда выборка по списку появится, ее достаточно использовать здесь
+        for (Long image_id : missing) {
+            ImageView image = _imageService.getImageInfo(image_id);
+            if (image != null) {
+                image_views.put(image_id, image);
+            }
+            found.put(image_id, image);
+        }
 
-        if (Is.Empty(section)) {
-            return "";
+        List<ImageView> images = new ArrayList<ImageView>(images_ids.size());
+        for (Long image_id : images_ids) {
+            images.add(found.get(image_id));
         }
 
-        return section.getValue(PropertyName.PRICE_FILTER_ALIAS, String.class);
+        return images;
     }
     // </editor-fold>
  }
@@ -0,0 +1,318 @@
+package com.wp.servicies.impl;
+
+import com.wp.mappers.ibatis.postgres.IProductsStatsMapper;
+import com.wp.servicies.interfaces.IProductsRankingService;
+import com.wp.servicies.interfaces.IProductsStatsService;
+import com.wp.utils.Cast;
+import com.wp.web.views.RankingReport;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Данный сервис считает просмотры товаров и переходы на них из списков.
+ *
+ * Счетчики накапливаются в памяти в нескольких полосах (поток пишет в свою полосу, поэтому потоки почти не
+ * ждут друг друга) и периодически записываются в БД пачками по BATCH_SIZE товаров (один запрос на пачку). Если
+ * запись не удалась, незаписанные счетчики возвращаются в полосы. После записи пересчитывается популярность
+ * товаров, и вес в сфинксе обновляется только у тех товаров, у которых она изменилась
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Service
+public class ProductsStatsServiceImpl extends AService<IProductsStatsService> implements IProductsStatsService {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Сервис для расчета веса товаров в выдаче
+    @Autowired
+    IProductsRankingService _rankingService;
+
+    // Маппер для работы со счетчиками товаров
+    @Autowired
+    IProductsStatsMapper _statsMapper;
+    // </editor-fold>
+
+    // Как часто (в мс) счетчики записываются в БД
+    @Value("${products_stats_flush_ms:60000}")
+    protected long FLUSH_MS = 60000;
+
+    // количество полос счетчиков (степень двойки)
+    private static final int STRIPES = 16;
+
+    // сколько переходов из списка стоит один просмотр
+    private static final int CLICK_FACTOR = 5;
+
+    // наибольшая популярность (около миллиона просмотров), чтобы самые просматриваемые товары не перевешивали
+    // остальные составляющие веса
+    private static final long MAX_POPULARITY = 20;
+
+    // сколько товаров записывается одним запросом
+    private static final int BATCH_SIZE = 500;
+
+    private static final int VIEWS = 0;
+
+    private static final int CLICKS = 1;
+
+    // переменная, для работы с лог-файлами
+    private Logger log = Logger.getLogger(ProductsStatsServiceImpl.class);
+
+    // полосы счетчиков (идентификатор товара -> {просмотры, переходы})
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private ScheduledExecutorService flusher;
+
+    // <editor-fold defaultstate="collapsed" desc="Запуск и остановка">
+    @PostConstruct
+    public void init() {
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(
+                new ProductsGroupsServiceImpl.NamedThreadFactory("products-stats-flush"));
+
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                }
+                catch (Exception ex) {
+                    log.error("Не удалось записать счетчики просмотров товаров", ex);
+                }
+            }
+        }, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+
+        flusher.shutdownNow();
+
+        // Записываем то, что накопилось с последней записи
+        try {
+            flush();
+        }
+        catch (Exception ex) {
+            log.error("Не удалось записать счетчики просмотров товаров при остановке", ex);
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Учитываем просмотры">
+    @Override
+    public void registerView(long product_id) {
+        add(product_id, VIEWS);
+    }
+
+    @Override
+    public void registerClick(long product_id) {
+        add(product_id, CLICKS);
+    }
+
+    private void add(long product_id, int counter) {
+
+        Stripe stripe = stripes[(int) (Thread.currentThread().getId() & (STRIPES - 1))];
+
+        synchronized (stripe) {
+            long[] counts = stripe.counts.get(product_id);
+            if (counts == null) {
+                counts = new long[2];
+                stripe.counts.put(product_id, counts);
+            }
+            counts[counter]++;
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Популярность">
+    @Override
+    public long getPopularity(long product_id) {
+
+        Long popularity = _statsMapper.selectPopularity(product_id);
+
+        return popularity == null ? 0l : popularity;
+    }
+
+    @Override
+    public Map<Long, Long> getPopularity(Collection<Long> products_ids) {
+
+        Map<Long, Long> result = new HashMap<Long, Long>();
+
+        if (products_ids.isEmpty()) {
+            return result;
+        }
+
+        for (Map<String, Object> row : _statsMapper.selectByIds(products_ids)) {
+            result.put(Cast.toLong(row.get("product_id") + ""), Cast.toLong(row.get("popularity") + ""));
+        }
+
+        return result;
+    }
+
+    /**
+     * Популярность растет логарифмически: каждое удвоение просмотров добавляет к весу единицу (не больше
+     * MAX_POPULARITY)
+     */
+    static long popularity(long views, long clicks) {
+        return Math.min(MAX_POPULARITY, 63 - Long.numberOfLeadingZeros(1 + views + CLICK_FACTOR * clicks));
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Запись счетчиков">
+    @Override
+    public synchronized void flush() {
+
+        Map<Long, long[]> deltas = drain();
+
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        List<Long> products_ids = new ArrayList<Long>(deltas.keySet());
+
+        for (int from = 0; from < products_ids.size(); from += BATCH_SIZE) {
+            try {
+                increment(products_ids.subList(from, Math.min(products_ids.size(), from + BATCH_SIZE)), deltas);
+            }
+            catch (RuntimeException ex) {
+                // Эта и следующие пачки не записаны: счетчики вернутся в БД при следующей записи
+                requeue(products_ids.subList(from, products_ids.size()), deltas);
+                throw ex;
+            }
+        }
+
+        List<Long> changed = new ArrayList<Long>();
+
+        for (int from = 0; from < products_ids.size(); from += BATCH_SIZE) {
+            List<Long> batch = products_ids.subList(from, Math.min(products_ids.size(), from + BATCH_SIZE));
+            List<Map<String, Long>> rows = new ArrayList<Map<String, Long>>();
+
+            for (Map<String, Object> row : _statsMapper.selectByIds(batch)) {
+                long product_id = Cast.toLong(row.get("product_id") + "");
+                long popularity = popularity(Cast.toLong(row.get("views") + ""),
+                                             Cast.toLong(row.get("clicks") + ""));
+
+                if (popularity != Cast.toLong(row.get("popularity") + "")) {
+                    rows.add(row(product_id, "popularity", popularity));
+                    changed.add(product_id);
+                }
+            }
+
+            if (!rows.isEmpty()) {
+                _statsMapper.updatePopularityAll(rows);
+            }
+        }
+
+        // Вес в сфинксе пересчитывается только у товаров, популярность которых изменилась
+        RankingReport report = _rankingService.refresh(changed);
+
+        log.info(String.format("Записаны счетчики %s товаров, изменился вес %s товаров.",
+                               deltas.size(), report.getChanged()));
+    }
+
+    /**
+     * Записывает приросты счетчиков пачки товаров: сначала добавляются недостающие строки, затем все строки
+     * пачки обновляются одним запросом
+     */
+    private void increment(List<Long> products_ids, Map<Long, long[]> deltas) {
+
+        try {
+            _statsMapper.insertMissing(products_ids);
+        }
+        catch (DuplicateKeyException ex) {
+            // часть строк успел добавить другой сервер, добавляем оставшиеся
+            _statsMapper.insertMissing(products_ids);
+        }
+
+        List<Map<String, Long>> rows = new ArrayList<Map<String, Long>>(products_ids.size());
+
+        for (Long product_id : products_ids) {
+            Map<String, Long> row = row(product_id, "views", deltas.get(product_id)[VIEWS]);
+            row.put("clicks", deltas.get(product_id)[CLICKS]);
+            rows.add(row);
+        }
+
+        _statsMapper.incrementAll(rows);
+    }
+
+    private static Map<String, Long> row(long product_id, String name, long value) {
+
+        Map<String, Long> row = new HashMap<String, Long>();
+        row.put("product_id", product_id);
+        row.put(name, value);
+
+        return row;
+    }
+
+    /**
+     * Возвращает незаписанные счетчики в полосу
+     */
+    private void requeue(List<Long> products_ids, Map<Long, long[]> deltas) {
+
+        Stripe stripe = stripes[0];
+
+        synchronized (stripe) {
+            for (Long product_id : products_ids) {
+                long[] counts = stripe.counts.get(product_id);
+                if (counts == null) {
+                    stripe.counts.put(product_id, deltas.get(product_id));
+                }
+                else {
+                    counts[VIEWS] += deltas.get(product_id)[VIEWS];
+                    counts[CLICKS] += deltas.get(product_id)[CLICKS];
+                }
+            }
+        }
+    }
+
+    /**
+     * Забирает накопленные счетчики из всех полос
+     */
+    private Map<Long, long[]> drain() {
+
+        Map<Long, long[]> result = new HashMap<Long, long[]>();
+
+        for (Stripe stripe : stripes) {
+            Map<Long, long[]> counts;
+
+            synchronized (stripe) {
+                counts = stripe.counts;
+                stripe.counts = new HashMap<Long, long[]>();
+            }
+
+            for (Map.Entry<Long, long[]> e : counts.entrySet()) {
+                long[] total = result.get(e.getKey());
+                if (total == null) {
+                    result.put(e.getKey(), e.getValue());
+                }
+                else {
+                    total[VIEWS] += e.getValue()[VIEWS];
+                    total[CLICKS] += e.getValue()[CLICKS];
+                }
+            }
+        }
+
+        return result;
+    }
+    // </editor-fold>
+
+    /**
+     * Полоса счетчиков
+     */
+    private static class Stripe {
+
+        private HashMap<Long, long[]> counts = new HashMap<Long, long[]>();
+    }
+}
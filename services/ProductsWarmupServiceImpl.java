@@ -0,0 +1,473 @@
+package com.wp.servicies.impl;
+
+import com.wp.mappers.ibatis.postgres.IProductsWarmupMapper;
+import com.wp.model.FilterQueryPlan;
+import com.wp.servicies.interfaces.IProductsService;
+import com.wp.servicies.interfaces.IProductsWarmupService;
+import com.wp.utils.Cast;
+import com.wp.utils.Is;
+import com.wp.utils.mybatis.plugins.paging.page.PageContext;
+import com.wp.web.views.WarmupReport;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Данный сервис прогревает кэши товаров при запуске сервера.
+ *
+ * Во время работы считаются запросы списков товаров и страниц товаров. При остановке самые частые из них
+ * записываются в БД (у каждого сервера свои строки), при запуске самые частые запросы всех серверов выполняются
+ * в несколько потоков до того, как контекст приложения закончит запуск и сервер начнет принимать запросы.
+ * Запросы, записанные раньше products_warmup_max_age_ms, не выполняются и удаляются: остановленные навсегда или
+ * переименованные серверы не должны прогревать кэши своими давними запросами.
+ * Прогрев ограничен по времени: запросы, которые не успели выполнить, пропускаются
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Service
+public class ProductsWarmupServiceImpl extends AService<IProductsWarmupService>
+        implements IProductsWarmupService, ApplicationListener<ContextRefreshedEvent> {
+
+    // <editor-fold defaultstate="collapsed" desc="Подключаемые сервисы">
+    // Сервис для работы с товарами
+    @Autowired
+    IProductsService _productsService;
+
+    // Маппер для работы с частыми запросами
+    @Autowired
+    IProductsWarmupMapper _warmupMapper;
+    // </editor-fold>
+
+    // Прогревать ли кэши при запуске
+    @Value("${products_warmup_enabled:true}")
+    protected boolean ENABLED = true;
+
+    // Сколько самых частых запросов списков товаров выполняется при прогреве
+    @Value("${products_warmup_listings:200}")
+    protected int TOP_LISTINGS = 200;
+
+    // Сколько самых просматриваемых товаров выбирается при прогреве
+    @Value("${products_warmup_products:2000}")
+    protected int TOP_PRODUCTS = 2000;
+
+    // Количество потоков прогрева
+    @Value("${products_warmup_threads:4}")
+    protected int THREADS = 4;
+
+    // Сколько (в мс) может длиться прогрев
+    @Value("${products_warmup_budget_ms:60000}")
+    protected long BUDGET_MS = 60000;
+
+    // Сколько (в мс) хранятся записанные запросы
+    @Value("${products_warmup_max_age_ms:604800000}")
+    protected long MAX_AGE_MS = 604800000;
+
+    // Имя сервера (у каждого сервера свои записанные запросы)
+    @Value("${server_name:}")
+    protected String SERVER_NAME = "";
+
+    // виды запросов
+    private static final String PUBLIC = "public";
+    private static final String SHOP = "shop";
+    private static final String PRODUCT = "product";
+
+    // количество товаров на странице списка (как в контроллере)
+    private static final int LIST_PAGE_SIZE = 30;
+
+    // префикс параметров запроса, которые являются фильтрами
+    private static final String FILTER_PARAM = "f.";
+
+    // переменная, для работы с лог-файлами
+    private Logger log = Logger.getLogger(ProductsWarmupServiceImpl.class);
+
+    // счетчики запросов по видам
+    private final Map<String, HitCounter> counters = new HashMap<String, HitCounter>();
+
+    // прогрев уже запускался (событие приходит от каждого контекста приложения)
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private volatile WarmupReport last_report;
+
+    // <editor-fold defaultstate="collapsed" desc="Запуск и остановка">
+    @PostConstruct
+    public void init() {
+
+        if (Is.Empty(SERVER_NAME)) {
+            try {
+                SERVER_NAME = InetAddress.getLocalHost().getHostName();
+            }
+            catch (Exception ex) {
+                SERVER_NAME = "localhost";
+            }
+        }
+
+        counters.put(PUBLIC, new HitCounter(TOP_LISTINGS * 10));
+        counters.put(SHOP, new HitCounter(TOP_LISTINGS * 10));
+        counters.put(PRODUCT, new HitCounter(TOP_PRODUCTS * 10));
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+
+        if (!ENABLED || !started.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            last_report = warmUp();
+            log.info(last_report);
+        }
+        catch (Exception ex) {
+            log.error("Не удалось прогреть кэши товаров", ex);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+
+        // Записываем самые частые запросы, по ним прогреется следующий запуск (через прокси, чтобы удаление
+        // и запись прошли одной транзакцией)
+        try {
+            This().saveTopQueries();
+        }
+        catch (Exception ex) {
+            log.error("Не удалось записать частые запросы товаров", ex);
+        }
+    }
+
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public void saveTopQueries() {
+
+        _warmupMapper.deleteExpired(new Date(System.currentTimeMillis() - MAX_AGE_MS));
+        _warmupMapper.deleteByServer(SERVER_NAME);
+
+        saveTop(PUBLIC, TOP_LISTINGS);
+        saveTop(SHOP, TOP_LISTINGS);
+        saveTop(PRODUCT, TOP_PRODUCTS);
+    }
+
+    private void saveTop(String kind, int limit) {
+        for (Map.Entry<String, Long> entry : counters.get(kind).top(limit)) {
+            _warmupMapper.insert(SERVER_NAME, kind, entry.getKey(), entry.getValue());
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Учитываем запросы">
+    @Override
+    public void recordPublicListing(Long section_id, Long location_id, Long location_to_id, int page,
+                                    Map<String, String[]> filters) {
+
+        StringBuilder query = new StringBuilder();
+        appendParam(query, "section_id", section_id);
+        appendParam(query, "location_id", location_id);
+        appendParam(query, "location_to_id", location_to_id);
+        appendParam(query, "page", page);
+        appendFilters(query, filters);
+
+        counters.get(PUBLIC).hit(query.toString());
+    }
+
+    @Override
+    public void recordShopListing(Long node_id, Long section_id, int page, Map<String, String[]> filters) {
+
+        StringBuilder query = new StringBuilder();
+        appendParam(query, "node_id", node_id);
+        appendParam(query, "section_id", section_id);
+        appendParam(query, "page", page);
+        appendFilters(query, filters);
+
+        counters.get(SHOP).hit(query.toString());
+    }
+
+    @Override
+    public void recordProduct(Long product_id) {
+        counters.get(PRODUCT).hit(String.valueOf(product_id));
+    }
+
+    @Override
+    public WarmupReport getLastReport() {
+        return last_report;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Прогреваем кэши">
+    private WarmupReport warmUp() throws InterruptedException {
+
+        long start = System.currentTimeMillis();
+        final long deadline = start + BUDGET_MS;
+
+        final WarmupReport report = new WarmupReport();
+
+        Date since = new Date(start - MAX_AGE_MS);
+
+        // Сначала списки (они выбирают товары для списков пачками), затем страницы товаров
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (String kind : new String[]{PUBLIC, SHOP, PRODUCT}) {
+            int limit = kind.equals(PRODUCT) ? TOP_PRODUCTS : TOP_LISTINGS;
+
+            for (Map<String, Object> row : _warmupMapper.selectTop(kind, since, limit)) {
+                final String query = (String) row.get("query");
+                final long hits = Cast.toLong(row.get("hits") + "");
+                final String task_kind = kind;
+
+                // Запросы прошлого запуска продолжают учитываться, чтобы короткий запуск не вытеснил их
+                counters.get(kind).seed(query, hits / 2);
+
+                report.addPlanned(hits);
+
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        if (System.currentTimeMillis() > deadline) {
+                            report.addSkipped();
+                            return;
+                        }
+
+                        try {
+                            replay(task_kind, query);
+                            report.addWarmed(hits);
+                        }
+                        catch (Exception ex) {
+                            report.addFailed();
+                            log.debug(String.format("Не удалось выполнить запрос %s %s при прогреве.", task_kind,
+                                                    query), ex);
+                        }
+                    }
+                });
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+                new ProductsGroupsServiceImpl.NamedThreadFactory("products-warmup"));
+
+        try {
+            for (Runnable task : tasks) {
+                executor.execute(task);
+            }
+
+            executor.shutdown();
+
+            if (!executor.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0l),
+                                           TimeUnit.MILLISECONDS)) {
+                // запросы, которые еще выполняются, прерываются, остальные не начнутся
+                for (Runnable ignored : executor.shutdownNow()) {
+                    report.addSkipped();
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        report.setDuration_ms(System.currentTimeMillis() - start);
+
+        return report;
+    }
+
+    /**
+     * Выполняет записанный запрос так же, как его выполняет контроллер
+     */
+    private void replay(String kind, String query) {
+
+        if (kind.equals(PRODUCT)) {
+            _productsService.getProductView(Cast.toLong(query));
+            return;
+        }
+
+        Map<String, String> params = new HashMap<String, String>();
+        Map<String, String[]> filters = new HashMap<String, String[]>();
+        parse(query, params, filters);
+
+        int page = Math.max(Cast.toInt(params.get("page")), 1);
+        PageContext pc = new PageContext().setPageSize(LIST_PAGE_SIZE).setCurrentPage(page);
+
+        if (kind.equals(PUBLIC)) {
+            _productsService.getProductsForPublic(toLong(params.get("section_id")), toLong(params.get("location_id")),
+                                                  toLong(params.get("location_to_id")), pc, filters);
+        }
+        else {
+            _productsService.getProductsByNodeId(toLong(params.get("node_id")), 1l, toLong(params.get("section_id")),
+                                                 pc, filters);
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Вспомогательные методы и классы">
+    private static void appendParam(StringBuilder query, String name, Object value) {
+
+        if (value == null) {
+            return;
+        }
+
+        if (query.length() > 0) {
+            query.append('&');
+        }
+
+        query.append(name).append('=').append(encode(String.valueOf(value)));
+    }
+
+    /**
+     * Добавляет фильтры в запрос в одном порядке, чтобы одинаковые запросы записывались одинаково. Значения
+     * фильтра остаются на своих местах (у диапазона важен порядок), фильтры без значащих значений пропускаются
+     */
+    private static void appendFilters(StringBuilder query, Map<String, String[]> filters) {
+
+        if (filters == null) {
+            return;
+        }
+
+        for (Map.Entry<String, String[]> filter : new TreeMap<String, String[]>(filters).entrySet()) {
+            String[] values = FilterQueryPlan.normalize(filter.getValue(), false);
+            if (values == null) {
+                continue;
+            }
+
+            for (String value : values) {
+                appendParam(query, FILTER_PARAM + filter.getKey(), value);
+            }
+        }
+    }
+
+    private static void parse(String query, Map<String, String> params, Map<String, String[]> filters) {
+
+        Map<String, List<String>> values = new HashMap<String, List<String>>();
+
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+
+            String name = decode(pair.substring(0, eq));
+            String value = decode(pair.substring(eq + 1));
+
+            if (!name.startsWith(FILTER_PARAM)) {
+                params.put(name, value);
+                continue;
+            }
+
+            name = name.substring(FILTER_PARAM.length());
+            if (!values.containsKey(name)) {
+                values.put(name, new ArrayList<String>());
+            }
+            values.get(name).add(value);
+        }
+
+        for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+            filters.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+    }
+
+    private static Long toLong(String value) {
+        return value == null ? null : Cast.toLong(value);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Счетчик запросов ограниченного размера: при переполнении остается половина самых частых запросов
+     */
+    private static class HitCounter {
+
+        private final int capacity;
+
+        private final ConcurrentMap<String, AtomicLong> hits = new ConcurrentHashMap<String, AtomicLong>();
+
+        private HitCounter(int capacity) {
+            this.capacity = capacity;
+        }
+
+        private void hit(String query) {
+            seed(query, 1l);
+        }
+
+        private void seed(String query, long count) {
+
+            AtomicLong counter = hits.get(query);
+
+            if (counter == null) {
+                if (hits.size() >= capacity) {
+                    trim();
+                }
+
+                AtomicLong created = new AtomicLong();
+                counter = hits.putIfAbsent(query, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+
+            counter.addAndGet(count);
+        }
+
+        private synchronized void trim() {
+
+            if (hits.size() < capacity) {
+                return;
+            }
+
+            Set<String> keep = new HashSet<String>();
+            for (Map.Entry<String, Long> entry : top(capacity / 2)) {
+                keep.add(entry.getKey());
+            }
+
+            hits.keySet().retainAll(keep);
+        }
+
+        /**
+         * Возвращает самые частые запросы, частые первыми
+         */
+        private List<Map.Entry<String, Long>> top(int limit) {
+
+            List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+            for (Map.Entry<String, AtomicLong> entry : hits.entrySet()) {
+                entries.add(new AbstractMap.SimpleEntry<String, Long>(entry.getKey(), entry.getValue().get()));
+            }
+
+            Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                    return Long.compare(b.getValue(), a.getValue());
+                }
+            });
+
+            return entries.size() > limit ? entries.subList(0, limit) : entries;
+        }
+    }
+    // </editor-fold>
+}
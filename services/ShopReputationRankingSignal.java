@@ -0,0 +1,32 @@
+package com.wp.servicies.impl;
+
+import com.wp.model.ProductRankingInput;
+import com.wp.servicies.interfaces.IDeliveryLocationsService;
+import com.wp.servicies.interfaces.IRankingSignal;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Составляющая веса за магазин. Пока у магазинов нет рейтинга, учитывается то, что магазин доставляет
+ * товары в другие города
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@Component
+public class ShopReputationRankingSignal implements IRankingSignal {
+
+    // Сервис для работы с городами доставки магазинов
+    @Autowired
+    IDeliveryLocationsService _deliveryLocationsService;
+
+    @Override
+    public String getName() {
+        return "reputation";
+    }
+
+    @Override
+    public long score(ProductRankingInput product) {
+        return _deliveryLocationsService.getDeliveryLocations(product.getNode_id()).isEmpty() ? 0 : 1;
+    }
+}
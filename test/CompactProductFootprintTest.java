@@ -0,0 +1,106 @@
+package com.wp.test.common;
+
+import com.wp.servicies.interfaces.IProductsService;
+import com.wp.utils.mybatis.plugins.paging.page.PageContext;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Данный класс замеряет память, которую занимают модели товаров каталога: полная модель {@link
+ * com.wp.model.Product} и компактная модель {@link com.wp.model.CompactProduct}.
+ *
+ * Товары берутся из опубликованных товаров главного раздела (например, каталога, созданного нагрузочным
+ * тестом). Модели каждого вида собираются в массив, занятая память считается после сборки мусора до и после
+ * (объекты товаров из БД к этому времени уже не достижимы, поэтому в замер входит только то, что удерживает
+ * модель). Запускать с -XX:+UseSerialGC и достаточным -Xmx, чтобы сборки мусора были полными
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@WebAppConfiguration
+@ContextConfiguration(locations = {"classpath:/context_without_security_test.xml", "classpath:dispatcher-servlet-test.xml", "classpath:applicationContext-test.xml"})
+public class CompactProductFootprintTest extends ATest {
+
+    @Value("${products_section}")
+    private long MAIN_PRODUCT_SECTION_ID = 0;
+
+    // сколько товаров замеряется
+    @Value("${footprint_test_products:100000}")
+    private int PRODUCTS = 100000;
+
+    @Autowired
+    IProductsService _productsService;
+
+    @Test
+    @Ignore
+    public void testFootprint() throws Exception {
+
+        List<Long> products_ids = new ArrayList<Long>();
+
+        for (int page = 1; products_ids.size() < PRODUCTS; page++) {
+            PageContext pc = new PageContext().setPageSize(500).setCurrentPage(page);
+            List<Long> ids = _productsService.getPublishedProductsIds(MAIN_PRODUCT_SECTION_ID, pc);
+            products_ids.addAll(ids);
+
+            if (ids.size() < 500) {
+                break;
+            }
+        }
+
+        if (products_ids.size() > PRODUCTS) {
+            products_ids = products_ids.subList(0, PRODUCTS);
+        }
+
+        assertTrue(!products_ids.isEmpty());
+
+        Object[] models = new Object[products_ids.size()];
+
+        // Полные модели
+        long before = usedHeap();
+        for (int i = 0; i < models.length; i++) {
+            models[i] = _productsService.getProductModel(products_ids.get(i));
+        }
+        report("Product", before, usedHeap(), models.length);
+
+        // Компактные модели (кэш компактных моделей сбрасывается, чтобы модели создавались заново)
+        models = new Object[products_ids.size()];
+        for (Long product_id : products_ids) {
+            _productsService.evictProductCaches(product_id);
+        }
+
+        before = usedHeap();
+        for (int i = 0; i < models.length; i++) {
+            models[i] = _productsService.getCompactProductModel(products_ids.get(i));
+        }
+        report("CompactProduct", before, usedHeap(), models.length);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String model, long before, long after, int count) {
+        System.out.println(String.format("%-15s товаров %d, %.1f МБ, %d байт на товар", model, count,
+                                         (after - before) / 1048576d, (after - before) / count));
+    }
+}
@@ -0,0 +1,70 @@
+package com.wp.test.common;
+
+import com.wp.model.FILTERS;
+import com.wp.model.composite.PropertySimple;
+import com.wp.model.objects.Items;
+import com.wp.servicies.impl.ProductPropertiesDiff;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Данный класс тестирует сравнение сохраненных свойств товара со свойствами из формы
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class ProductPropertiesDiffTest {
+
+    private static final String COLOR = FILTERS.FILTER_PREFIX + "color";
+
+    @Test
+    public void testShrunkMultiSelectFilterIsWritten() {
+
+        // в карте свойств товара одно значение фильтра, все значения - только через getValues
+        Items item = item(COLOR, Arrays.<Object>asList(1l, 2l));
+
+        ProductPropertiesDiff diff = ProductPropertiesDiff.compare(
+                ProductPropertiesDiff.storedProperties(item),
+                Collections.singletonList(new PropertySimple(COLOR, Collections.singletonList(1l))));
+
+        assertFalse(diff.isEmpty());
+        assertEquals(COLOR, diff.getChanges().get(0).getName());
+    }
+
+    @Test
+    public void testSameMultiSelectFilterIsNotWritten() {
+
+        Items item = item(COLOR, Arrays.<Object>asList(1l, 2l));
+
+        ProductPropertiesDiff diff = ProductPropertiesDiff.compare(
+                ProductPropertiesDiff.storedProperties(item),
+                Collections.singletonList(new PropertySimple(COLOR, Arrays.asList(1l, 2l))));
+
+        assertTrue(diff.isEmpty());
+    }
+
+    /**
+     * Товар с одним фильтром: карта свойств хранит одно (первое) значение, как и у товаров из БД
+     */
+    private static Items item(final String name, final List<Object> values) {
+
+        return new Items(1l) {
+            @Override
+            public Map<String, PropertySimple> toMapProperties() {
+                Map<String, PropertySimple> properties = new HashMap<String, PropertySimple>();
+                properties.put(name, new PropertySimple(name, values.get(0)));
+                return properties;
+            }
+
+            @Override
+            public List getValues(String property) {
+                return property.equals(name) ? values : null;
+            }
+        };
+    }
+}
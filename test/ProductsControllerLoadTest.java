@@ -0,0 +1,609 @@
+package com.wp.test.common;
+
+import com.wp.model.enums.StatesEnum;
+import com.wp.model.objects.Nodes;
+import com.wp.services.interfaces.*;
+import com.wp.servicies.interfaces.IProductsService;
+import com.wp.servicies.interfaces.ISphinxProductIndex;
+import com.wp.web.forms.ProductForm;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.Advised;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.web.context.WebApplicationContext;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+/**
+ * Данный класс нагружает контроллер товаров.
+ *
+ * Тест создает в локальной БД каталог (товары магазина по разделам и группы конфигураций), подменяет сфинкс
+ * индексом в памяти и в несколько потоков выполняет запросы списков, страниц магазина, групп, товаров и сохранения
+ * товаров. В отчет выводятся p50/p99 времени ответа и коды ответов по каждому запросу, общая пропускная
+ * способность и количество запросов к БД на один запрос (по pg_stat_statements, если расширение включено: считаются
+ * только запросы тестовой БД и пользователя без запросов фоновых задач, см. BACKGROUND_QUERIES).
+ *
+ * Тест не транзакционный: запросы выполняются в других потоках и должны видеть созданные товары, поэтому
+ * товары удаляются после теста
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@WebAppConfiguration
+@ContextConfiguration(locations = {"classpath:/context_without_security_test.xml", "classpath:dispatcher-servlet-test.xml", "classpath:applicationContext-test.xml"})
+public class ProductsControllerLoadTest extends ATest {
+
+    Logger log = LoggerFactory.getLogger(ProductsControllerLoadTest.class);
+
+    @Value("${products_section}")
+    private long MAIN_PRODUCT_SECTION_ID = 0;
+
+    // разделы, по которым раскладываются товары (через запятую, по умолчанию главный раздел)
+    @Value("${load_test_sections:}")
+    private String SECTIONS = "";
+
+    // количество одиночных товаров и групп, количество конфигураций в группе
+    @Value("${load_test_products:300}")
+    private int PRODUCTS = 300;
+
+    @Value("${load_test_groups:30}")
+    private int GROUPS = 30;
+
+    @Value("${load_test_group_size:5}")
+    private int GROUP_SIZE = 5;
+
+    // количество потоков и длительность нагрузки
+    @Value("${load_test_threads:16}")
+    private int THREADS = 16;
+
+    @Value("${load_test_duration_ms:60000}")
+    private long DURATION_MS = 60000;
+
+    // запросы фоновых задач (события, счетчики просмотров, сверка, прогрев), которые идут независимо от нагрузки и
+    // не входят в количество запросов к БД на один запрос
+    private static final String BACKGROUND_QUERIES =
+            "product_events_offsets|product_stats|products_consistency_runs|products_warmup|pg_stat_statements|" +
+            "^\\s*select\\M.*\\mfrom\\s+product_events\\M";
+
+    @Autowired
+    private WebApplicationContext wac;
+
+    private MockMvc mockMvc;
+    protected MockHttpSession session;
+
+    @Autowired
+    @Qualifier("graphService")
+    IGraphService _gs;
+
+    @Autowired
+    IProductsService _productsService;
+
+    // магазин, на котором создаются товары
+    private Nodes shop;
+
+    private final List<Long> sections = new ArrayList<Long>();
+    private final List<Long> products_ids = new CopyOnWriteArrayList<Long>();
+    private final List<Long> groups_ids = new ArrayList<Long>();
+
+    // подмененные индексы сфинкса (бин -> исходный индекс)
+    private final Map<Object, Object> replaced = new HashMap<Object, Object>();
+
+    public ProductsControllerLoadTest() {
+    }
+
+    @Before
+    public void setUp() {
+        this.mockMvc = webAppContextSetup(this.wac).build();
+    }
+
+    @After
+    public void tearDown() {
+
+        for (Long product_id : products_ids) {
+            try {
+                _productsService.deleteProduct(shop.getId(), product_id);
+            }
+            catch (Exception ex) {
+                log.warn("Не удалось удалить товар " + product_id, ex);
+            }
+        }
+
+        for (Map.Entry<Object, Object> entry : replaced.entrySet()) {
+            ReflectionTestUtils.setField(entry.getKey(), "_sphinxProductsIndex", entry.getValue());
+        }
+    }
+
+    @Test
+    @Ignore
+    public void testLoad() throws Exception {
+
+        replaceSphinxIndex(new InMemoryProductIndex(MAIN_PRODUCT_SECTION_ID, _productsService).proxy());
+
+        seedCatalog();
+
+        final Map<String, Stats> stats = new TreeMap<String, Stats>();
+        for (String name : new String[]{"products", "shop", "group", "product", "save"}) {
+            stats.put(name, new Stats());
+        }
+
+        // Счетчики обнуляются, если у пользователя есть права (иначе считается разница до и после нагрузки)
+        resetDbQueries();
+        long queries_before = countDbQueries();
+        long started = System.currentTimeMillis();
+        final long deadline = started + DURATION_MS;
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    while (System.currentTimeMillis() < deadline) {
+                        runScenario(random, stats);
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(DURATION_MS * 2, TimeUnit.MILLISECONDS);
+
+        long elapsed_ms = System.currentTimeMillis() - started;
+        long queries = countDbQueries() - queries_before;
+
+        int total = 0;
+        int errors = 0;
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            System.out.println(String.format("%-8s %s", entry.getKey(), entry.getValue()));
+            total += entry.getValue().count();
+            errors += entry.getValue().errors.get();
+        }
+
+        System.out.println(String.format("Запросов %s за %s мс, %.1f запросов/с, ошибок %s", total, elapsed_ms,
+                                         total * 1000d / elapsed_ms, errors));
+        System.out.println(queries < 0 ? "Запросы к БД не посчитаны (нет pg_stat_statements)" :
+                           String.format("Запросов к БД %s, на один запрос %.1f", queries, (double) queries / total));
+
+        assertTrue(total > 0);
+        assertTrue("Ошибок: " + errors, errors == 0);
+    }
+
+    /**
+     * Выполняет случайный запрос: чаще всего списки и страницы товаров, реже сохранение
+     */
+    private void runScenario(Random random, Map<String, Stats> stats) {
+
+        int dice = random.nextInt(100);
+        String name;
+        RequestBuilder request;
+
+        if (dice < 35) {
+            name = "products";
+            request = get("/products").param("page", String.valueOf(1 + random.nextInt(3)))
+                    .accept(MediaType.TEXT_HTML).session(session);
+        }
+        else if (dice < 55) {
+            name = "shop";
+            request = get("/" + shop.getName() + "/products").param("page", String.valueOf(1 + random.nextInt(3)))
+                    .accept(MediaType.TEXT_HTML).session(session);
+        }
+        else if (dice < 70) {
+            name = "group";
+            request = get("/group/" + groups_ids.get(random.nextInt(groups_ids.size())))
+                    .accept(MediaType.TEXT_HTML).session(session);
+        }
+        else if (dice < 95) {
+            name = "product";
+            request = get("/product/" + products_ids.get(random.nextInt(products_ids.size())))
+                    .accept(MediaType.TEXT_HTML).session(session);
+        }
+        else {
+            name = "save";
+
+            // в ответ возвращается товар для списка, по нему созданный товар удаляется после теста
+            ProductForm form = initProductForm(random, null);
+            form.setReturn_forms("product_list_item");
+
+            request = post("/" + shop.getName() + "/product").setForm(form)
+                    .accept(MediaType.ALL).session(session);
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            MvcResult mr = mockMvc.perform(request).andReturn();
+            stats.get(name).add(System.nanoTime() - start, mr.getResponse().getStatus());
+
+            if (name.equals("save")) {
+                registerSavedProduct(mr);
+            }
+        }
+        catch (Exception ex) {
+            stats.get(name).add(System.nanoTime() - start, 500);
+            log.warn("Запрос " + name + " завершился ошибкой", ex);
+        }
+    }
+
+    /**
+     * Запоминает товар, созданный запросом сохранения, чтобы удалить его после теста
+     */
+    private void registerSavedProduct(MvcResult mr) {
+
+        Object item = mr.getModelAndView() == null ? null : mr.getModelAndView().getModel().get("item");
+
+        if (item == null) {
+            // товар не сохранен (например, ответ с ошибкой), удалять нечего
+            return;
+        }
+
+        Object product_id = InMemoryProductIndex.value(new BeanWrapperImpl(item), "id");
+        if (product_id instanceof Number) {
+            products_ids.add(((Number) product_id).longValue());
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Создаем каталог">
+    private void seedCatalog() {
+
+        shop = _gs.getRootNode();
+
+        for (String section : SECTIONS.split(",")) {
+            if (!section.trim().isEmpty()) {
+                sections.add(Long.parseLong(section.trim()));
+            }
+        }
+        if (sections.isEmpty()) {
+            sections.add(MAIN_PRODUCT_SECTION_ID);
+        }
+
+        Random random = new Random(42);
+
+        for (int i = 0; i < PRODUCTS; i++) {
+            products_ids.add(_productsService.saveProduct(shop.getId(), 0l, null,
+                                                          initProductForm(random, null)).getId());
+        }
+
+        for (int i = 0; i < GROUPS; i++) {
+            ProductForm first = initProductForm(random, null);
+            long first_id = _productsService.saveProduct(shop.getId(), 0l, null, first).getId();
+            products_ids.add(first_id);
+
+            Long group_id = _productsService.createFolderForProduct(first_id);
+            groups_ids.add(group_id);
+
+            for (int j = 1; j < GROUP_SIZE; j++) {
+                ProductForm configuration = initProductForm(random, group_id);
+                configuration.setSection_id(first.getSection_id());
+                products_ids.add(_productsService.saveProduct(shop.getId(), 0l, group_id, configuration).getId());
+            }
+
+            _productsService.updateProductsGroupProperties(group_id);
+        }
+    }
+
+    private ProductForm initProductForm(Random random, Long group_id) {
+
+        ProductForm form = new ProductForm();
+
+        form.setTitle("Товар " + random.nextInt(1000000));
+        form.setDescription("Описание товара для нагрузочного теста");
+        form.setSection_id(sections.get(random.nextInt(sections.size())));
+        form.setIs_publish(random.nextInt(10) < 8 ? 1 : 0);
+        form.setGroup_id(group_id);
+
+        return form;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Подменяем сфинкс">
+    private void replaceSphinxIndex(ISphinxProductIndex index) throws Exception {
+
+        for (String name : wac.getBeanDefinitionNames()) {
+            if (!wac.isSingleton(name)) {
+                continue;
+            }
+
+            Object bean = wac.getBean(name);
+            Object target = bean instanceof Advised ? ((Advised) bean).getTargetSource().getTarget() : bean;
+
+            try {
+                Object original = ReflectionTestUtils.getField(target, "_sphinxProductsIndex");
+                if (original instanceof ISphinxProductIndex) {
+                    ReflectionTestUtils.setField(target, "_sphinxProductsIndex", index);
+                    replaced.put(target, original);
+                }
+            }
+            catch (IllegalArgumentException ex) {
+                // у бина нет такого поля
+            }
+        }
+
+        assertTrue(!replaced.isEmpty());
+    }
+
+    /**
+     * Индекс товаров в памяти вместо сфинкса. Поддерживает выборку по магазину, группе, публикации и
+     * постраничную навигацию, конфигурации групп в общем списке схлопываются в одну (как в сфинксе).
+     *
+     * При обновлении атрибутов группа и публикация берутся из БД: по переданному товару нельзя отличить
+     * непереданный атрибут от нулевого (снятие с публикации, выход из группы), а обновление выполняется после
+     * записи в БД в той же транзакции
+     */
+    private static class InMemoryProductIndex implements InvocationHandler {
+
+        private final long root_id;
+
+        private final IProductsService products_service;
+
+        private final ConcurrentSkipListMap<Long, Map<String, Object>> documents =
+                new ConcurrentSkipListMap<Long, Map<String, Object>>(Collections.reverseOrder());
+
+        private InMemoryProductIndex(long root_id, IProductsService products_service) {
+            this.root_id = root_id;
+            this.products_service = products_service;
+        }
+
+        private ISphinxProductIndex proxy() {
+            return (ISphinxProductIndex) Proxy.newProxyInstance(ISphinxProductIndex.class.getClassLoader(),
+                                                                new Class[]{ISphinxProductIndex.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+
+            String name = method.getName();
+
+            if (name.equals("addToIndex")) {
+                Map<String, Object> document = read(args[0]);
+                documents.put((Long) document.get("id"), document);
+            }
+            else if (name.equals("update")) {
+                Long product_id = (Long) read(args[0]).get("id");
+                Map<String, Object> document = documents.get(product_id);
+
+                if (document != null) {
+                    long[] attributes = products_service.getIndexAttributes(Collections.singleton(product_id))
+                            .get(product_id);
+
+                    if (attributes != null) {
+                        document.put("group_id", attributes[0]);
+                        document.put("active", attributes[1]);
+                    }
+                }
+            }
+            else if (name.equals("delete")) {
+                documents.remove(((Number) args[1]).longValue());
+            }
+            else if (name.equals("select")) {
+                return select(new BeanWrapperImpl(args[0]));
+            }
+            else if (name.equals("getRootId")) {
+                return root_id;
+            }
+
+            return defaultValue(method.getReturnType());
+        }
+
+        private List<Long> select(BeanWrapper settings) {
+
+            long shop_id = toLong(value(settings, "shop_id"));
+            long group_id = toLong(value(settings, "group_id"));
+            Object status = value(settings, "status");
+
+            boolean published_only = status instanceof Collection &&
+                    ((Collection<?>) status).contains((long) StatesEnum.PUBLISHED.getValue());
+            boolean unpublished_only = status instanceof Collection && !published_only;
+            boolean collapse = group_id == ISphinxProductIndex.GROUP_ID;
+
+            // обход индекса по возрастанию идентификатора (сверка индекса с БД)
+            Object min_id = value(settings, "min_id");
+
+            List<Long> ids = new ArrayList<Long>();
+            Set<Long> seen_groups = new HashSet<Long>();
+
+            for (Map<String, Object> document : min_id == null ? documents.values() :
+                                                 documents.headMap(toLong(min_id), true).descendingMap().values()) {
+                long document_group = toLong(document.get("group_id"));
+                boolean active = toLong(document.get("active")) == 1;
+
+                if ((shop_id > 0 && toLong(document.get("shop_id")) != shop_id) ||
+                    (!collapse && group_id > 0 && document_group != group_id) ||
+                    (published_only && !active) || (unpublished_only && active)) {
+                    continue;
+                }
+
+                if (collapse && document_group > 0 && !seen_groups.add(document_group)) {
+                    continue;
+                }
+
+                ids.add(toLong(document.get("id")));
+            }
+
+            Object pc = value(settings, "pc");
+            if (pc == null) {
+                return ids;
+            }
+
+            BeanWrapper page = new BeanWrapperImpl(pc);
+            int size = (int) toLong(value(page, "pageSize"));
+            int from = Math.max((int) toLong(value(page, "currentPage")) - 1, 0) * size;
+
+            return from >= ids.size() ? new ArrayList<Long>() :
+                   new ArrayList<Long>(ids.subList(from, Math.min(from + size, ids.size())));
+        }
+
+        private static Map<String, Object> read(Object item) {
+
+            BeanWrapper wrapper = new BeanWrapperImpl(item);
+            Map<String, Object> document = new HashMap<String, Object>();
+
+            for (String attribute : new String[]{"id", "section_id", "shop_id", "group_id", "active"}) {
+                Object value = value(wrapper, attribute);
+                document.put(attribute, value == null ? null : toLong(value));
+            }
+
+            return document;
+        }
+
+        private static Object value(BeanWrapper wrapper, String property) {
+            return wrapper.isReadableProperty(property) ? wrapper.getPropertyValue(property) : null;
+        }
+
+        private static long toLong(Object value) {
+            return value instanceof Number ? ((Number) value).longValue() : 0l;
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) {
+                return false;
+            }
+            if (type == int.class || type == long.class) {
+                return type == int.class ? (Object) 0 : (Object) 0l;
+            }
+            return null;
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Статистика">
+    /**
+     * Возвращает количество выполненных запросов к БД по pg_stat_statements (-1, если расширение не включено).
+     * Считаются только запросы тестовой БД от пользователя теста, запросы фоновых задач не считаются
+     */
+    private long countDbQueries() {
+
+        DataSource dataSource = getPostgresDataSource();
+        if (dataSource == null) {
+            return -1l;
+        }
+
+        try {
+            Long calls = new JdbcTemplate(dataSource).queryForObject(
+                    "SELECT COALESCE(SUM(calls), 0) FROM pg_stat_statements " +
+                    "WHERE dbid = (SELECT oid FROM pg_database WHERE datname = current_database()) " +
+                    "AND userid = (SELECT oid FROM pg_roles WHERE rolname = current_user) " +
+                    "AND query !~* ?", Long.class, BACKGROUND_QUERIES);
+            return calls == null ? 0l : calls;
+        }
+        catch (Exception ex) {
+            log.warn("Не удалось посчитать запросы к БД", ex);
+            return -1l;
+        }
+    }
+
+    /**
+     * Обнуляет счетчики pg_stat_statements (нужны права суперпользователя, без них счетчики не обнуляются)
+     */
+    private void resetDbQueries() {
+
+        DataSource dataSource = getPostgresDataSource();
+        if (dataSource == null) {
+            return;
+        }
+
+        try {
+            new JdbcTemplate(dataSource).execute("SELECT pg_stat_statements_reset()");
+        }
+        catch (Exception ex) {
+            log.info("Счетчики pg_stat_statements не обнулены: " + ex.getMessage());
+        }
+    }
+
+    private DataSource getPostgresDataSource() {
+
+        for (DataSource dataSource : wac.getBeansOfType(DataSource.class).values()) {
+            try {
+                Connection connection = dataSource.getConnection();
+                try {
+                    if (connection.getMetaData().getURL().startsWith("jdbc:postgresql")) {
+                        return dataSource;
+                    }
+                }
+                finally {
+                    connection.close();
+                }
+            }
+            catch (Exception ex) {
+                log.warn("Не удалось подключиться к БД", ex);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Время ответа и коды ответов одного вида запросов
+     */
+    private static class Stats {
+
+        private final List<Long> latencies = new ArrayList<Long>();
+
+        private final Map<Integer, Integer> statuses = new TreeMap<Integer, Integer>();
+
+        private final AtomicInteger errors = new AtomicInteger();
+
+        private synchronized void add(long nanos, int status) {
+
+            latencies.add(nanos);
+
+            Integer count = statuses.get(status);
+            statuses.put(status, count == null ? 1 : count + 1);
+
+            if (status >= 500) {
+                errors.incrementAndGet();
+            }
+        }
+
+        private synchronized int count() {
+            return latencies.size();
+        }
+
+        private synchronized double percentile(double p) {
+
+            if (latencies.isEmpty()) {
+                return 0d;
+            }
+
+            List<Long> sorted = new ArrayList<Long>(latencies);
+            Collections.sort(sorted);
+
+            return sorted.get((int) Math.min(sorted.size() - 1, Math.floor(p * sorted.size()))) / 1000000d;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("запросов %6d, p50 %8.2f мс, p99 %8.2f мс, коды ответов %s",
+                                 latencies.size(), percentile(0.5), percentile(0.99), statuses);
+        }
+    }
+    // </editor-fold>
+}
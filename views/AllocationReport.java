@@ -0,0 +1,112 @@
+package com.wp.web.views;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Данный класс представляет из себя отчет о памяти, выделенной запросами товаров: сколько байт выделяет каждый
+ * замеряемый участок кода и сколько сборок мусора прошло за время замера.
+ *
+ * Память вложенных участков входит в память внешних (метод сервиса входит в обработчик контроллера)
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class AllocationReport {
+
+    // длительность замера в мс
+    private long duration_ms;
+
+    // количество сборок мусора за время замера
+    private long gc_count;
+
+    // время сборок мусора за время замера в мс
+    private long gc_time_ms;
+
+    // замеряемые участки по убыванию выделенной памяти
+    private List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Данные одного участка кода
+     */
+    public static class Entry {
+
+        // название участка
+        private final String name;
+
+        // количество выполнений
+        private final long calls;
+
+        // выделено байт за все выполнения
+        private final long bytes;
+
+        // наибольшее количество байт за одно выполнение
+        private final long max_bytes;
+
+        public Entry(String name, long calls, long bytes, long max_bytes) {
+            this.name = name;
+            this.calls = calls;
+            this.bytes = bytes;
+            this.max_bytes = max_bytes;
+        }
+
+        /**
+         * Возвращает среднее количество байт за одно выполнение
+         */
+        public long getBytes_per_call() {
+            return calls == 0 ? 0 : bytes / calls;
+        }
+
+        // <editor-fold defaultstate="collapsed" desc="Геттеры">
+        public String getName() {
+            return name;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMax_bytes() {
+            return max_bytes;
+        }
+        // </editor-fold>
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры и сетторы">
+    public long getDuration_ms() {
+        return duration_ms;
+    }
+
+    public void setDuration_ms(long duration_ms) {
+        this.duration_ms = duration_ms;
+    }
+
+    public long getGc_count() {
+        return gc_count;
+    }
+
+    public void setGc_count(long gc_count) {
+        this.gc_count = gc_count;
+    }
+
+    public long getGc_time_ms() {
+        return gc_time_ms;
+    }
+
+    public void setGc_time_ms(long gc_time_ms) {
+        this.gc_time_ms = gc_time_ms;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<Entry> entries) {
+        this.entries = entries;
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,152 @@
+package com.wp.web.views;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Данный класс представляет из себя отчет о сверке индекса сфинкса с БД: сколько товаров не хватает в индексе,
+ * сколько лишних (удаленных или снятых) товаров в нем осталось, у скольких расходятся атрибуты и доля расхождений
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class ConsistencyReport {
+
+    // сколько идентификаторов каждого вида расхождений попадает в отчет
+    private static final int SAMPLE_SIZE = 20;
+
+    // время начала сверки
+    private final Date started = new Date();
+
+    // длительность сверки в мс
+    private long duration_ms;
+
+    // количество действующих товаров в БД
+    private int db_count;
+
+    // количество товаров в индексе
+    private int index_count;
+
+    // товары, которых нет в индексе
+    private int missing;
+
+    // товары, которые есть только в индексе
+    private int ghosts;
+
+    // товары, у которых в индексе другие публикация или группа
+    private int mismatched;
+
+    // исправленные расхождения
+    private int repaired;
+
+    // примеры расхождений
+    private final List<Long> missing_sample = new ArrayList<Long>();
+    private final List<Long> ghosts_sample = new ArrayList<Long>();
+    private final List<Long> mismatched_sample = new ArrayList<Long>();
+
+    public void addMissing(long product_id) {
+        missing++;
+        sample(missing_sample, product_id);
+    }
+
+    public void addGhost(long product_id) {
+        ghosts++;
+        sample(ghosts_sample, product_id);
+    }
+
+    public void addMismatched(long product_id) {
+        mismatched++;
+        sample(mismatched_sample, product_id);
+    }
+
+    private static void sample(List<Long> sample, long product_id) {
+        if (sample.size() < SAMPLE_SIZE) {
+            sample.add(product_id);
+        }
+    }
+
+    /**
+     * Возвращает общее количество расхождений
+     */
+    public int getDrift() {
+        return missing + ghosts + mismatched;
+    }
+
+    /**
+     * Возвращает долю расхождений от количества товаров в БД
+     */
+    public double getDrift_rate() {
+        return (double) getDrift() / Math.max(db_count, 1);
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры и сетторы">
+    public Date getStarted() {
+        return started;
+    }
+
+    public long getDuration_ms() {
+        return duration_ms;
+    }
+
+    public void setDuration_ms(long duration_ms) {
+        this.duration_ms = duration_ms;
+    }
+
+    public int getDb_count() {
+        return db_count;
+    }
+
+    public void setDb_count(int db_count) {
+        this.db_count = db_count;
+    }
+
+    public int getIndex_count() {
+        return index_count;
+    }
+
+    public void setIndex_count(int index_count) {
+        this.index_count = index_count;
+    }
+
+    public int getMissing() {
+        return missing;
+    }
+
+    public int getGhosts() {
+        return ghosts;
+    }
+
+    public int getMismatched() {
+        return mismatched;
+    }
+
+    public int getRepaired() {
+        return repaired;
+    }
+
+    public void setRepaired(int repaired) {
+        this.repaired = repaired;
+    }
+
+    public List<Long> getMissing_sample() {
+        return missing_sample;
+    }
+
+    public List<Long> getGhosts_sample() {
+        return ghosts_sample;
+    }
+
+    public List<Long> getMismatched_sample() {
+        return mismatched_sample;
+    }
+    // </editor-fold>
+
+    @Override
+    public String toString() {
+        return String.format("Сверка индекса: в БД %s, в индексе %s, нет в индексе %s %s, лишних %s %s, " +
+                             "расходятся атрибуты %s %s, исправлено %s, доля расхождений %.4f, %s мс",
+                             db_count, index_count, missing, missing_sample, ghosts, ghosts_sample, mismatched,
+                             mismatched_sample, repaired, getDrift_rate(), duration_ms);
+    }
+}
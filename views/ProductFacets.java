@@ -0,0 +1,92 @@
+package com.wp.web.views;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Данный класс представляет из себя количество товаров для каждого значения фильтров раздела с учетом
+ * выбранных фильтров (сколько товаров будет найдено, если дополнительно выбрать значение)
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class ProductFacets {
+
+    // количество товаров по значениям списочных фильтров (идентификатор фильтра -> значение -> количество)
+    private Map<Long, Map<Long, Integer>> counts = new HashMap<Long, Map<Long, Integer>>();
+
+    // количество товаров по интервалам числовых фильтров, в том числе цены (идентификатор фильтра -> интервалы)
+    private Map<Long, List<Bucket>> buckets = new HashMap<Long, List<Bucket>>();
+
+    // количество товаров, подходящих под все выбранные фильтры
+    private int total;
+
+    /**
+     * Возвращает количество товаров для значения фильтра (0, если товаров нет)
+     */
+    public int getCount(long filter_id, long value_id) {
+        Map<Long, Integer> values = counts.get(filter_id);
+        Integer count = values == null ? null : values.get(value_id);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Интервал числового фильтра
+     */
+    public static class Bucket {
+
+        // начало интервала (включительно)
+        private long from;
+
+        // конец интервала (включительно)
+        private long to;
+
+        // количество товаров в интервале
+        private int count;
+
+        public Bucket(long from, long to, int count) {
+            this.from = from;
+            this.to = to;
+            this.count = count;
+        }
+
+        public long getFrom() {
+            return from;
+        }
+
+        public long getTo() {
+            return to;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры и сетторы">
+    public Map<Long, Map<Long, Integer>> getCounts() {
+        return counts;
+    }
+
+    public void setCounts(Map<Long, Map<Long, Integer>> counts) {
+        this.counts = counts;
+    }
+
+    public Map<Long, List<Bucket>> getBuckets() {
+        return buckets;
+    }
+
+    public void setBuckets(Map<Long, List<Bucket>> buckets) {
+        this.buckets = buckets;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public void setTotal(int total) {
+        this.total = total;
+    }
+    // </editor-fold>
+}
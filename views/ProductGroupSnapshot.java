@@ -0,0 +1,107 @@
+package com.wp.web.views;
+
+import com.wp.model.ProductGroupProperties;
+import com.wp.model.ProductVariantMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Данный класс представляет из себя все данные страницы группы товаров, полученные за одну выборку
+ * конфигураций группы
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class ProductGroupSnapshot {
+
+    // идентификатор группы товаров
+    private long group_id;
+
+    // идентификатор раздела, в котором лежат товары группы
+    private long section_id;
+
+    // все конфигурации группы в виде для редактирования
+    private List<ProductViewForEdit> configurations = new ArrayList<ProductViewForEdit>();
+
+    // конфигурации, подходящие под выбранные фильтры
+    private List<ProductConfigurationsViewForList> filtered = new ArrayList<ProductConfigurationsViewForList>();
+
+    // общие свойства группы товаров
+    private ProductGroupProperties properties;
+
+    // фильтры, по которым различаются конфигурации, с выбранными значениями
+    private List<FilterView> filters = new ArrayList<FilterView>();
+
+    // усредненные данные о товаре
+    private ProductAverageView average;
+
+    // доступные для выбора значения и интервал цен (null, если выбор делался в сфинксе)
+    private ProductVariantMatrix.Selection selection;
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры и сетторы">
+    public long getGroup_id() {
+        return group_id;
+    }
+
+    public void setGroup_id(long group_id) {
+        this.group_id = group_id;
+    }
+
+    public long getSection_id() {
+        return section_id;
+    }
+
+    public void setSection_id(long section_id) {
+        this.section_id = section_id;
+    }
+
+    public List<ProductViewForEdit> getConfigurations() {
+        return configurations;
+    }
+
+    public void setConfigurations(List<ProductViewForEdit> configurations) {
+        this.configurations = configurations;
+    }
+
+    public List<ProductConfigurationsViewForList> getFiltered() {
+        return filtered;
+    }
+
+    public void setFiltered(List<ProductConfigurationsViewForList> filtered) {
+        this.filtered = filtered;
+    }
+
+    public ProductGroupProperties getProperties() {
+        return properties;
+    }
+
+    public void setProperties(ProductGroupProperties properties) {
+        this.properties = properties;
+    }
+
+    public List<FilterView> getFilters() {
+        return filters;
+    }
+
+    public void setFilters(List<FilterView> filters) {
+        this.filters = filters;
+    }
+
+    public ProductAverageView getAverage() {
+        return average;
+    }
+
+    public void setAverage(ProductAverageView average) {
+        this.average = average;
+    }
+
+    public ProductVariantMatrix.Selection getSelection() {
+        return selection;
+    }
+
+    public void setSelection(ProductVariantMatrix.Selection selection) {
+        this.selection = selection;
+    }
+    // </editor-fold>
+}
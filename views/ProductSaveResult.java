@@ -0,0 +1,38 @@
+package com.wp.web.views;
+
+import com.wp.model.Product;
+
+/**
+ * Данный класс представляет из себя результат сохранения товара: модель товара, собранная из сохраненных данных,
+ * и конфигурация для списка. Позволяет отдать на клиент сохраненный товар, не выбирая его повторно из БД
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class ProductSaveResult {
+
+    // модель сохраненного товара
+    private final Product model;
+
+    // сохраненный товар в виде конфигурации для списка
+    private final ProductConfigurationsViewForList configuration_item;
+
+    public ProductSaveResult(Product model, ProductConfigurationsViewForList configuration_item) {
+        this.model = model;
+        this.configuration_item = configuration_item;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры">
+    public long getId() {
+        return model.getId();
+    }
+
+    public Product getModel() {
+        return model;
+    }
+
+    public ProductConfigurationsViewForList getConfiguration_item() {
+        return configuration_item;
+    }
+    // </editor-fold>
+}
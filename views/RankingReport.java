@@ -0,0 +1,149 @@
+package com.wp.web.views;
+
+import java.util.*;
+
+/**
+ * Данный класс представляет из себя отчет о пересчете веса товаров: сколько товаров изменили вес, на сколько
+ * и какие товары сдвинулись сильнее всего
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class RankingReport {
+
+    // сколько товаров с наибольшим изменением веса попадает в отчет
+    private static final int TOP_SIZE = 20;
+
+    // пробный пересчет (вес в сфинкс не записывался)
+    private final boolean dry_run;
+
+    // количество пересчитанных товаров
+    private int processed;
+
+    // количество товаров, вес которых изменился
+    private int changed;
+
+    // сумма модулей изменения веса
+    private long total_delta;
+
+    // количество товаров по изменению веса (изменение -> количество)
+    private final TreeMap<Long, Integer> deltas = new TreeMap<Long, Integer>();
+
+    // товары с наибольшим изменением веса
+    private final List<Move> top = new ArrayList<Move>();
+
+    public RankingReport(boolean dry_run) {
+        this.dry_run = dry_run;
+    }
+
+    /**
+     * Учитывает пересчитанный товар
+     *
+     * @param product_id идентификатор товара
+     * @param old_weight прежний вес (null, если вес еще не записывался)
+     * @param new_weight новый вес
+     */
+    public void add(long product_id, Long old_weight, long new_weight) {
+
+        processed++;
+
+        long delta = new_weight - (old_weight == null ? 0l : old_weight);
+
+        if (old_weight != null && delta == 0) {
+            return;
+        }
+
+        changed++;
+        total_delta += Math.abs(delta);
+
+        Integer count = deltas.get(delta);
+        deltas.put(delta, count == null ? 1 : count + 1);
+
+        top.add(new Move(product_id, old_weight, new_weight));
+        if (top.size() > TOP_SIZE * 2) {
+            trimTop();
+        }
+    }
+
+    private void trimTop() {
+
+        Collections.sort(top, new Comparator<Move>() {
+            @Override
+            public int compare(Move a, Move b) {
+                return Long.compare(Math.abs(b.getDelta()), Math.abs(a.getDelta()));
+            }
+        });
+
+        while (top.size() > TOP_SIZE) {
+            top.remove(top.size() - 1);
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры">
+    public boolean isDry_run() {
+        return dry_run;
+    }
+
+    public int getProcessed() {
+        return processed;
+    }
+
+    public int getChanged() {
+        return changed;
+    }
+
+    public double getAverage_delta() {
+        return changed == 0 ? 0d : (double) total_delta / changed;
+    }
+
+    public Map<Long, Integer> getDeltas() {
+        return deltas;
+    }
+
+    public List<Move> getTop() {
+        trimTop();
+        return top;
+    }
+    // </editor-fold>
+
+    @Override
+    public String toString() {
+        return String.format("%s: пересчитано %s, изменилось %s, среднее изменение %.2f, распределение %s",
+                             dry_run ? "Пробный пересчет веса" : "Пересчет веса", processed, changed,
+                             getAverage_delta(), deltas);
+    }
+
+    /**
+     * Изменение веса товара
+     */
+    public static class Move {
+
+        private final long product_id;
+
+        private final Long old_weight;
+
+        private final long new_weight;
+
+        public Move(long product_id, Long old_weight, long new_weight) {
+            this.product_id = product_id;
+            this.old_weight = old_weight;
+            this.new_weight = new_weight;
+        }
+
+        public long getProduct_id() {
+            return product_id;
+        }
+
+        public Long getOld_weight() {
+            return old_weight;
+        }
+
+        public long getNew_weight() {
+            return new_weight;
+        }
+
+        public long getDelta() {
+            return new_weight - (old_weight == null ? 0l : old_weight);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.wp.web.views;
+
+/**
+ * Данный класс представляет из себя отчет о прогреве кэшей при запуске сервера: сколько записанных запросов
+ * выполнено за отведенное время и какую долю обращений они покрывают
+ *
+ * @author Ivan Yevsyukov
+ * @e-mail ivan_yevsyukov@mail.ru
+ */
+public class WarmupReport {
+
+    // количество запросов для прогрева
+    private int planned;
+
+    // количество выполненных запросов
+    private int warmed;
+
+    // количество запросов, завершившихся ошибкой
+    private int failed;
+
+    // количество запросов, не выполненных за отведенное время
+    private int skipped;
+
+    // количество обращений, которые покрывают все запросы для прогрева
+    private long planned_hits;
+
+    // количество обращений, которые покрывают выполненные запросы
+    private long warmed_hits;
+
+    // длительность прогрева в мс
+    private long duration_ms;
+
+    public synchronized void addPlanned(long hits) {
+        planned++;
+        planned_hits += hits;
+    }
+
+    public synchronized void addWarmed(long hits) {
+        warmed++;
+        warmed_hits += hits;
+    }
+
+    public synchronized void addFailed() {
+        failed++;
+    }
+
+    public synchronized void addSkipped() {
+        skipped++;
+    }
+
+    /**
+     * Возвращает долю выполненных запросов
+     */
+    public synchronized double getCoverage() {
+        return planned == 0 ? 1d : (double) warmed / planned;
+    }
+
+    /**
+     * Возвращает долю обращений, которые покрывают выполненные запросы
+     */
+    public synchronized double getHits_coverage() {
+        return planned_hits == 0 ? 1d : (double) warmed_hits / planned_hits;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Геттеры и сетторы">
+    public synchronized int getPlanned() {
+        return planned;
+    }
+
+    public synchronized int getWarmed() {
+        return warmed;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    public synchronized int getSkipped() {
+        return skipped;
+    }
+
+    public synchronized long getDuration_ms() {
+        return duration_ms;
+    }
+
+    public synchronized void setDuration_ms(long duration_ms) {
+        this.duration_ms = duration_ms;
+    }
+    // </editor-fold>
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Прогрев кэшей: запросов %s, выполнено %s, ошибок %s, пропущено %s, покрытие %.2f, " +
+                             "покрытие обращений %.2f, %s мс", planned, warmed, failed, skipped, getCoverage(),
+                             getHits_coverage(), duration_ms);
+    }
+}